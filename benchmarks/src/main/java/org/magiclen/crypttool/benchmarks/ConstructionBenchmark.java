@@ -0,0 +1,76 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.magiclen.crypttool.lib.CryptCache;
+import org.magiclen.crypttool.lib.CryptKey;
+import org.magiclen.crypttool.lib.TextCrypt;
+import org.magiclen.magiccrypt.MagicCrypt;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of preparing a key, which is paid on every input change of the text tab unless it is cached.
+ *
+ * @author Magic Len
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConstructionBenchmark {
+
+    // -----Object Variable-----
+    @Param({"64", "128", "192", "256"})
+    private int bits;
+
+    private CryptCache cache;
+
+    // -----Object Method-----
+    @Setup
+    public void setup() {
+        cache = new CryptCache();
+    }
+
+    @Benchmark
+    public MagicCrypt newMagicCrypt() {
+        return new MagicCrypt("benchmark", bits, "iv");
+    }
+
+    @Benchmark
+    public CryptKey newCryptKey() {
+        return new CryptKey("benchmark", bits, "iv");
+    }
+
+    @Benchmark
+    public TextCrypt cachedTextCrypt() {
+        return cache.get("benchmark", bits, "iv");
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.magiclen.crypttool.CryptEngine;
+import org.magiclen.crypttool.CryptMethod;
+import org.magiclen.crypttool.lib.CryptFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * File encryption and decryption through the engine, including the Auto method against the explicit methods. Every invocation is a whole file, so the single shot mode is used. The smallest size stands for batches of many small files, where the fixed cost of every file matters more than the throughput.
+ *
+ * @author Magic Len
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileBenchmark {
+
+    // -----Object Variable-----
+    @Param({"1536", "1048576", "104857600", "1073741824"})
+    private long size;
+    @Param({"CLASSIC", "SEGMENTED"})
+    private CryptFormat format;
+    @Param({"128"})
+    private int bits;
+
+    private File directory, plaintext, ciphertext, output;
+    private CryptEngine engine;
+
+    // -----Object Method-----
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("CryptToolBenchmark").toFile();
+        plaintext = new File(directory, "plaintext");
+        ciphertext = new File(directory, "ciphertext");
+        output = new File(directory, "output");
+
+        final Random random = new Random(size);
+        final byte[] chunk = new byte[1024 * 1024];
+        try (final FileChannel channel = FileChannel.open(plaintext.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for (long written = 0; written < size; written += chunk.length) {
+                random.nextBytes(chunk);
+                final ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, (int) Math.min(chunk.length, size - written));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+
+        engine = new CryptEngine("benchmark", bits, null);
+        engine.setFormat(format);
+        engine.crypt(CryptMethod.ENCRYPT, plaintext, ciphertext, null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        plaintext.delete();
+        ciphertext.delete();
+        output.delete();
+        directory.delete();
+    }
+
+    @Benchmark
+    public CryptMethod encrypt() throws IOException {
+        return engine.crypt(CryptMethod.ENCRYPT, plaintext, output, null);
+    }
+
+    @Benchmark
+    public CryptMethod decrypt() throws IOException {
+        return engine.crypt(CryptMethod.DECRYPT, ciphertext, output, null);
+    }
+
+    @Benchmark
+    public CryptMethod autoEncrypt() throws IOException {
+        return engine.crypt(CryptMethod.AUTO, plaintext, output, null);
+    }
+
+    @Benchmark
+    public CryptMethod autoDecrypt() throws IOException {
+        return engine.crypt(CryptMethod.AUTO, ciphertext, output, null);
+    }
+}
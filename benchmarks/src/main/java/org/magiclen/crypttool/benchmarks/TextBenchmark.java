@@ -0,0 +1,117 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.magiclen.crypttool.lib.CryptKey;
+import org.magiclen.crypttool.lib.TextCrypt;
+import org.magiclen.magiccrypt.MagicCrypt;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Text encryption and decryption with MagicCrypt and with the prepared crypt of the text tab, including the overhead of the Auto method.
+ *
+ * @author Magic Len
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextBenchmark {
+
+    // -----Object Variable-----
+    @Param({"64", "128", "192", "256"})
+    private int bits;
+    @Param({"16", "1024", "65536", "1048576"})
+    private int size;
+
+    private MagicCrypt magicCrypt;
+    private TextCrypt textCrypt;
+    private String plaintext, ciphertext;
+
+    // -----Object Method-----
+    @Setup
+    public void setup() {
+        final Random random = new Random(size);
+        final StringBuilder sb = new StringBuilder(size);
+        for (int i = 0; i < size; ++i) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        plaintext = sb.toString();
+        magicCrypt = new MagicCrypt("benchmark", bits);
+        textCrypt = new TextCrypt(new CryptKey("benchmark", bits, null));
+        ciphertext = magicCrypt.encrypt(plaintext);
+    }
+
+    @Benchmark
+    public String magicCryptEncrypt() {
+        return magicCrypt.encrypt(plaintext);
+    }
+
+    @Benchmark
+    public String magicCryptDecrypt() {
+        return magicCrypt.decrypt(ciphertext);
+    }
+
+    /**
+     * The former Auto method on plaintext, which tries to decrypt first.
+     *
+     * @return the ciphertext
+     */
+    @Benchmark
+    public String magicCryptAutoPlaintext() {
+        try {
+            return magicCrypt.decrypt(plaintext);
+        } catch (final RuntimeException ex) {
+            return magicCrypt.encrypt(plaintext);
+        }
+    }
+
+    @Benchmark
+    public String textCryptEncrypt() throws Exception {
+        return textCrypt.encrypt(plaintext);
+    }
+
+    @Benchmark
+    public String textCryptDecrypt() throws Exception {
+        return textCrypt.decrypt(ciphertext);
+    }
+
+    @Benchmark
+    public String textCryptAutoPlaintext() throws Exception {
+        return textCrypt.isEncrypted(plaintext) ? textCrypt.decrypt(plaintext) : textCrypt.encrypt(plaintext);
+    }
+
+    @Benchmark
+    public String textCryptAutoCiphertext() throws Exception {
+        return textCrypt.isEncrypted(ciphertext) ? textCrypt.decrypt(ciphertext) : textCrypt.encrypt(ciphertext);
+    }
+}
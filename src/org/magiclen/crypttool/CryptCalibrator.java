@@ -0,0 +1,273 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.magiclen.crypttool.lib.CryptKey;
+import org.magiclen.crypttool.lib.PipelinedCrypt;
+import org.magiclen.crypttool.lib.SegmentedCrypt;
+
+/**
+ * Measure which settings make file jobs fastest on this host and a file system. It takes some seconds: the JCE providers are compared in memory, and the buffer sizes and the numbers of threads are compared by encrypting sample files in the directory to be calibrated, so the speed of its storage is taken into account. Every trial encrypts a sample file which has just been written instead of one read again and again from the page cache, and its time includes forcing the output to the storage.
+ *
+ * @author Magic Len
+ */
+public final class CryptCalibrator {
+
+    // -----Class Constant-----
+    /**
+     * The size of the sample file.
+     */
+    private static final int SAMPLE_SIZE = 64 * 1024 * 1024;
+    /**
+     * The size of the data encrypted in memory to compare providers.
+     */
+    private static final int PROVIDER_SAMPLE_SIZE = 4 * 1024 * 1024;
+    /**
+     * The segment size used to compare the numbers of threads. It is small, so the sample file has enough segments for many threads.
+     */
+    private static final int THREAD_SEGMENT_SIZE = 1024 * 1024;
+    private static final int ROUNDS = 2;
+    /**
+     * How much slower than the fastest setting a setting which uses less memory or fewer threads may be, so that it is preferred.
+     */
+    private static final double TOLERANCE = 1.05;
+    private static final int[] BUFFER_SIZES = {64 * 1024, 256 * 1024, 1024 * 1024, 4 * 1024 * 1024, 16 * 1024 * 1024};
+    /**
+     * The number of file jobs whose buffers have to fit in a quarter of the maximum memory together. Larger buffer sizes are not tried.
+     */
+    private static final int MEMORY_JOBS = 16;
+    /**
+     * The transformations used by the formats.
+     */
+    private static final String[] TRANSFORMATIONS = {"AES/CBC/PKCS5Padding", "AES/CBC/NoPadding", "AES/CTR/NoPadding", "AES/GCM/NoPadding", "DES/CBC/PKCS5Padding", "DES/CBC/NoPadding"};
+
+    // -----Constructor-----
+    private CryptCalibrator() {
+
+    }
+
+    // -----Class Method-----
+    /**
+     * Calibrate this host for a directory.
+     *
+     * @param directory the directory whose file system is measured, which needs room for about three times the sample size
+     * @param log the consumer of progress messages, or null
+     * @return the profile, which has not been saved
+     * @throws IOException if the sample files cannot be written
+     */
+    public static CryptProfile calibrate(final File directory, final Consumer<String> log) throws IOException {
+        final Consumer<String> out = log == null ? s -> {
+        } : log;
+        if (!directory.isDirectory()) {
+            throw new IOException(String.format("Not a directory: %s", directory));
+        }
+        final String store = Files.getFileStore(directory.toPath()).toString();
+
+        final Map<String, String> providers = new LinkedHashMap<>();
+        for (final String transformation : TRANSFORMATIONS) {
+            final String provider = fastestProvider(transformation);
+            if (provider != null) {
+                providers.put(transformation, provider);
+                out.accept(String.format("Provider of %s: %s", transformation, provider));
+            }
+        }
+
+        final CryptKey key = new CryptKey("CryptTool calibration", 128, null);
+        for (final Map.Entry<String, String> provider : providers.entrySet()) {
+            key.setProvider(provider.getKey(), provider.getValue());
+        }
+        final File sample = File.createTempFile(".crypttool-calibration-", ".sample", directory);
+        final File output = File.createTempFile(".crypttool-calibration-", ".output", directory);
+        try {
+            final long memory = Runtime.getRuntime().maxMemory() / 4 / MEMORY_JOBS;
+            int bufferCount = 1;
+            while (bufferCount < BUFFER_SIZES.length && PipelinedCrypt.getMemorySize(BUFFER_SIZES[bufferCount]) <= memory) {
+                ++bufferCount;
+            }
+
+            int bufferSize = BUFFER_SIZES[0];
+            final long[] bufferTimes = new long[bufferCount];
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < bufferCount; ++i) {
+                final PipelinedCrypt crypt = new PipelinedCrypt(key, BUFFER_SIZES[i]);
+                bufferTimes[i] = measure(sample, output, () -> crypt.encrypt(sample, output, null));
+                best = Math.min(best, bufferTimes[i]);
+                out.accept(String.format("Buffer size %s: %s/s", ProgressMeter.formatBytes(BUFFER_SIZES[i]), ProgressMeter.formatBytes(SAMPLE_SIZE * 1e9 / bufferTimes[i])));
+            }
+            for (int i = 0; i < bufferCount; ++i) {
+                if (bufferTimes[i] <= best * TOLERANCE) {
+                    bufferSize = BUFFER_SIZES[i];
+                    break;
+                }
+            }
+
+            final List<Integer> candidates = new ArrayList<>();
+            final int cores = Runtime.getRuntime().availableProcessors();
+            for (int n = 1; n < cores; n *= 2) {
+                candidates.add(n);
+            }
+            candidates.add(cores);
+            int threads = cores;
+            final long[] threadTimes = new long[candidates.size()];
+            best = Long.MAX_VALUE;
+            for (int i = 0; i < candidates.size(); ++i) {
+                final int n = candidates.get(i);
+                final ForkJoinPool pool = new ForkJoinPool(n);
+                try {
+                    final SegmentedCrypt crypt = new SegmentedCrypt(key, THREAD_SEGMENT_SIZE, pool);
+                    threadTimes[i] = measure(sample, output, () -> crypt.encrypt(sample, output, null));
+                } finally {
+                    pool.shutdown();
+                }
+                best = Math.min(best, threadTimes[i]);
+                out.accept(String.format("%d threads: %s/s", n, ProgressMeter.formatBytes(SAMPLE_SIZE * 1e9 / threadTimes[i])));
+            }
+            for (int i = 0; i < candidates.size(); ++i) {
+                if (threadTimes[i] <= best * TOLERANCE) {
+                    threads = candidates.get(i);
+                    break;
+                }
+            }
+            return new CryptProfile(bufferSize, threads, providers, store, System.currentTimeMillis());
+        } finally {
+            sample.delete();
+            output.delete();
+        }
+    }
+
+    /**
+     * Find the fastest provider of a transformation.
+     *
+     * @param transformation the transformation
+     * @return the name of the provider, or null if no provider supports the transformation
+     */
+    private static String fastestProvider(final String transformation) {
+        final String algorithm = transformation.substring(0, transformation.indexOf('/'));
+        final boolean des = algorithm.equals("DES");
+        final SecretKeySpec key = new SecretKeySpec(new byte[des ? 8 : 16], algorithm);
+        final byte[] data = new byte[PROVIDER_SAMPLE_SIZE];
+        final byte[] iv = new byte[des ? 8 : 16];
+        final SecureRandom random = new SecureRandom();
+        String fastest = null;
+        long best = Long.MAX_VALUE;
+        for (final Provider provider : Security.getProviders()) {
+            final Cipher cipher;
+            try {
+                cipher = Cipher.getInstance(transformation, provider);
+            } catch (final GeneralSecurityException ex) {
+                continue;
+            }
+            long time = Long.MAX_VALUE;
+            try {
+                for (int i = 0; i <= ROUNDS; ++i) {
+                    random.nextBytes(iv);
+                    final long start = System.nanoTime();
+                    cipher.init(Cipher.ENCRYPT_MODE, key, transformation.contains("/GCM/") ? new GCMParameterSpec(128, iv) : new IvParameterSpec(iv));
+                    cipher.doFinal(data);
+                    if (i > 0) {
+                        time = Math.min(time, System.nanoTime() - start);
+                    }
+                }
+            } catch (final GeneralSecurityException | RuntimeException ex) {
+                // The provider does not accept this key or these parameters.
+                continue;
+            }
+            if (time < best) {
+                best = time;
+                fastest = provider.getName();
+            }
+        }
+        return fastest;
+    }
+
+    /**
+     * Write a sample file of random data and force it to the storage.
+     *
+     * @param sample the sample file
+     * @throws IOException if the sample file cannot be written
+     */
+    private static void writeSample(final File sample) throws IOException {
+        final Random random = new Random();
+        final byte[] chunk = new byte[1024 * 1024];
+        try (final FileChannel channel = FileChannel.open(sample.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (int written = 0; written < SAMPLE_SIZE; written += chunk.length) {
+                random.nextBytes(chunk);
+                final ByteBuffer buffer = ByteBuffer.wrap(chunk);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Run a trial once to warm up and then {@link #ROUNDS} times. The sample file is written again before every run, and the output file is forced to the storage in the measured time.
+     *
+     * @param sample the sample file read by the trial
+     * @param output the output file written by the trial
+     * @param trial the trial
+     * @return the shortest time in nanoseconds
+     * @throws IOException if the trial fails
+     */
+    private static long measure(final File sample, final File output, final Trial trial) throws IOException {
+        long time = Long.MAX_VALUE;
+        for (int i = 0; i <= ROUNDS; ++i) {
+            writeSample(sample);
+            final long start = System.nanoTime();
+            trial.run();
+            try (final FileChannel channel = FileChannel.open(output.toPath(), StandardOpenOption.WRITE)) {
+                channel.force(false);
+            }
+            if (i > 0) {
+                time = Math.min(time, System.nanoTime() - start);
+            }
+        }
+        return time;
+    }
+
+    // -----Inner Class-----
+    /**
+     * A trial to be measured.
+     */
+    private interface Trial {
+
+        void run() throws IOException;
+    }
+}
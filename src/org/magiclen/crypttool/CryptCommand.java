@@ -0,0 +1,1031 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.magiclen.crypttool.lib.Codec;
+import org.magiclen.crypttool.lib.CryptArchive;
+import org.magiclen.crypttool.lib.CryptFormat;
+import org.magiclen.crypttool.lib.EnvelopeCrypt;
+import org.magiclen.crypttool.lib.SegmentedCrypt;
+
+/**
+ * The command-line interface of Crypt Tool. It does not need JavaFX, so it can run on headless hosts.
+ *
+ * @author Magic Len
+ */
+public final class CryptCommand {
+
+    // -----Class Constant-----
+    /**
+     * The default suffix of encrypted files.
+     */
+    private static final String DEFAULT_SUFFIX = ".enc";
+    /**
+     * The default maximum number of files handled at once on a file store in the adaptive mode.
+     */
+    private static final int ADAPTIVE_JOBS = 16;
+    /**
+     * The characters which make a path a glob pattern.
+     */
+    private static final String GLOB_CHARS = "*?[{";
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: java -cp CryptTool.jar org.magiclen.crypttool.CryptCommand [options] <file|directory|glob|->...",
+            "",
+            "Encrypt, decrypt or verify files. A directory means all files in its tree. Use - to read paths or globs from the standard input, one per line.",
+            "",
+            "Options:",
+            "  -m, --method <method>                auto, encrypt, decrypt, verify or rekey; verify checks segmented and authenticated files without writing anything, and rekey re-encrypts files with the new key in one pass, in place unless an output directory is given (default: encrypt)",
+            "  -b, --bits <64|128|192|256>          the key strength (default: 128)",
+            "  -k, --key <key>                      the key",
+            "      --key-file <file>                read the key from a file",
+            "  -i, --iv <iv>                        the IV (default: the zero IV)",
+            "      --new-key <key>                  the new key of the rekey method",
+            "      --new-key-file <file>            read the new key from a file",
+            "      --new-bits <64|128|192|256>      the strength of the new key (default: the strength of the key)",
+            "      --new-iv <iv>                    the new IV (default: the zero IV)",
+            "      --assume-old                     re-key files in the classic format which can be decrypted with both keys and whose key cannot be told otherwise, instead of reporting them",
+            "      --format <format>                the format of encrypted files, classic, segmented, authenticated or envelope; authenticated needs a 128-bit or stronger key, and envelope encrypts files once for the key and every recipient (default: classic, or the format of each file for the rekey method)",
+            "      --recipient <key>                add a recipient key of the envelope format, of the same strength as the key; can be repeated",
+            "      --recipient-file <file>          read a recipient key from a file; can be repeated",
+            "      --codec <none|deflate>           compress files before they are encrypted in the segmented or authenticated format (default: none)",
+            "      --segment-size <size>            the segment size of the segmented format and the chunk size of the authenticated format, such as 4M (default: 4M)",
+            "      --buffer-size <size>             the I/O buffer size of the classic format (default: the calibrated size, or 1M)",
+            "      --threads <n>                    the number of threads for parallel encryption and decryption (default: the calibrated number, or all cores)",
+            "      --calibrate <directory>          measure the fastest buffer size, number of threads and JCE providers for this host by writing sample files in the directory, and save them as the profile of this host",
+            "      --profile                        print the profile of this host",
+            "      --no-profile                     ignore the profile of this host",
+            "      --range <offset>[:<length>]      decrypt only the bytes in the range, such as 30G:4K, reading only the blocks, segments or chunks which contain them; the length defaults to the rest of the file",
+            "  -o, --output <directory>             the directory of destination files, where the trees of directories and glob patterns are mirrored (default: the directory of each source file)",
+            "  -j, --jobs <n>                       the number of files handled at once, or the maximum number per file store in the adaptive mode (default: 1, or " + ADAPTIVE_JOBS + " in the adaptive mode)",
+            "      --adaptive                       group the files by the file store they are on, and adjust the number of files handled at once on every file store to the highest throughput",
+            "      --incremental                    record the files in a manifest in the output directory, and only handle new or changed files next time; destination files whose source files have been deleted are deleted",
+            "  -s, --suffix <suffix>                the suffix appended to encrypted files and removed from decrypted files (default: " + DEFAULT_SUFFIX + ")",
+            "      --pack <archive>                 pack the files into an encrypted archive instead of encrypting them one by one; directories and glob patterns keep their relative paths",
+            "      --list <archive>                 list the members of an archive",
+            "      --extract <archive>              extract the members named by the arguments, or all members, from an archive into the output directory (default: the current directory)",
+            "      --serve <[host:]port>            serve HTTP requests with these options instead of handling files, on the loopback address unless a host is given",
+            "  -f, --force                          overwrite existing destination files",
+            "  -q, --quiet                          print errors only",
+            "  -v, --version                        print the version",
+            "  -h, --help                           print this help");
+
+    // -----Object Variable-----
+    private CryptMethod method = CryptMethod.ENCRYPT;
+    private int bits = 128;
+    private String key = "";
+    private String iv;
+    private String newKey, newIV;
+    private int newBits;
+    private boolean formatSet;
+    private final List<String> recipients = new ArrayList<>();
+    private File output;
+    private String suffix = DEFAULT_SUFFIX;
+    private CryptFormat format = CryptFormat.CLASSIC;
+    private Codec codec = Codec.NONE;
+    private int segmentSize = SegmentedCrypt.DEFAULT_SEGMENT_SIZE;
+    private int bufferSize;
+    private int threads;
+    private ForkJoinPool pool;
+    private CryptProfile profile;
+    private String serve;
+    private File calibrate;
+    private File pack, list, extract;
+    private long[] range;
+    private boolean force, quiet, showProfile, noProfile, incremental, adaptive, assumeOld;
+    private final List<File> ambiguous = new ArrayList<>();
+    private CryptManifest manifest;
+    private final List<String> patterns = new ArrayList<>();
+    private int jobs;
+    private final AtomicInteger succeeded = new AtomicInteger(), failed = new AtomicInteger(), unchanged = new AtomicInteger();
+
+    // -----Constructor-----
+    private CryptCommand() {
+
+    }
+
+    // -----Class Method-----
+    /**
+     * Check whether a path is a glob pattern.
+     *
+     * @param path the path
+     * @return true if the path contains glob characters
+     */
+    private static boolean isGlob(final String path) {
+        for (int i = 0; i < GLOB_CHARS.length(); ++i) {
+            if (path.indexOf(GLOB_CHARS.charAt(i)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find the end of the base directory of a glob pattern, which is the longest leading path without glob characters.
+     *
+     * @param pattern the glob pattern whose separators are slashes
+     * @return the index of the slash after the base directory, or -1 if the base directory is the current directory
+     */
+    private static int globBaseEnd(final String pattern) {
+        int globIndex = pattern.length();
+        for (int i = 0; i < GLOB_CHARS.length(); ++i) {
+            final int index = pattern.indexOf(GLOB_CHARS.charAt(i));
+            if (index >= 0 && index < globIndex) {
+                globIndex = index;
+            }
+        }
+        return pattern.lastIndexOf('/', globIndex);
+    }
+
+    /**
+     * Get the base directory of a path or a glob pattern. Files found under it keep their relative paths in the output directory.
+     *
+     * @param pattern the path or the glob pattern
+     * @return the base directory, or null if the path is a file
+     */
+    private static File baseOf(final String pattern) {
+        if (!isGlob(pattern)) {
+            final File file = new File(pattern);
+            return file.isDirectory() ? file.toPath().toAbsolutePath().normalize().toFile() : null;
+        }
+        final String normalizedPattern = pattern.replace(File.separatorChar, '/');
+        final int baseEnd = globBaseEnd(normalizedPattern);
+        return Paths.get(baseEnd < 0 ? "." : baseEnd == 0 ? "/" : normalizedPattern.substring(0, baseEnd)).toAbsolutePath().normalize().toFile();
+    }
+
+    /**
+     * Expand a path or a glob pattern to files. A pattern containing <b>**</b> matches across directories, and a directory expands to all files in its tree.
+     *
+     * @param pattern the path or the glob pattern
+     * @return the files, sorted by their paths
+     * @throws IOException if the base directory of the pattern cannot be read
+     */
+    static List<File> expand(final String pattern) throws IOException {
+        if (!isGlob(pattern)) {
+            final File file = new File(pattern);
+            return file.isDirectory() ? CryptQueue.listTree(file) : Collections.singletonList(file);
+        }
+        final String normalizedPattern = pattern.replace(File.separatorChar, '/');
+        final int baseEnd = globBaseEnd(normalizedPattern);
+        final Path base = Paths.get(baseEnd < 0 ? "." : baseEnd == 0 ? "/" : normalizedPattern.substring(0, baseEnd));
+        final String relativePattern = normalizedPattern.substring(baseEnd + 1);
+        final PathMatcher matcher = base.getFileSystem().getPathMatcher("glob:" + relativePattern);
+        final int maxDepth = relativePattern.contains("**") ? Integer.MAX_VALUE : relativePattern.split("/").length;
+        if (!Files.isDirectory(base)) {
+            return Collections.emptyList();
+        }
+        try (final Stream<Path> stream = Files.walk(base, maxDepth)) {
+            return stream.filter(p -> Files.isRegularFile(p) && matcher.matches(base.relativize(p))).sorted().map(Path::toFile).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Parse a size such as 512K, 4M or 1G.
+     *
+     * @param size the size
+     * @return the size in bytes
+     */
+    static long parseSize(final String size) {
+        final String s = size.trim().toUpperCase();
+        final int last = s.length() - 1;
+        long unit = 1;
+        if (last > 0) {
+            switch (s.charAt(last)) {
+                case 'K':
+                    unit = 1024L;
+                    break;
+                case 'M':
+                    unit = 1024L * 1024;
+                    break;
+                case 'G':
+                    unit = 1024L * 1024 * 1024;
+                    break;
+            }
+        }
+        try {
+            return Long.parseLong(unit == 1 ? s : s.substring(0, last)) * unit;
+        } catch (final NumberFormatException ex) {
+            throw new RuntimeException(String.format("Illegal size: %s", size));
+        }
+    }
+
+    /**
+     * Parse a range such as 30G:4K, which is an offset and an optional length.
+     *
+     * @param range the range
+     * @return the offset and the length, which is -1 if the range reaches the end of the file
+     */
+    static long[] parseRange(final String range) {
+        final int colon = range.indexOf(':');
+        final long offset = parseSize(colon < 0 ? range : range.substring(0, colon));
+        final long length = colon < 0 ? -1 : parseSize(range.substring(colon + 1));
+        if (offset < 0 || colon >= 0 && length < 0) {
+            throw new RuntimeException(String.format("Illegal range: %s", range));
+        }
+        return new long[]{offset, length};
+    }
+
+    /**
+     * Parse a positive integer.
+     *
+     * @param value the value
+     * @param option the option
+     * @return the integer
+     */
+    private static int parsePositive(final String value, final String option) {
+        try {
+            final int n = Integer.parseInt(value);
+            if (n > 0) {
+                return n;
+            }
+        } catch (final NumberFormatException ex) {
+        }
+        throw new RuntimeException(String.format("The option %s needs a positive integer: %s", option, value));
+    }
+
+    /**
+     * The entry point of the command-line interface.
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(final String[] args) {
+        final CryptCommand command = new CryptCommand();
+        try {
+            if (!command.parse(args)) {
+                System.exit(0);
+                return;
+            }
+        } catch (final RuntimeException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println("Try '--help' for more information.");
+            System.exit(2);
+            return;
+        }
+        if (command.calibrate != null) {
+            System.exit(command.calibrate());
+            return;
+        }
+        if (command.showProfile) {
+            System.exit(command.showProfile());
+            return;
+        }
+        if (command.threads > 0) {
+            command.pool = new ForkJoinPool(command.threads);
+        }
+        if (!command.noProfile) {
+            command.profile = CryptProfile.load();
+        }
+        if (command.pack != null) {
+            System.exit(command.pack());
+        } else if (command.list != null) {
+            System.exit(command.list());
+        } else if (command.extract != null) {
+            System.exit(command.extract());
+        } else {
+            System.exit(command.serve != null ? command.serve() : command.run());
+        }
+    }
+
+    // -----Object Method-----
+    /**
+     * Parse the command-line arguments.
+     *
+     * @param args the command-line arguments
+     * @return false if there is nothing to do
+     */
+    private boolean parse(final String[] args) {
+        for (int i = 0; i < args.length; ++i) {
+            final String arg = args[i];
+            switch (arg) {
+                case "-m":
+                case "--method":
+                    method = CryptMethod.parse(value(args, ++i, arg));
+                    break;
+                case "-b":
+                case "--bits":
+                    try {
+                        bits = Integer.parseInt(value(args, ++i, arg));
+                    } catch (final NumberFormatException ex) {
+                        throw new RuntimeException(String.format("The key strength must be 64, 128, 192 or 256: %s", args[i]));
+                    }
+                    if (bits != 64 && bits != 128 && bits != 192 && bits != 256) {
+                        throw new RuntimeException(String.format("The key strength must be 64, 128, 192 or 256: %d", bits));
+                    }
+                    break;
+                case "-k":
+                case "--key":
+                    key = value(args, ++i, arg);
+                    break;
+                case "--key-file":
+                    try {
+                        key = new String(Files.readAllBytes(Paths.get(value(args, ++i, arg))), StandardCharsets.UTF_8);
+                    } catch (final IOException ex) {
+                        throw new RuntimeException(String.format("Cannot read the key file: %s", args[i]));
+                    }
+                    break;
+                case "-i":
+                case "--iv":
+                    iv = value(args, ++i, arg);
+                    break;
+                case "--format":
+                    format = CryptFormat.parse(value(args, ++i, arg));
+                    formatSet = true;
+                    break;
+                case "--recipient":
+                    recipients.add(value(args, ++i, arg));
+                    break;
+                case "--recipient-file":
+                    try {
+                        recipients.add(new String(Files.readAllBytes(Paths.get(value(args, ++i, arg))), StandardCharsets.UTF_8));
+                    } catch (final IOException ex) {
+                        throw new RuntimeException(String.format("Cannot read the key file: %s", args[i]));
+                    }
+                    break;
+                case "--new-key":
+                    newKey = value(args, ++i, arg);
+                    break;
+                case "--new-key-file":
+                    try {
+                        newKey = new String(Files.readAllBytes(Paths.get(value(args, ++i, arg))), StandardCharsets.UTF_8);
+                    } catch (final IOException ex) {
+                        throw new RuntimeException(String.format("Cannot read the key file: %s", args[i]));
+                    }
+                    break;
+                case "--new-bits":
+                    try {
+                        newBits = Integer.parseInt(value(args, ++i, arg));
+                    } catch (final NumberFormatException ex) {
+                        throw new RuntimeException(String.format("The key strength must be 64, 128, 192 or 256: %s", args[i]));
+                    }
+                    if (newBits != 64 && newBits != 128 && newBits != 192 && newBits != 256) {
+                        throw new RuntimeException(String.format("The key strength must be 64, 128, 192 or 256: %d", newBits));
+                    }
+                    break;
+                case "--new-iv":
+                    newIV = value(args, ++i, arg);
+                    break;
+                case "--codec":
+                    codec = Codec.parse(value(args, ++i, arg));
+                    break;
+                case "--segment-size":
+                    final long size = parseSize(value(args, ++i, arg));
+                    if (size <= 0 || size % 16 != 0 || size > SegmentedCrypt.MAX_SEGMENT_SIZE) {
+                        throw new RuntimeException(String.format("The segment size must be a multiple of 16 bytes and at most %d bytes: %s", SegmentedCrypt.MAX_SEGMENT_SIZE, args[i]));
+                    }
+                    segmentSize = (int) size;
+                    break;
+                case "--buffer-size":
+                    final long buffer = parseSize(value(args, ++i, arg));
+                    if (buffer < 16 || buffer > Integer.MAX_VALUE - 64) {
+                        throw new RuntimeException(String.format("Illegal buffer size: %s", args[i]));
+                    }
+                    bufferSize = (int) buffer;
+                    break;
+                case "--range":
+                    range = parseRange(value(args, ++i, arg));
+                    break;
+                case "-j":
+                case "--jobs":
+                    jobs = parsePositive(value(args, ++i, arg), arg);
+                    break;
+                case "--threads":
+                    threads = parsePositive(value(args, ++i, arg), arg);
+                    break;
+                case "-o":
+                case "--output":
+                    output = Paths.get(value(args, ++i, arg)).toAbsolutePath().normalize().toFile();
+                    break;
+                case "-s":
+                case "--suffix":
+                    suffix = value(args, ++i, arg);
+                    break;
+                case "-f":
+                case "--force":
+                    force = true;
+                    break;
+                case "--serve":
+                    serve = value(args, ++i, arg);
+                    break;
+                case "--calibrate":
+                    calibrate = Paths.get(value(args, ++i, arg)).toAbsolutePath().normalize().toFile();
+                    break;
+                case "--pack":
+                    pack = Paths.get(value(args, ++i, arg)).toAbsolutePath().normalize().toFile();
+                    break;
+                case "--list":
+                    list = Paths.get(value(args, ++i, arg)).toAbsolutePath().normalize().toFile();
+                    break;
+                case "--extract":
+                    extract = Paths.get(value(args, ++i, arg)).toAbsolutePath().normalize().toFile();
+                    break;
+                case "--profile":
+                    showProfile = true;
+                    break;
+                case "--no-profile":
+                    noProfile = true;
+                    break;
+                case "--incremental":
+                    incremental = true;
+                    break;
+                case "--adaptive":
+                    adaptive = true;
+                    break;
+                case "--assume-old":
+                    assumeOld = true;
+                    break;
+                case "-q":
+                case "--quiet":
+                    quiet = true;
+                    break;
+                case "-v":
+                case "--version":
+                    System.out.println(Version.getVersion());
+                    return false;
+                case "-h":
+                case "--help":
+                    System.out.println(USAGE);
+                    return false;
+                default:
+                    if (arg.startsWith("-") && arg.length() > 1) {
+                        throw new RuntimeException(String.format("Unknown option: %s", arg));
+                    }
+                    patterns.add(arg);
+            }
+        }
+        if ((pack != null ? 1 : 0) + (list != null ? 1 : 0) + (extract != null ? 1 : 0) > 1) {
+            throw new RuntimeException("Only one of --pack, --list and --extract can be used at once.");
+        }
+        if (patterns.isEmpty() && serve == null && calibrate == null && !showProfile && list == null && extract == null) {
+            throw new RuntimeException("You need to input at least one file.");
+        }
+        if (format == CryptFormat.ARCHIVE) {
+            throw new RuntimeException("Use --pack to make an archive.");
+        }
+        if ((pack != null || list != null || extract != null) && bits == 64) {
+            throw new RuntimeException("Archives need a 128-bit, 192-bit or 256-bit key.");
+        }
+        if (codec != Codec.NONE && format != CryptFormat.SEGMENTED && format != CryptFormat.AUTHENTICATED) {
+            throw new RuntimeException("Only the segmented and authenticated formats can be compressed.");
+        }
+        if (!recipients.isEmpty() && format != CryptFormat.ENVELOPE) {
+            throw new RuntimeException("Recipients need the envelope format.");
+        }
+        if (recipients.size() + 1 > EnvelopeCrypt.MAX_RECIPIENTS) {
+            throw new RuntimeException(String.format("An envelope can have at most %d recipients.", EnvelopeCrypt.MAX_RECIPIENTS));
+        }
+        if (assumeOld && method != CryptMethod.REKEY) {
+            throw new RuntimeException("The --assume-old option only works with the rekey method.");
+        }
+        if (method == CryptMethod.REKEY) {
+            if (newKey == null) {
+                throw new RuntimeException("The rekey method needs a new key. Use --new-key or --new-key-file.");
+            }
+            if (newBits == 0) {
+                newBits = bits;
+            }
+            if (codec != Codec.NONE) {
+                throw new RuntimeException("Files cannot be compressed when they are re-keyed.");
+            }
+            if (format == CryptFormat.ENVELOPE) {
+                throw new RuntimeException("Files cannot be re-keyed into the envelope format.");
+            }
+            if (format == CryptFormat.AUTHENTICATED && newBits == 64) {
+                throw new RuntimeException("The authenticated format needs a 128-bit, 192-bit or 256-bit key.");
+            }
+        } else if (format == CryptFormat.AUTHENTICATED && bits == 64) {
+            throw new RuntimeException("The authenticated format needs a 128-bit, 192-bit or 256-bit key.");
+        }
+        if (range != null) {
+            if (method != CryptMethod.DECRYPT) {
+                throw new RuntimeException("The range only works with the decrypt method.");
+            }
+            if (incremental) {
+                throw new RuntimeException("The range cannot be used in the incremental mode.");
+            }
+        }
+        if (incremental) {
+            if (output == null) {
+                throw new RuntimeException("The incremental mode needs an output directory.");
+            }
+            if (method != CryptMethod.ENCRYPT && method != CryptMethod.DECRYPT) {
+                throw new RuntimeException("The incremental mode only works with the encrypt and decrypt methods.");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the value of an option.
+     *
+     * @param args the command-line arguments
+     * @param index the index of the value
+     * @param option the option
+     * @return the value
+     */
+    private static String value(final String[] args, final int index, final String option) {
+        if (index >= args.length) {
+            throw new RuntimeException(String.format("The option %s needs a value.", option));
+        }
+        return args[index];
+    }
+
+    /**
+     * Create an engine with the options.
+     *
+     * @param key the key
+     * @param bits the key strength
+     * @param iv the IV, or null
+     * @return the engine
+     */
+    private CryptEngine createEngine(final String key, final int bits, final String iv) {
+        final CryptEngine engine = new CryptEngine(key, bits, iv);
+        if (profile != null) {
+            profile.apply(engine);
+        }
+        engine.setFormat(format);
+        engine.setCodec(codec);
+        for (final String recipient : recipients) {
+            engine.addRecipient(recipient, bits, null);
+        }
+        engine.setSegmentSize(segmentSize);
+        if (bufferSize > 0) {
+            engine.setBufferSize(bufferSize);
+        }
+        if (pool != null) {
+            engine.setPool(pool);
+        }
+        if (range != null) {
+            engine.setRange(range[0], range[1]);
+        }
+        if (method == CryptMethod.REKEY) {
+            engine.setNewKey(newKey, newBits, newIV);
+            engine.setRekeyFormat(formatSet ? format : null);
+            engine.setAssumeOld(assumeOld);
+        }
+        return engine;
+    }
+
+    /**
+     * Calibrate this host and save the profile.
+     *
+     * @return the exit status
+     */
+    private int calibrate() {
+        final CryptProfile calibrated;
+        try {
+            calibrated = CryptCalibrator.calibrate(calibrate, quiet ? null : System.out::println);
+            calibrated.save();
+        } catch (final IOException ex) {
+            System.err.printf("Cannot calibrate %s: %s%n", calibrate, ex.getMessage());
+            return 1;
+        }
+        if (!quiet) {
+            System.out.printf("Saved to %s%n%s%n", CryptProfile.getFile(), calibrated);
+        }
+        return 0;
+    }
+
+    /**
+     * Print the profile of this host.
+     *
+     * @return the exit status
+     */
+    private int showProfile() {
+        final CryptProfile loaded = CryptProfile.load();
+        if (loaded == null) {
+            System.out.printf("This host has not been calibrated. Use --calibrate to save a profile to %s.%n", CryptProfile.getFile());
+            return 1;
+        }
+        System.out.printf("%s%n%s%n", CryptProfile.getFile(), loaded);
+        return 0;
+    }
+
+    /**
+     * Serve requests until the process is terminated.
+     *
+     * @return the exit status
+     */
+    private int serve() {
+        final int colon = serve.lastIndexOf(':');
+        final String host = colon < 0 ? InetAddress.getLoopbackAddress().getHostAddress() : serve.substring(0, colon);
+        final int port;
+        try {
+            port = Integer.parseInt(serve.substring(colon + 1));
+        } catch (final NumberFormatException ex) {
+            System.err.printf("Illegal port: %s%n", serve);
+            return 2;
+        }
+        final CryptServer server;
+        try {
+            server = new CryptServer(new InetSocketAddress(host, port), this::createEngine, key, bits, iv);
+        } catch (final IOException ex) {
+            System.err.printf("Cannot listen on %s: %s%n", serve, ex.getMessage());
+            return 1;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+        server.start();
+        if (!quiet) {
+            System.out.printf("Listening on http://%s:%d/%n", server.getAddress().getHostString(), server.getAddress().getPort());
+        }
+        while (true) {
+            try {
+                Thread.sleep(Long.MAX_VALUE);
+            } catch (final InterruptedException ex) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Pack the files into an archive. The archive is replaced only if every file has been packed.
+     *
+     * @return the exit status
+     */
+    private int pack() {
+        if (pack.exists() && (pack.isDirectory() || !force)) {
+            System.err.printf("%s: The archive exists. Use --force to overwrite it.%n", pack);
+            return 1;
+        }
+        final CryptArchive archive = createEngine(key, bits, iv).newArchive();
+        try (final CryptArchive.Writer writer = archive.create(pack)) {
+            for (final String pattern : patterns) {
+                if (pattern.equals("-")) {
+                    final BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        line = line.trim();
+                        if (line.length() > 0) {
+                            packPattern(writer, line);
+                        }
+                    }
+                } else {
+                    packPattern(writer, pattern);
+                }
+            }
+            writer.finish();
+            if (!quiet) {
+                System.out.printf("Packed %d files into %s%n", writer.getCount(), pack);
+            }
+            return 0;
+        } catch (final IOException | RuntimeException ex) {
+            System.err.printf("%s: %s%n", pack, ex.getMessage() != null ? ex.getMessage() : ex.toString());
+            return 1;
+        }
+    }
+
+    /**
+     * Pack the files matched by a path or a glob pattern. A directory is walked lazily.
+     *
+     * @param writer the writer of the archive
+     * @param pattern the path or the glob pattern
+     * @throws IOException if an I/O error occurs, or no files match
+     */
+    private void packPattern(final CryptArchive.Writer writer, final String pattern) throws IOException {
+        if (!isGlob(pattern) && new File(pattern).isDirectory()) {
+            writer.addTree(new File(pattern));
+            return;
+        }
+        final List<File> sources = expand(pattern);
+        if (sources.isEmpty()) {
+            throw new IOException(String.format("%s: No files match.", pattern));
+        }
+        final File base = baseOf(pattern);
+        for (final File source : sources) {
+            final Path path = source.toPath().toAbsolutePath().normalize();
+            if (!Files.isRegularFile(path)) {
+                throw new IOException(String.format("%s: Not a file.", source));
+            }
+            writer.add(base == null ? source.getName() : base.toPath().relativize(path).toString(), path.toFile());
+        }
+    }
+
+    /**
+     * List the members of an archive.
+     *
+     * @return the exit status
+     */
+    private int list() {
+        try (final CryptArchive.Reader reader = createEngine(key, bits, iv).newArchive().open(list)) {
+            reader.forEach(entry -> System.out.printf("%14d  %tF %<tT  %s%n", entry.getSize(), entry.getModified(), entry.getName()));
+            return 0;
+        } catch (final IOException ex) {
+            System.err.printf("%s: %s%n", list, ex.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * Extract the members named by the arguments, or all members, from an archive. If several members have the same name, the last one is extracted.
+     *
+     * @return the exit status
+     */
+    private int extract() {
+        final File directory = output != null ? output : new File(".").getAbsoluteFile();
+        try (final CryptArchive.Reader reader = createEngine(key, bits, iv).newArchive().open(extract)) {
+            final Map<String, CryptArchive.Entry> wanted = new LinkedHashMap<>();
+            for (final String name : patterns) {
+                wanted.put(name.replace(File.separatorChar, '/'), null);
+            }
+            final CryptArchive.Visitor extractor = entry -> {
+                final File destination = CryptArchive.resolve(directory, entry.getName());
+                if (destination.exists() && (destination.isDirectory() || !force)) {
+                    throw new IOException(String.format("%s: The destination file exists. Use --force to overwrite it.", destination));
+                }
+                reader.extract(entry, destination);
+                succeeded.incrementAndGet();
+                if (!quiet) {
+                    System.out.printf("Extracted: %s -> %s%n", entry.getName(), destination);
+                }
+            };
+            if (wanted.isEmpty()) {
+                reader.forEach(extractor);
+            } else {
+                reader.forEach(entry -> {
+                    if (wanted.containsKey(entry.getName())) {
+                        wanted.put(entry.getName(), entry);
+                    }
+                });
+                for (final Map.Entry<String, CryptArchive.Entry> e : wanted.entrySet()) {
+                    if (e.getValue() == null) {
+                        System.err.printf("%s: No such member.%n", e.getKey());
+                        failed.incrementAndGet();
+                    } else {
+                        extractor.visit(e.getValue());
+                    }
+                }
+            }
+        } catch (final IOException ex) {
+            System.err.printf("%s: %s%n", extract, ex.getMessage());
+            failed.incrementAndGet();
+        }
+        if (!quiet) {
+            System.out.printf("%d succeeded, %d failed.%n", succeeded.get(), failed.get());
+        }
+        return failed.get() == 0 ? 0 : 1;
+    }
+
+    /**
+     * Handle all files. The engine is constructed only once for all of them.
+     *
+     * @return the exit status
+     */
+    private int run() {
+        if (output != null && !output.isDirectory() && !output.mkdirs()) {
+            System.err.printf("Cannot create the output directory: %s%n", output);
+            return 1;
+        }
+
+        final CryptEngine engine = createEngine(key, bits, iv);
+        if (incremental) {
+            manifest = CryptManifest.open(output, engine.getSettings(method));
+        }
+        final CryptQueue queue = new CryptQueue(jobs > 0 ? jobs : adaptive ? ADAPTIVE_JOBS : 1);
+        queue.setAdaptive(adaptive);
+        queue.setKeepDone(false);
+        queue.setOnDone(job -> {
+            if (manifest != null) {
+                if (job.getState() == CryptJob.State.FINISHED) {
+                    manifest.commit(job.getDestination());
+                } else if (job.getState() != CryptJob.State.UNCHANGED) {
+                    manifest.discard(job.getDestination());
+                }
+            }
+            if (job.getState() == CryptJob.State.UNCHANGED) {
+                unchanged.incrementAndGet();
+            } else if (job.getState() == CryptJob.State.FINISHED) {
+                succeeded.incrementAndGet();
+                if (!quiet) {
+                    if (job.getDestination() == null) {
+                        System.out.printf("%s: %s%n", job.getUsedMethod().getDoneText(), job.getSource());
+                    } else {
+                        System.out.printf("%s: %s -> %s%n", job.getUsedMethod().getDoneText(), job.getSource(), job.getDestination());
+                    }
+                }
+            } else {
+                failed.incrementAndGet();
+                System.err.printf("%s: %s%n", job.getSource(), job.getMessage());
+            }
+        });
+
+        for (final String pattern : patterns) {
+            if (pattern.equals("-")) {
+                try (final BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        line = line.trim();
+                        if (line.length() > 0) {
+                            handlePattern(queue, engine, line);
+                        }
+                    }
+                } catch (final IOException ex) {
+                    System.err.printf("Cannot read the standard input: %s%n", ex.getMessage());
+                    failed.incrementAndGet();
+                }
+            } else {
+                handlePattern(queue, engine, pattern);
+            }
+        }
+
+        try {
+            queue.awaitIdle();
+        } catch (final InterruptedException ex) {
+            queue.cancelAll();
+            return 1;
+        }
+
+        if (!ambiguous.isEmpty()) {
+            System.err.printf("%d files can be decrypted with both keys, so it is not known which key they are encrypted with. Use --assume-old to re-key them if none of them can be encrypted with the new key:%n", ambiguous.size());
+            for (final File file : ambiguous) {
+                System.err.printf("  %s%n", file);
+            }
+            failed.addAndGet(ambiguous.size());
+        }
+
+        int pruned = 0;
+        if (manifest != null) {
+            for (final File destination : manifest.prune()) {
+                ++pruned;
+                if (!quiet) {
+                    System.out.printf("Pruned: %s%n", destination);
+                }
+            }
+            try {
+                manifest.save();
+            } catch (final IOException ex) {
+                System.err.printf("Cannot save the manifest: %s%n", ex.getMessage());
+                failed.incrementAndGet();
+            }
+        }
+
+        if (!quiet) {
+            for (final CryptQueue.Concurrency concurrency : queue.getConcurrency()) {
+                System.out.printf("Parallel jobs on %s%n", concurrency);
+            }
+            if (manifest != null) {
+                System.out.printf("%d succeeded, %d unchanged, %d pruned, %d failed.%n", succeeded.get(), unchanged.get(), pruned, failed.get());
+            } else if (method == CryptMethod.REKEY) {
+                System.out.printf("%d succeeded, %d unchanged, %d failed.%n", succeeded.get(), unchanged.get(), failed.get());
+            } else {
+                System.out.printf("%d succeeded, %d failed.%n", succeeded.get(), failed.get());
+            }
+        }
+        return failed.get() == 0 ? 0 : 1;
+    }
+
+    /**
+     * Add the jobs of the files matched by a path or a glob pattern.
+     *
+     * @param queue the queue
+     * @param engine the engine
+     * @param pattern the path or the glob pattern
+     */
+    private void handlePattern(final CryptQueue queue, final CryptEngine engine, final String pattern) {
+        final List<File> sources;
+        try {
+            sources = expand(pattern);
+        } catch (final IOException ex) {
+            System.err.printf("%s: %s%n", pattern, ex.getMessage());
+            failed.incrementAndGet();
+            return;
+        }
+        if (sources.isEmpty()) {
+            System.err.printf("%s: No files match.%n", pattern);
+            failed.incrementAndGet();
+            return;
+        }
+        final File base = baseOf(pattern);
+        for (final File source : sources) {
+            if (!addFile(queue, engine, base, source.toPath().toAbsolutePath().normalize().toFile())) {
+                failed.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Get the destination file of a source file.
+     *
+     * @param base the base directory whose tree is mirrored to the output directory, or null
+     * @param source the source file
+     * @return the destination file
+     */
+    private File destinationOf(final File base, final File source) {
+        final String name = source.getName();
+        final boolean suffixed = suffix.length() > 0 && name.length() > suffix.length() && name.endsWith(suffix);
+        final String destinationName;
+        switch (method) {
+            case ENCRYPT:
+                destinationName = name + suffix;
+                break;
+            case DECRYPT:
+                destinationName = suffixed ? name.substring(0, name.length() - suffix.length()) : name;
+                break;
+            case REKEY:
+                destinationName = name;
+                break;
+            default:
+                destinationName = suffixed ? name.substring(0, name.length() - suffix.length()) : name + suffix;
+        }
+        final File directory;
+        if (output == null) {
+            directory = source.getParentFile();
+        } else if (base == null) {
+            directory = output;
+        } else {
+            directory = CryptQueue.mirror(base, source.getParentFile(), output);
+        }
+        return new File(directory, destinationName);
+    }
+
+    /**
+     * Add the job of a file.
+     *
+     * @param queue the queue
+     * @param engine the engine
+     * @param base the base directory whose tree is mirrored to the output directory, or null
+     * @param source the source file
+     * @return false if the file cannot be handled
+     */
+    private boolean addFile(final CryptQueue queue, final CryptEngine engine, final File base, final File source) {
+        if (!source.isFile()) {
+            System.err.printf("%s: Not a file.%n", source);
+            return false;
+        }
+        if (method == CryptMethod.VERIFY) {
+            queue.add(engine, method, source, null);
+            return true;
+        }
+        final File destination = destinationOf(base, source);
+        if (method == CryptMethod.REKEY) {
+            try {
+                switch (engine.matchRekeyKey(source)) {
+                    case NEW_KEY:
+                        unchanged.incrementAndGet();
+                        return true;
+                    case AMBIGUOUS:
+                        if (!assumeOld) {
+                            ambiguous.add(source);
+                            return true;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            } catch (final IOException ex) {
+                System.err.printf("%s: %s%n", source, ex.getMessage());
+                return false;
+            }
+            if (destination.equals(source)) {
+                queue.add(engine, method, source, destination);
+                return true;
+            }
+        }
+        if (destination.equals(source)) {
+            System.err.printf("%s: The destination and source files must be different. Use another suffix or output directory.%n", source);
+            return false;
+        }
+        if (manifest != null && manifest.isUpToDate(source, destination)) {
+            unchanged.incrementAndGet();
+            return true;
+        }
+        if (destination.exists() && (destination.isDirectory() || !force && (manifest == null || !manifest.contains(destination)))) {
+            System.err.printf("%s: The destination file exists. Use --force to overwrite it.%n", destination);
+            return false;
+        }
+        queue.add(engine, method, source, destination, manifest);
+        return true;
+    }
+}
@@ -0,0 +1,662 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import javax.crypto.Cipher;
+import org.magiclen.crypttool.lib.AuthenticatedCrypt;
+import org.magiclen.crypttool.lib.ChannelCrypt;
+import org.magiclen.crypttool.lib.Checkpoint;
+import org.magiclen.crypttool.lib.Codec;
+import org.magiclen.crypttool.lib.CompressedCrypt;
+import org.magiclen.crypttool.lib.CryptArchive;
+import org.magiclen.crypttool.lib.CryptDetector;
+import org.magiclen.crypttool.lib.CryptFormat;
+import org.magiclen.crypttool.lib.CryptHeader;
+import org.magiclen.crypttool.lib.CryptJournal;
+import org.magiclen.crypttool.lib.CryptKey;
+import org.magiclen.crypttool.lib.DecryptingChannel;
+import org.magiclen.crypttool.lib.EnvelopeCrypt;
+import org.magiclen.crypttool.lib.FileChannels;
+import org.magiclen.crypttool.lib.ParallelCBCDecryptor;
+import org.magiclen.crypttool.lib.PipelinedCrypt;
+import org.magiclen.crypttool.lib.RekeyCrypt;
+import org.magiclen.crypttool.lib.SegmentedCrypt;
+import org.magiclen.magiccrypt.lib.Crypt;
+
+/**
+ * The engine which encrypts or decrypts files for the GUI and the command line.
+ *
+ * @author Magic Len
+ */
+public class CryptEngine {
+
+    // -----Class Constant-----
+    /**
+     * The suffix of the hidden files which receive the output before they are complete.
+     */
+    public static final String PART_SUFFIX = ".part";
+    /**
+     * The suffix of the hidden files which record the progress of part files.
+     */
+    public static final String JOURNAL_SUFFIX = ".journal";
+
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    // -----Object Constant-----
+    private final CryptKey cryptKey;
+
+    // -----Object Variable-----
+    private CryptFormat format = CryptFormat.CLASSIC;
+    private Codec codec = Codec.NONE;
+    private int segmentSize = SegmentedCrypt.DEFAULT_SEGMENT_SIZE;
+    private int bufferSize = ChannelCrypt.DEFAULT_BUFFER_SIZE;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private long rangeOffset = -1, rangeLength = -1;
+    private CryptKey newKey;
+    private final List<CryptKey> recipients = new ArrayList<>();
+    private CryptFormat rekeyFormat;
+    private boolean assumeOld;
+
+    // -----Constructor-----
+    /**
+     * Construct an engine. The key and the IV are trimmed in the same way as the GUI does.
+     *
+     * @param key the key
+     * @param bits the key strength, 64, 128, 192 or 256
+     * @param iv the IV, or null or an empty string to use the zero IV
+     */
+    public CryptEngine(final String key, final int bits, final String iv) {
+        final String k = key == null ? null : key.trim();
+        final String i = iv == null || iv.length() == 0 ? null : iv.trim();
+        cryptKey = new CryptKey(k, bits, i);
+    }
+
+    // -----Object Method-----
+    /**
+     * Set the format used to encrypt files. Files are always decrypted in the format they are in.
+     *
+     * @param format the format
+     */
+    public void setFormat(final CryptFormat format) {
+        if (format == CryptFormat.ARCHIVE) {
+            throw new RuntimeException("Archives are made by packing files, not by encrypting a file.");
+        }
+        this.format = format;
+    }
+
+    /**
+     * Set the codec which compresses files before they are encrypted in the segmented or authenticated format. Compressed files are decompressed automatically when they are decrypted, but their jobs cannot be resumed.
+     *
+     * @param codec the codec
+     */
+    public void setCodec(final Codec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Set the segment size used to encrypt files in the segmented format, which is also the chunk size of the authenticated format.
+     *
+     * @param segmentSize the segment size in bytes, which must be a multiple of 16
+     */
+    public void setSegmentSize(final int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Set the buffer size used to encrypt files in the classic format.
+     *
+     * @param bufferSize the buffer size in bytes
+     */
+    public void setBufferSize(final int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Set the pool which runs the segments of files in the segmented format and the ranges of files in the classic format when they are decrypted.
+     *
+     * @param pool the pool
+     */
+    public void setPool(final ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Set the JCE provider of a transformation, such as AES/CBC/PKCS5Padding.
+     *
+     * @param transformation the transformation
+     * @param provider the name of the provider, or null to use the most preferred provider
+     */
+    public void setProvider(final String transformation, final String provider) {
+        cryptKey.setProvider(transformation, provider);
+    }
+
+    /**
+     * Decrypt only a range of bytes of files, instead of the whole files. Files in the classic, segmented and authenticated formats can be read at any position, so the time is proportional to the range rather than to the size of the file. The range is ignored when files are encrypted.
+     *
+     * @param offset the offset of the range in the plaintext, or -1 to decrypt whole files
+     * @param length the length of the range, or -1 to read to the end of the file
+     */
+    public void setRange(final long offset, final long length) {
+        this.rangeOffset = offset;
+        this.rangeLength = length;
+    }
+
+    /**
+     * Add a recipient of files encrypted in the envelope format. The key of the engine is always the first recipient. The key and the IV are trimmed in the same way as the key of the engine.
+     *
+     * @param key the key of the recipient
+     * @param bits the strength of the key, 64, 128, 192 or 256
+     * @param iv the IV, or null or an empty string to use the zero IV
+     */
+    public void addRecipient(final String key, final int bits, final String iv) {
+        final String k = key == null ? null : key.trim();
+        final String i = iv == null || iv.length() == 0 ? null : iv.trim();
+        recipients.add(new CryptKey(k, bits, i));
+    }
+
+    /**
+     * Set the new key which {@link CryptMethod#REKEY} encrypts files with. The key and the IV are trimmed in the same way as the key of the engine.
+     *
+     * @param key the new key
+     * @param bits the strength of the new key, 64, 128, 192 or 256
+     * @param iv the new IV, or null or an empty string to use the zero IV
+     */
+    public void setNewKey(final String key, final int bits, final String iv) {
+        final String k = key == null ? null : key.trim();
+        final String i = iv == null || iv.length() == 0 ? null : iv.trim();
+        newKey = new CryptKey(k, bits, i);
+    }
+
+    /**
+     * Set the format which {@link CryptMethod#REKEY} writes files in. The segment size of the engine is used for the segmented and authenticated formats.
+     *
+     * @param rekeyFormat the format, or null to keep the format and the segment size of every file
+     */
+    public void setRekeyFormat(final CryptFormat rekeyFormat) {
+        if (rekeyFormat == CryptFormat.ARCHIVE || rekeyFormat == CryptFormat.ENVELOPE) {
+            throw new RuntimeException(String.format("Files cannot be re-keyed into the %s format.", rekeyFormat.toString().toLowerCase()));
+        }
+        this.rekeyFormat = rekeyFormat;
+    }
+
+    /**
+     * Set whether {@link CryptMethod#REKEY} takes files in the classic format which match both keys as encrypted with the key of the engine.
+     *
+     * @param assumeOld true to re-key such files, or false to reject them
+     * @see RekeyCrypt#setAssumeOld(boolean)
+     */
+    public void setAssumeOld(final boolean assumeOld) {
+        this.assumeOld = assumeOld;
+    }
+
+    /**
+     * Check whether a file is encrypted with the new key already, so that it can be skipped by {@link CryptMethod#REKEY}.
+     *
+     * @param source the encrypted file
+     * @return true if the file is encrypted with the new key, or false if it is encrypted with the key of the engine
+     * @throws IOException if an I/O error occurs, or the file is encrypted with neither key or the key cannot be told
+     */
+    public boolean isRekeyed(final File source) throws IOException {
+        return newRekeyCrypt().isRekeyed(source);
+    }
+
+    /**
+     * Find whether a file is encrypted with the key of the engine or with the new key of {@link CryptMethod#REKEY}.
+     *
+     * @param source the encrypted file
+     * @return the key, or {@link RekeyCrypt.KeyMatch#AMBIGUOUS} if it cannot be told
+     * @throws IOException if an I/O error occurs, or the file is encrypted with neither key
+     */
+    public RekeyCrypt.KeyMatch matchRekeyKey(final File source) throws IOException {
+        return newRekeyCrypt().matchKey(source);
+    }
+
+    private RekeyCrypt newRekeyCrypt() {
+        if (newKey == null) {
+            throw new RuntimeException("The rekey method needs a new key.");
+        }
+        final RekeyCrypt rekeyCrypt = new RekeyCrypt(cryptKey, newKey, rekeyFormat, segmentSize);
+        rekeyCrypt.setAssumeOld(assumeOld);
+        return rekeyCrypt;
+    }
+
+    /**
+     * Open a read-only channel over the plaintext of an encrypted file, which can be read at any position.
+     *
+     * @param source the encrypted file
+     * @return the channel, which must be closed
+     * @throws IOException if an I/O error occurs, or the file cannot be read at random positions or does not match the key
+     */
+    public DecryptingChannel openChannel(final File source) throws IOException {
+        return DecryptingChannel.open(cryptKey, source);
+    }
+
+    /**
+     * Create an archive helper with the key of this engine. The segment size is the chunk size of new archives.
+     *
+     * @return the archive helper
+     */
+    public CryptArchive newArchive() {
+        return new CryptArchive(cryptKey, segmentSize);
+    }
+
+    /**
+     * Encrypt or decrypt a file. The output is written to a hidden part file next to the destination file, and it replaces the destination file atomically only when it is complete, so the destination file is never partial. The progress is recorded in a journal next to the part file, so if the process dies, running the same job again resumes from the last record. A job which is stopped by the listener or fails is discarded.
+     *
+     * @param method the method
+     * @param source the source file
+     * @param destination the destination file, which is ignored by {@link CryptMethod#VERIFY}, and which can be the source file for {@link CryptMethod#REKEY}
+     * @param listener the listener, or null
+     * @return {@link CryptMethod#ENCRYPT}, {@link CryptMethod#DECRYPT}, {@link CryptMethod#VERIFY} or {@link CryptMethod#REKEY}, the method actually used
+     * @throws IOException if an I/O error occurs
+     * @throws CancellationException if the job is stopped by the listener
+     */
+    public CryptMethod crypt(final CryptMethod method, final File source, final File destination, final Crypt.CryptListener listener) throws IOException {
+        final CryptMetrics.Operation operation = CryptMetrics.start(CryptMetrics.Kind.FILE, method, cryptKey.getBits());
+        try {
+            operation.setSize(source.length());
+            final CryptMethod used = resolve(method, source, operation);
+            operation.setUsedMethod(used);
+            if (used == CryptMethod.ENCRYPT) {
+                operation.setFormat(format, codec);
+            } else {
+                final CryptHeader header = CryptHeader.read(source);
+                operation.setFormat(header == null ? CryptFormat.CLASSIC : header.getFormat(), header == null ? Codec.NONE : header.getCodec());
+            }
+            handle(used, source, destination, listener);
+            return used;
+        } catch (final Throwable ex) {
+            operation.fail(ex);
+            throw ex;
+        } finally {
+            operation.finish();
+        }
+    }
+
+    private void handle(final CryptMethod used, final File source, final File destination, final Crypt.CryptListener listener) throws IOException {
+        if (used == CryptMethod.VERIFY) {
+            verify(source, listener);
+            return;
+        }
+        final File directory = destination.getAbsoluteFile().getParentFile();
+        final File part = new File(directory, "." + destination.getName() + PART_SUFFIX);
+        if (used == CryptMethod.REKEY || used == CryptMethod.DECRYPT && rangeOffset >= 0) {
+            final StopListener stopListener = new StopListener(listener);
+            boolean complete = false;
+            try {
+                if (used == CryptMethod.REKEY) {
+                    newRekeyCrypt().rekey(source, part, stopListener);
+                } else {
+                    decryptRange(source, part, stopListener);
+                }
+                if (stopListener.stopped) {
+                    throw new CancellationException("The job has been stopped.");
+                }
+                FileChannels.move(part, destination);
+                complete = true;
+            } finally {
+                if (!complete) {
+                    part.delete();
+                }
+            }
+            return;
+        }
+        final CryptJournal journal = CryptJournal.open(new File(directory, "." + destination.getName() + JOURNAL_SUFFIX), identity(used, source, destination), part);
+        final StopListener stopListener = new StopListener(listener);
+        boolean complete = false;
+        try {
+            if (used == CryptMethod.ENCRYPT) {
+                encrypt(source, part, stopListener, journal);
+            } else {
+                decrypt(source, part, stopListener, journal);
+            }
+            if (stopListener.stopped) {
+                throw new CancellationException("The job has been stopped.");
+            }
+            FileChannels.move(part, destination);
+            complete = true;
+        } finally {
+            if (!complete) {
+                part.delete();
+            }
+            journal.delete();
+        }
+    }
+
+    /**
+     * Encrypt a stream in the classic format, which is the same as the text tab and MagicCrypt. The data is streamed, so it is never held in memory as a whole.
+     *
+     * @param in the plaintext
+     * @param out the stream to write the ciphertext to, which is not closed
+     * @throws IOException if an I/O error occurs
+     */
+    public void encrypt(final InputStream in, final OutputStream out) throws IOException {
+        crypt(Cipher.ENCRYPT_MODE, in, out);
+    }
+
+    /**
+     * Decrypt a stream in the classic format, which is the same as the text tab and MagicCrypt. The data is streamed, so the plaintext before the last block has been written when the padding is found incorrect.
+     *
+     * @param in the ciphertext
+     * @param out the stream to write the plaintext to, which is not closed
+     * @throws IOException if an I/O error occurs, or the data does not match the key
+     */
+    public void decrypt(final InputStream in, final OutputStream out) throws IOException {
+        crypt(Cipher.DECRYPT_MODE, in, out);
+    }
+
+    private void crypt(final int opmode, final InputStream in, final OutputStream out) throws IOException {
+        final CryptMethod method = opmode == Cipher.ENCRYPT_MODE ? CryptMethod.ENCRYPT : CryptMethod.DECRYPT;
+        final CryptMetrics.Operation operation = CryptMetrics.start(CryptMetrics.Kind.TEXT, method, cryptKey.getBits());
+        operation.setUsedMethod(method);
+        operation.setFormat(CryptFormat.CLASSIC, Codec.NONE);
+        long size = 0;
+        try {
+            final Cipher cipher;
+            try {
+                cipher = cryptKey.getCipher(opmode);
+            } catch (final GeneralSecurityException ex) {
+                throw new RuntimeException(ex.getMessage());
+            }
+            final byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            final byte[] output = new byte[cipher.getOutputSize(buffer.length)];
+            try {
+                int c;
+                while ((c = in.read(buffer)) >= 0) {
+                    size += c;
+                    out.write(output, 0, cipher.update(buffer, 0, c, output));
+                }
+                out.write(output, 0, cipher.doFinal(output, 0));
+            } catch (final GeneralSecurityException ex) {
+                throw new IOException("The key is incorrect or the data is damaged.");
+            }
+        } catch (final Throwable ex) {
+            operation.fail(ex);
+            throw ex;
+        } finally {
+            operation.setSize(size);
+            operation.finish();
+        }
+    }
+
+    /**
+     * Verify a file in the segmented, authenticated or envelope format, or an archive. Every segment or chunk is read and checked in memory, and compressed files are decompressed in memory too, but nothing is written. Files in the classic format have nothing to check against, so they cannot be verified.
+     *
+     * @param source the encrypted file
+     * @param listener the listener, or null
+     * @throws IOException if an I/O error occurs, or the file is damaged or does not match the key
+     * @throws CancellationException if the job is stopped by the listener
+     */
+    public void verify(final File source, final Crypt.CryptListener listener) throws IOException {
+        final CryptHeader header = CryptHeader.read(source);
+        if (header == null) {
+            throw new IOException("The file has no header, so it is not encrypted or is in the classic format, which cannot be verified.");
+        }
+        final StopListener stopListener = new StopListener(listener);
+        if (header.getCodec() != Codec.NONE) {
+            new CompressedCrypt(cryptKey, header.getFormat(), header.getCodec(), segmentSize).verify(source, stopListener);
+        } else {
+            switch (header.getFormat()) {
+                case SEGMENTED:
+                    new SegmentedCrypt(cryptKey, segmentSize, pool).verify(source, stopListener);
+                    break;
+                case AUTHENTICATED:
+                    new AuthenticatedCrypt(cryptKey, segmentSize, pool).verify(source, stopListener);
+                    break;
+                case ARCHIVE:
+                    try (final CryptArchive.Reader reader = newArchive().open(source)) {
+                        reader.verify(stopListener);
+                    }
+                    break;
+                case ENVELOPE:
+                    new EnvelopeCrypt(Collections.singletonList(cryptKey), segmentSize, pool).verify(source, stopListener);
+                    break;
+                default:
+                    throw new IOException(String.format("Unsupported format: %s", header.getFormat()));
+            }
+        }
+        if (stopListener.stopped) {
+            throw new CancellationException("The job has been stopped.");
+        }
+    }
+
+    /**
+     * Decide the method actually used.
+     *
+     * @param method the method
+     * @param source the source file
+     * @param operation the operation which records the result of auto-detection
+     * @return {@link CryptMethod#ENCRYPT}, {@link CryptMethod#DECRYPT}, {@link CryptMethod#VERIFY} or {@link CryptMethod#REKEY}
+     * @throws IOException if an I/O error occurs, or the source file is encrypted with another key
+     */
+    private CryptMethod resolve(final CryptMethod method, final File source, final CryptMetrics.Operation operation) throws IOException {
+        switch (method) {
+            case AUTO:
+                final CryptDetector.Result result = CryptDetector.detect(cryptKey, source);
+                operation.setDetection(result);
+                switch (result) {
+                    case PLAINTEXT:
+                        return CryptMethod.ENCRYPT;
+                    case KEY_MISMATCH:
+                        throw new IOException("The file is encrypted, but the key is incorrect.");
+                    default:
+                        return CryptMethod.DECRYPT;
+                }
+            case REKEY:
+                newRekeyCrypt();
+                return method;
+            case ENCRYPT:
+            case DECRYPT:
+            case VERIFY:
+                return method;
+            default:
+                throw new RuntimeException(String.format("Unsupported method: %s", method));
+        }
+    }
+
+    /**
+     * Describe what an output is made of, so that a journal is not used to resume a different job.
+     *
+     * @param method the method actually used
+     * @param source the source file
+     * @param destination the destination file
+     * @return the identity
+     */
+    private Properties identity(final CryptMethod method, final File source, final File destination) {
+        final Properties identity = getSettings(method);
+        identity.setProperty("source", source.getAbsolutePath());
+        identity.setProperty("source.size", Long.toString(source.length()));
+        identity.setProperty("source.modified", Long.toString(source.lastModified()));
+        identity.setProperty("destination", destination.getAbsolutePath());
+        return identity;
+    }
+
+    /**
+     * Describe the settings which make the output of a method, so that outputs made with other settings can be told apart.
+     *
+     * @param method the method actually used
+     * @return the settings
+     */
+    Properties getSettings(final CryptMethod method) {
+        final Properties settings = new Properties();
+        settings.setProperty("method", method.name());
+        settings.setProperty("format", method == CryptMethod.ENCRYPT ? format.name() : "");
+        settings.setProperty("codec", method == CryptMethod.ENCRYPT ? codec.name() : "");
+        settings.setProperty("segment.size", Integer.toString(segmentSize));
+        settings.setProperty("range.size", Integer.toString(ParallelCBCDecryptor.DEFAULT_RANGE_SIZE));
+        settings.setProperty("bits", Integer.toString(cryptKey.getBits()));
+        settings.setProperty("key.check", Base64.getEncoder().encodeToString(cryptKey.getKeyCheck()));
+        if (method == CryptMethod.ENCRYPT && format == CryptFormat.ENVELOPE) {
+            final StringBuilder checks = new StringBuilder();
+            for (final CryptKey recipient : recipients) {
+                checks.append(Base64.getEncoder().encodeToString(recipient.getKeyCheck())).append(' ');
+            }
+            settings.setProperty("recipients", checks.toString().trim());
+        }
+        try {
+            settings.setProperty("iv.check", Base64.getEncoder().encodeToString(Arrays.copyOf(MessageDigest.getInstance("SHA-256").digest(cryptKey.getIV()), CryptKey.KEY_CHECK_SIZE)));
+        } catch (final GeneralSecurityException ex) {
+            throw new RuntimeException(ex.getMessage());
+        }
+        return settings;
+    }
+
+    private void encrypt(final File source, final File destination, final Crypt.CryptListener listener, final Checkpoint checkpoint) throws IOException {
+        if (codec != Codec.NONE) {
+            new CompressedCrypt(cryptKey, format, codec, segmentSize).encrypt(source, destination, listener);
+            return;
+        }
+        switch (format) {
+            case SEGMENTED:
+                new SegmentedCrypt(cryptKey, segmentSize, pool).encrypt(source, destination, listener, checkpoint);
+                break;
+            case AUTHENTICATED:
+                new AuthenticatedCrypt(cryptKey, segmentSize, pool).encrypt(source, destination, listener, checkpoint);
+                break;
+            case ENVELOPE:
+                final List<CryptKey> keys = new ArrayList<>();
+                keys.add(cryptKey);
+                keys.addAll(recipients);
+                new EnvelopeCrypt(keys, segmentSize, pool).encrypt(source, destination, listener);
+                break;
+            default:
+                new PipelinedCrypt(cryptKey, bufferSize).encrypt(source, destination, listener, checkpoint);
+        }
+    }
+
+    private void decrypt(final File source, final File destination, final Crypt.CryptListener listener, final Checkpoint checkpoint) throws IOException {
+        final CryptHeader header = CryptHeader.read(source);
+        if (header == null) {
+            new ParallelCBCDecryptor(cryptKey, ParallelCBCDecryptor.DEFAULT_RANGE_SIZE, pool).decrypt(source, destination, listener, checkpoint);
+            return;
+        }
+        if (header.getCodec() != Codec.NONE) {
+            new CompressedCrypt(cryptKey, header.getFormat(), header.getCodec(), segmentSize).decrypt(source, destination, listener);
+            return;
+        }
+        switch (header.getFormat()) {
+            case SEGMENTED:
+                new SegmentedCrypt(cryptKey, segmentSize, pool).decrypt(source, destination, listener, checkpoint);
+                break;
+            case AUTHENTICATED:
+                new AuthenticatedCrypt(cryptKey, segmentSize, pool).decrypt(source, destination, listener, checkpoint);
+                break;
+            case ENVELOPE:
+                new EnvelopeCrypt(Collections.singletonList(cryptKey), segmentSize, pool).decrypt(source, destination, listener);
+                break;
+            case ARCHIVE:
+                throw new IOException("The file is an archive, whose members are extracted rather than decrypted.");
+            default:
+                throw new IOException(String.format("Unsupported format: %s", header.getFormat()));
+        }
+    }
+
+    /**
+     * Decrypt the range of a file. It is short, so it is not journaled.
+     *
+     * @param source the encrypted file
+     * @param destination the file to save the plaintext of the range
+     * @param listener the listener, or null
+     * @throws IOException if an I/O error occurs, or the range starts after the end of the file
+     * @throws CancellationException if the job is stopped by the listener
+     */
+    private void decryptRange(final File source, final File destination, final Crypt.CryptListener listener) throws IOException {
+        try (final DecryptingChannel in = openChannel(source);
+                final FileChannel out = FileChannel.open(destination.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final long size = in.size();
+            if (rangeOffset > size) {
+                throw new IOException(String.format("The range starts after the end of the file, whose size is %d bytes.", size));
+            }
+            final long total = rangeLength < 0 ? size - rangeOffset : Math.min(rangeLength, size - rangeOffset);
+            if (listener != null) {
+                listener.onStarted(total);
+            }
+            in.position(rangeOffset);
+            final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(STREAM_BUFFER_SIZE * 16, Math.max(1, total)));
+            long done = 0;
+            while (done < total) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), total - done));
+                in.read(buffer);
+                buffer.flip();
+                done += buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                if (listener != null && !listener.onRunning(done, total)) {
+                    throw new CancellationException("The job has been stopped.");
+                }
+            }
+            if (listener != null) {
+                listener.onFinished(done, total);
+            }
+        }
+    }
+
+    // -----Inner Class-----
+    /**
+     * A listener which remembers whether the job has been stopped by the listener it wraps.
+     */
+    private static final class StopListener implements Crypt.CryptListener {
+
+        private final Crypt.CryptListener listener;
+        private volatile boolean stopped;
+
+        private StopListener(final Crypt.CryptListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onStarted(final long totalBytes) {
+            if (listener != null) {
+                listener.onStarted(totalBytes);
+            }
+        }
+
+        @Override
+        public boolean onRunning(final long currentBytes, final long totalBytes) {
+            if (listener != null && !listener.onRunning(currentBytes, totalBytes)) {
+                stopped = true;
+            }
+            return !stopped;
+        }
+
+        @Override
+        public void onFinished(final long finishedBytes, final long totalBytes) {
+            if (listener != null) {
+                listener.onFinished(finishedBytes, totalBytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A JDK Flight Recorder event of an encryption or decryption. The duration of the event is the duration of the operation. It is committed by {@link CryptMetrics.Operation}.
+ *
+ * @author Magic Len
+ */
+@Name("org.magiclen.crypttool.Crypt")
+@Label("Crypt Operation")
+@Category("CryptTool")
+@Description("An encryption, decryption or verification of a file, a text or a stream.")
+@StackTrace(false)
+final class CryptEvent extends jdk.jfr.Event {
+
+    // -----Object Variable-----
+    @Label("Kind")
+    @Description("File or Text. Streams of the daemon are counted as texts.")
+    String kind;
+
+    @Label("Method")
+    @Description("The method which is requested.")
+    String method;
+
+    @Label("Used Method")
+    @Description("The method which is actually used.")
+    String usedMethod;
+
+    @Label("Auto-detection")
+    @Description("The result of detecting whether the data is encrypted, or empty if the method is not auto.")
+    String detection;
+
+    @Label("Format")
+    String format;
+
+    @Label("Codec")
+    String codec;
+
+    @Label("Key Strength")
+    @Description("The key strength in bits.")
+    int bits;
+
+    @Label("Size")
+    @Description("The number of bytes of the source, or the number of characters for texts.")
+    @DataAmount
+    long size;
+
+    @Label("Outcome")
+    @Description("Succeeded, Failed or Cancelled.")
+    String outcome;
+
+    @Label("Error")
+    String error;
+}
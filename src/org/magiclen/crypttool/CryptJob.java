@@ -0,0 +1,273 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool;
+
+import java.io.File;
+import java.util.concurrent.CancellationException;
+import org.magiclen.magiccrypt.lib.Crypt;
+
+/**
+ * A job of {@link CryptQueue}, which encrypts or decrypts one file. The job is also the listener of its own progress.
+ *
+ * @author Magic Len
+ */
+public class CryptJob implements Crypt.CryptListener {
+
+    // -----Class Constant-----
+    /**
+     * The states of jobs.
+     */
+    public enum State {
+        /**
+         * Waiting for a worker.
+         */
+        QUEUED("Queued"),
+        /**
+         * Being handled.
+         */
+        RUNNING("Running"),
+        /**
+         * Finished successfully.
+         */
+        FINISHED("Finished"),
+        /**
+         * Skipped, because the manifest of an incremental run shows that the destination file is up to date.
+         */
+        UNCHANGED("Unchanged"),
+        /**
+         * Failed.
+         */
+        FAILED("Failed"),
+        /**
+         * Cancelled.
+         */
+        CANCELLED("Cancelled");
+
+        private final String text;
+
+        State(final String text) {
+            this.text = text;
+        }
+
+        /**
+         * Check whether the job has ended.
+         *
+         * @return true if the state is FINISHED, UNCHANGED, FAILED or CANCELLED
+         */
+        public boolean isDone() {
+            return this == FINISHED || this == UNCHANGED || this == FAILED || this == CANCELLED;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    // -----Object Constant-----
+    private final CryptEngine engine;
+    private final CryptMethod method;
+    private final File source, destination;
+    private final CryptManifest manifest;
+
+    // -----Object Variable-----
+    private volatile State state = State.QUEUED;
+    private volatile CryptMethod usedMethod;
+    private volatile String message;
+    private volatile long currentBytes, totalBytes;
+    private volatile boolean cancelled;
+
+    // -----Constructor-----
+    /**
+     * Construct a job.
+     *
+     * @param engine the engine
+     * @param method the method
+     * @param source the source file
+     * @param destination the destination file, or null for {@link CryptMethod#VERIFY}
+     */
+    public CryptJob(final CryptEngine engine, final CryptMethod method, final File source, final File destination) {
+        this(engine, method, source, destination, null);
+    }
+
+    /**
+     * Construct a job of an incremental run. The source file is read by the job to be recorded in the manifest before it is handled, so that reading every file is spread over the workers.
+     *
+     * @param engine the engine
+     * @param method the method
+     * @param source the source file
+     * @param destination the destination file, or null for {@link CryptMethod#VERIFY}
+     * @param manifest the manifest, or null
+     * @see CryptManifest#prepare(File, File)
+     */
+    public CryptJob(final CryptEngine engine, final CryptMethod method, final File source, final File destination, final CryptManifest manifest) {
+        this.engine = engine;
+        this.method = method;
+        this.source = source;
+        this.destination = destination;
+        this.manifest = manifest;
+        this.totalBytes = source.length();
+    }
+
+    // -----Object Method-----
+    /**
+     * Handle the file. The destination file is replaced only if the job finishes.
+     */
+    void run() {
+        if (cancelled) {
+            state = State.CANCELLED;
+            return;
+        }
+        state = State.RUNNING;
+        try {
+            final File parent = destination == null ? null : destination.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new RuntimeException(String.format("Cannot create the directory: %s", parent));
+            }
+            if (manifest != null && manifest.prepare(source, destination)) {
+                currentBytes = totalBytes;
+                state = State.UNCHANGED;
+                return;
+            }
+            usedMethod = engine.crypt(method, source, destination, this);
+            state = State.FINISHED;
+        } catch (final CancellationException ex) {
+            state = State.CANCELLED;
+        } catch (final Exception ex) {
+            message = ex.getMessage() != null ? ex.getMessage() : ex.toString();
+            state = cancelled ? State.CANCELLED : State.FAILED;
+        }
+    }
+
+    /**
+     * Cancel the job. A running job stops at its next progress report.
+     */
+    public void cancel() {
+        cancelled = true;
+        if (state == State.QUEUED) {
+            state = State.CANCELLED;
+        }
+    }
+
+    @Override
+    public void onStarted(final long totalBytes) {
+        this.totalBytes = totalBytes;
+    }
+
+    @Override
+    public boolean onRunning(final long currentBytes, final long totalBytes) {
+        this.currentBytes = currentBytes;
+        return !cancelled;
+    }
+
+    @Override
+    public void onFinished(final long finishedBytes, final long totalBytes) {
+        this.currentBytes = finishedBytes;
+    }
+
+    /**
+     * Get the source file.
+     *
+     * @return the source file
+     */
+    public File getSource() {
+        return source;
+    }
+
+    /**
+     * Get the destination file.
+     *
+     * @return the destination file, or null for {@link CryptMethod#VERIFY}
+     */
+    public File getDestination() {
+        return destination;
+    }
+
+    /**
+     * Get the state.
+     *
+     * @return the state
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Get the method actually used.
+     *
+     * @return {@link CryptMethod#ENCRYPT}, {@link CryptMethod#DECRYPT}, {@link CryptMethod#VERIFY} or {@link CryptMethod#REKEY}, or null if the job has not finished
+     */
+    public CryptMethod getUsedMethod() {
+        return usedMethod;
+    }
+
+    /**
+     * Get the error message.
+     *
+     * @return the error message, or null if the job has not failed
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Get the number of bytes handled.
+     *
+     * @return the number of bytes handled
+     */
+    public long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    /**
+     * Get the total number of bytes.
+     *
+     * @return the total number of bytes
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Get the progress.
+     *
+     * @return a value between 0 and 1
+     */
+    public double getProgress() {
+        if (state == State.FINISHED || state == State.UNCHANGED) {
+            return 1;
+        }
+        final long total = totalBytes;
+        return total <= 0 ? 0 : Math.min(1, currentBytes * 1d / total);
+    }
+
+    @Override
+    public String toString() {
+        final String name = source.getName();
+        switch (state) {
+            case FINISHED:
+                return String.format("%s - %s", name, usedMethod.getDoneText());
+            case FAILED:
+                return String.format("%s - %s: %s", name, state, message);
+            case RUNNING:
+                return String.format("%s - %.0f%%", name, getProgress() * 100);
+            default:
+                return String.format("%s - %s", name, state);
+        }
+    }
+}
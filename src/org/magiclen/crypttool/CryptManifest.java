@@ -0,0 +1,286 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import org.magiclen.crypttool.lib.CRC64Checksum;
+import org.magiclen.crypttool.lib.FileChannels;
+
+/**
+ * The index of an output directory which is updated incrementally. For every destination file, it records the source file with its size, modified time and CRC-64, and the size and modified time of the destination file, so a later run skips the files which have not changed and prunes the ones whose source files have been deleted.
+ * <p>
+ * A source file whose size and modified time are unchanged is skipped without being read, which is checked while the files are listed. Every other file is read once by its own job to compute its CRC-64, so the reads run on the workers in parallel, and a file whose modified time has changed but whose CRC-64 has not is not encrypted again. A destination file which has been changed or deleted is always made again. If the settings of the engine, such as the key or the format, are different from the recorded ones, every file is made again.
+ * </p>
+ *
+ * @author Magic Len
+ */
+public final class CryptManifest {
+
+    // -----Class Constant-----
+    /**
+     * The name of the manifest file in an output directory.
+     */
+    public static final String FILE_NAME = ".crypttool.manifest";
+    private static final String SETTING = "setting.", ENTRY = "file.";
+    private static final int FINGERPRINT_BUFFER_SIZE = 1024 * 1024;
+
+    // -----Object Constant-----
+    private final File file, directory;
+    private final Properties settings;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<File, Entry> pending = new HashMap<>();
+
+    // -----Constructor-----
+    private CryptManifest(final File directory, final Properties settings) {
+        this.directory = directory;
+        this.file = new File(directory, FILE_NAME);
+        this.settings = settings;
+    }
+
+    // -----Class Method-----
+    /**
+     * Open the manifest of an output directory. A damaged manifest is ignored, so every file is made again.
+     *
+     * @param directory the output directory
+     * @param settings the settings of the engine, from {@link CryptEngine#getSettings(CryptMethod)}
+     * @return the manifest
+     */
+    public static CryptManifest open(final File directory, final Properties settings) {
+        final CryptManifest manifest = new CryptManifest(directory, settings);
+        if (manifest.file.isFile()) {
+            final Properties properties = new Properties();
+            try (final InputStream is = new FileInputStream(manifest.file)) {
+                properties.load(is);
+                final Properties recorded = new Properties();
+                for (final String name : properties.stringPropertyNames()) {
+                    if (name.startsWith(SETTING)) {
+                        recorded.setProperty(name.substring(SETTING.length()), properties.getProperty(name));
+                    } else if (name.startsWith(ENTRY)) {
+                        manifest.entries.put(name.substring(ENTRY.length()), Entry.parse(properties.getProperty(name)));
+                    }
+                }
+                if (!recorded.equals(settings)) {
+                    // The destination files were made with other settings. Their entries are kept, so they can still be replaced and pruned, but a destination size which no file has marks them out of date.
+                    manifest.entries.replaceAll((k, e) -> new Entry(e.source, e.size, e.modified, e.fingerprint, -1, -1));
+                }
+            } catch (final IOException | RuntimeException ex) {
+                manifest.entries.clear();
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Compute the CRC-64 of a file.
+     *
+     * @param source the file
+     * @return the CRC-64
+     * @throws IOException if an I/O error occurs
+     */
+    static long fingerprint(final File source) throws IOException {
+        final CRC64Checksum checksum = new CRC64Checksum();
+        final ByteBuffer buffer = ByteBuffer.allocate(FINGERPRINT_BUFFER_SIZE);
+        try (final FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                checksum.update(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+        }
+        return checksum.getValue();
+    }
+
+    // -----Object Method-----
+    private String keyOf(final File destination) {
+        return directory.toPath().relativize(destination.toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Get the entry of a destination file whose recorded output is still in place.
+     *
+     * @param source the source file
+     * @param destination the destination file in the output directory
+     * @return the entry, or null if the destination file is not recorded for the source file, or has been changed or deleted
+     */
+    private Entry intactEntry(final File source, final File destination) {
+        final Entry entry = entries.get(keyOf(destination));
+        if (entry == null || !entry.source.equals(source.getAbsolutePath())) {
+            return null;
+        }
+        if (!destination.isFile() || destination.length() != entry.destinationSize || destination.lastModified() != entry.destinationModified) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Check whether a destination file is up to date with its source file by their sizes and modified times only, so that nothing is read.
+     *
+     * @param source the source file
+     * @param destination the destination file in the output directory
+     * @return true if the destination file does not need to be made again, or false if its job has to find out with {@link #prepare(File, File)}
+     */
+    public synchronized boolean isUpToDate(final File source, final File destination) {
+        final Entry entry = intactEntry(source, destination);
+        return entry != null && source.length() == entry.size && source.lastModified() == entry.modified;
+    }
+
+    /**
+     * Check whether a destination file was made by a recorded job, so it can be replaced without asking.
+     *
+     * @param destination the destination file in the output directory
+     * @return true if the destination file is recorded
+     */
+    public synchronized boolean contains(final File destination) {
+        return entries.containsKey(keyOf(destination));
+    }
+
+    /**
+     * Remember the state of a source file when its job starts, on the thread of the job. The state is taken before the file is handled, so if the file is changed during the job, it is found changed by the next run. If the source file has been touched but its CRC-64 is the recorded one, the new modified time is recorded and nothing else needs to be done.
+     *
+     * @param source the source file
+     * @param destination the destination file in the output directory
+     * @return true if the destination file is up to date already, or false if the job has to make it and then call {@link #commit(File)} or {@link #discard(File)}
+     * @throws IOException if the source file cannot be read
+     */
+    public boolean prepare(final File source, final File destination) throws IOException {
+        final long size = source.length();
+        final long modified = source.lastModified();
+        final long fingerprint = fingerprint(source);
+        synchronized (this) {
+            final Entry recorded = intactEntry(source, destination);
+            if (recorded != null && recorded.size == size && recorded.fingerprint == fingerprint) {
+                entries.put(keyOf(destination), new Entry(recorded.source, size, modified, fingerprint, recorded.destinationSize, recorded.destinationModified));
+                return true;
+            }
+            pending.put(destination, new Entry(source.getAbsolutePath(), size, modified, fingerprint, 0, 0));
+        }
+        return false;
+    }
+
+    /**
+     * Record a destination file whose job has finished successfully.
+     *
+     * @param destination the destination file in the output directory
+     */
+    public synchronized void commit(final File destination) {
+        final Entry entry = pending.remove(destination);
+        if (entry != null) {
+            entries.put(keyOf(destination), new Entry(entry.source, entry.size, entry.modified, entry.fingerprint, destination.length(), destination.lastModified()));
+        }
+    }
+
+    /**
+     * Forget a destination file whose job has failed or been cancelled. The recorded state of its previous output, if any, is kept.
+     *
+     * @param destination the destination file in the output directory
+     */
+    public synchronized void discard(final File destination) {
+        pending.remove(destination);
+    }
+
+    /**
+     * Delete the destination files whose source files have been deleted, and remove them from the manifest.
+     *
+     * @return the deleted destination files
+     */
+    public synchronized List<File> prune() {
+        final List<File> pruned = new ArrayList<>();
+        entries.entrySet().removeIf(e -> {
+            if (new File(e.getValue().source).exists()) {
+                return false;
+            }
+            final File destination = new File(directory, e.getKey());
+            if (destination.delete()) {
+                pruned.add(destination);
+            }
+            return true;
+        });
+        return pruned;
+    }
+
+    /**
+     * Save the manifest. The file is replaced atomically, so an interrupted save leaves the previous manifest.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void save() throws IOException {
+        final Properties properties = new Properties();
+        for (final String name : settings.stringPropertyNames()) {
+            properties.setProperty(SETTING + name, settings.getProperty(name));
+        }
+        for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+            properties.setProperty(ENTRY + entry.getKey(), entry.getValue().toString());
+        }
+        final File temp = new File(file.getPath() + ".tmp");
+        try (final FileOutputStream os = new FileOutputStream(temp)) {
+            properties.store(os, "CryptTool manifest");
+            os.getFD().sync();
+        }
+        FileChannels.move(temp, file);
+    }
+
+    // -----Inner Class-----
+    /**
+     * The recorded state of a destination file and its source file.
+     */
+    private static final class Entry {
+
+        private final String source;
+        private final long size, modified, fingerprint, destinationSize, destinationModified;
+
+        private Entry(final String source, final long size, final long modified, final long fingerprint, final long destinationSize, final long destinationModified) {
+            this.source = source;
+            this.size = size;
+            this.modified = modified;
+            this.fingerprint = fingerprint;
+            this.destinationSize = destinationSize;
+            this.destinationModified = destinationModified;
+        }
+
+        /**
+         * Parse an entry. The source path is the last field, so it may contain spaces.
+         *
+         * @param value the value written by {@link #toString()}
+         * @return the entry
+         */
+        private static Entry parse(final String value) {
+            final String[] fields = value.split(" ", 6);
+            if (fields.length != 6) {
+                throw new RuntimeException(String.format("Illegal entry: %s", value));
+            }
+            return new Entry(fields[5], Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseUnsignedLong(fields[2], 16), Long.parseLong(fields[3]), Long.parseLong(fields[4]));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d %d %016x %d %d %s", size, modified, fingerprint, destinationSize, destinationModified, source);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool;
+
+/**
+ * The methods to handle data.
+ *
+ * @author Magic Len
+ */
+public enum CryptMethod {
+
+    /**
+     * Decrypt the data if it can be decrypted, or encrypt it.
+     */
+    AUTO("Auto", "Handled"),
+    /**
+     * Encrypt the data.
+     */
+    ENCRYPT("Encrypt", "Encrypted"),
+    /**
+     * Decrypt the data.
+     */
+    DECRYPT("Decrypt", "Decrypted"),
+    /**
+     * Check whether the encrypted data is intact and matches the key, without writing anything.
+     */
+    VERIFY("Verify", "Verified"),
+    /**
+     * Decrypt the encrypted data with the key and encrypt it with a new key in one pass.
+     */
+    REKEY("Rekey", "Re-keyed");
+
+    // -----Object Constant-----
+    private final String text, doneText;
+
+    // -----Constructor-----
+    CryptMethod(final String text, final String doneText) {
+        this.text = text;
+        this.doneText = doneText;
+    }
+
+    // -----Class Method-----
+    /**
+     * Find a method by its name.
+     *
+     * @param name the name of a method, case-insensitive
+     * @return the method
+     */
+    public static CryptMethod parse(final String name) {
+        for (final CryptMethod method : values()) {
+            if (method.text.equalsIgnoreCase(name)) {
+                return method;
+            }
+        }
+        throw new RuntimeException(String.format("Unknown method: %s", name));
+    }
+
+    // -----Object Method-----
+    /**
+     * Get the text which tells that data has been handled by this method.
+     *
+     * @return the text, such as Encrypted
+     */
+    public String getDoneText() {
+        return doneText;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
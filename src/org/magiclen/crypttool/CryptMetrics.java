@@ -0,0 +1,398 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.magiclen.crypttool.lib.Codec;
+import org.magiclen.crypttool.lib.CryptFormat;
+
+/**
+ * The statistics of all encryptions and decryptions in this process. It is registered to the platform MBean server as {@value #OBJECT_NAME}, so it can be watched with JConsole or any other JMX client, and every operation is also recorded as a {@link CryptEvent} for JDK Flight Recorder.
+ *
+ * @author Magic Len
+ */
+public final class CryptMetrics implements CryptMetricsMXBean {
+
+    // -----Class Constant-----
+    /**
+     * The object name of the MBean.
+     */
+    public static final String OBJECT_NAME = "org.magiclen.crypttool:type=Metrics";
+    private static final long[] BUCKET_BOUNDS_MILLIS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000};
+    /**
+     * The period of the rates in seconds.
+     */
+    private static final int WINDOW_SECONDS = 60;
+    private static final CryptMetrics INSTANCE = register(new CryptMetrics());
+
+    /**
+     * The kinds of operations.
+     */
+    public enum Kind {
+        /**
+         * Files.
+         */
+        FILE("File"),
+        /**
+         * Texts and streams.
+         */
+        TEXT("Text");
+
+        private final String text;
+
+        Kind(final String text) {
+            this.text = text;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    // -----Object Constant-----
+    private final Statistics file = new Statistics(), text = new Statistics();
+    private final AtomicInteger queuedJobs = new AtomicInteger();
+
+    // -----Constructor-----
+    private CryptMetrics() {
+
+    }
+
+    // -----Class Method-----
+    /**
+     * Get the statistics of this process. The MBean is registered when this method is called for the first time.
+     *
+     * @return the statistics
+     */
+    public static CryptMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    private static CryptMetrics register(final CryptMetrics metrics) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(OBJECT_NAME));
+        } catch (final JMException ex) {
+            // Another class loader has registered its own instance. The statistics are still collected, but they are not visible to JMX clients.
+        }
+        return metrics;
+    }
+
+    /**
+     * Start an operation. It must be finished by {@link Operation#finish()}.
+     *
+     * @param kind the kind
+     * @param method the method which is requested
+     * @param bits the key strength
+     * @return the operation
+     */
+    static Operation start(final Kind kind, final CryptMethod method, final int bits) {
+        return new Operation(kind, INSTANCE.statistics(kind), method, bits);
+    }
+
+    // -----Object Method-----
+    private Statistics statistics(final Kind kind) {
+        return kind == Kind.FILE ? file : text;
+    }
+
+    /**
+     * Count a file job which is added to a queue.
+     */
+    void jobQueued() {
+        queuedJobs.incrementAndGet();
+    }
+
+    /**
+     * Count a file job which leaves a queue, whether it runs or has been cancelled.
+     */
+    void jobDequeued() {
+        queuedJobs.decrementAndGet();
+    }
+
+    @Override
+    public long[] getLatencyBucketBoundsMillis() {
+        return BUCKET_BOUNDS_MILLIS.clone();
+    }
+
+    @Override
+    public int getQueuedJobs() {
+        return queuedJobs.get();
+    }
+
+    @Override
+    public int getActiveFileOperations() {
+        return file.active.get();
+    }
+
+    @Override
+    public long getFileOperations() {
+        return file.operations.sum();
+    }
+
+    @Override
+    public long getFileFailures() {
+        return file.failures.sum();
+    }
+
+    @Override
+    public long getFileCancellations() {
+        return file.cancellations.sum();
+    }
+
+    @Override
+    public long getFileBytes() {
+        return file.bytes.sum();
+    }
+
+    @Override
+    public double getFileOperationsPerSecond() {
+        return file.rate(false);
+    }
+
+    @Override
+    public double getFileBytesPerSecond() {
+        return file.rate(true);
+    }
+
+    @Override
+    public long[] getFileLatencyHistogram() {
+        return file.histogram();
+    }
+
+    @Override
+    public int getActiveTextOperations() {
+        return text.active.get();
+    }
+
+    @Override
+    public long getTextOperations() {
+        return text.operations.sum();
+    }
+
+    @Override
+    public long getTextFailures() {
+        return text.failures.sum();
+    }
+
+    @Override
+    public long getTextCancellations() {
+        return text.cancellations.sum();
+    }
+
+    @Override
+    public long getTextBytes() {
+        return text.bytes.sum();
+    }
+
+    @Override
+    public double getTextOperationsPerSecond() {
+        return text.rate(false);
+    }
+
+    @Override
+    public double getTextBytesPerSecond() {
+        return text.rate(true);
+    }
+
+    @Override
+    public long[] getTextLatencyHistogram() {
+        return text.histogram();
+    }
+
+    @Override
+    public void resetStatistics() {
+        file.reset();
+        text.reset();
+    }
+
+    // -----Inner Class-----
+    /**
+     * The statistics of a kind of operations.
+     */
+    private static final class Statistics {
+
+        private final AtomicInteger active = new AtomicInteger();
+        private final LongAdder operations = new LongAdder(), failures = new LongAdder(), cancellations = new LongAdder(), bytes = new LongAdder();
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS_MILLIS.length + 1);
+        /**
+         * The counts of the last seconds, indexed by the second modulo {@link #WINDOW_SECONDS}.
+         */
+        private final long[] slotSeconds = new long[WINDOW_SECONDS], slotOperations = new long[WINDOW_SECONDS], slotBytes = new long[WINDOW_SECONDS];
+
+        private void add(final String outcome, final long size, final long nanos) {
+            operations.increment();
+            switch (outcome) {
+                case Operation.FAILED:
+                    failures.increment();
+                    break;
+                case Operation.CANCELLED:
+                    cancellations.increment();
+                    break;
+                default:
+                    bytes.add(size);
+            }
+            final long millis = nanos / 1000000;
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS_MILLIS.length && millis >= BUCKET_BOUNDS_MILLIS[bucket]) {
+                ++bucket;
+            }
+            buckets.incrementAndGet(bucket);
+
+            final long second = System.nanoTime() / 1000000000;
+            final int slot = (int) (second % WINDOW_SECONDS);
+            synchronized (this) {
+                if (slotSeconds[slot] != second) {
+                    slotSeconds[slot] = second;
+                    slotOperations[slot] = 0;
+                    slotBytes[slot] = 0;
+                }
+                ++slotOperations[slot];
+                if (outcome.equals(Operation.SUCCEEDED)) {
+                    slotBytes[slot] += size;
+                }
+            }
+        }
+
+        private synchronized double rate(final boolean ofBytes) {
+            final long second = System.nanoTime() / 1000000000;
+            long sum = 0;
+            for (int i = 0; i < WINDOW_SECONDS; ++i) {
+                if (second - slotSeconds[i] < WINDOW_SECONDS) {
+                    sum += ofBytes ? slotBytes[i] : slotOperations[i];
+                }
+            }
+            return (double) sum / WINDOW_SECONDS;
+        }
+
+        private long[] histogram() {
+            final long[] counts = new long[buckets.length()];
+            for (int i = 0; i < counts.length; ++i) {
+                counts[i] = buckets.get(i);
+            }
+            return counts;
+        }
+
+        private void reset() {
+            operations.reset();
+            failures.reset();
+            cancellations.reset();
+            bytes.reset();
+            for (int i = 0; i < buckets.length(); ++i) {
+                buckets.set(i, 0);
+            }
+            synchronized (this) {
+                for (int i = 0; i < WINDOW_SECONDS; ++i) {
+                    slotOperations[i] = 0;
+                    slotBytes[i] = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * An operation in progress. It counts as active until it is finished, and then it is added to the statistics and committed as a {@link CryptEvent}.
+     */
+    static final class Operation {
+
+        private static final String SUCCEEDED = "Succeeded", FAILED = "Failed", CANCELLED = "Cancelled";
+
+        private final Statistics statistics;
+        private final CryptEvent event = new CryptEvent();
+        private final long startTime;
+        private boolean finished;
+
+        private Operation(final Kind kind, final Statistics statistics, final CryptMethod method, final int bits) {
+            this.statistics = statistics;
+            event.begin();
+            event.kind = kind.toString();
+            event.method = method.name();
+            event.bits = bits;
+            event.outcome = SUCCEEDED;
+            statistics.active.incrementAndGet();
+            startTime = System.nanoTime();
+        }
+
+        /**
+         * Set the method which is actually used.
+         *
+         * @param method the method
+         */
+        void setUsedMethod(final CryptMethod method) {
+            event.usedMethod = method.name();
+        }
+
+        /**
+         * Set the result of auto-detection.
+         *
+         * @param detection the result
+         */
+        void setDetection(final Enum<?> detection) {
+            event.detection = detection.name();
+        }
+
+        /**
+         * Set the format of the encrypted data.
+         *
+         * @param format the format
+         * @param codec the codec
+         */
+        void setFormat(final CryptFormat format, final Codec codec) {
+            event.format = format.name();
+            event.codec = codec.name();
+        }
+
+        /**
+         * Set the size of the source.
+         *
+         * @param size the number of bytes, or the number of characters for texts
+         */
+        void setSize(final long size) {
+            event.size = size;
+        }
+
+        /**
+         * Mark the operation as failed, or as cancelled if the error is a {@link CancellationException}.
+         *
+         * @param error the error
+         */
+        void fail(final Throwable error) {
+            event.outcome = error instanceof CancellationException ? CANCELLED : FAILED;
+            event.error = error.getMessage() != null ? error.getMessage() : error.toString();
+        }
+
+        /**
+         * Finish the operation. Calling this method again has no effect.
+         */
+        void finish() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            final long nanos = System.nanoTime() - startTime;
+            statistics.active.decrementAndGet();
+            statistics.add(event.outcome, event.size, nanos);
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool;
+
+/**
+ * The management interface of {@link CryptMetrics}. File operations are the jobs of the file tab, the command line and the daemon. Text operations are the jobs of the text tab and the streams of the daemon, and their sizes are counted in characters for the text tab.
+ *
+ * @author Magic Len
+ */
+public interface CryptMetricsMXBean {
+
+    /**
+     * Get the upper bounds of the buckets of the latency histograms. The last bucket has no upper bound.
+     *
+     * @return the upper bounds in milliseconds
+     */
+    long[] getLatencyBucketBoundsMillis();
+
+    /**
+     * Get the number of file jobs which are queued but have not started.
+     *
+     * @return the number of jobs
+     */
+    int getQueuedJobs();
+
+    /**
+     * Get the number of file operations in progress.
+     *
+     * @return the number of operations
+     */
+    int getActiveFileOperations();
+
+    /**
+     * Get the number of file operations which have ended.
+     *
+     * @return the number of operations
+     */
+    long getFileOperations();
+
+    /**
+     * Get the number of file operations which have failed.
+     *
+     * @return the number of operations
+     */
+    long getFileFailures();
+
+    /**
+     * Get the number of file operations which have been cancelled.
+     *
+     * @return the number of operations
+     */
+    long getFileCancellations();
+
+    /**
+     * Get the number of bytes of the files which have been handled successfully.
+     *
+     * @return the number of bytes
+     */
+    long getFileBytes();
+
+    /**
+     * Get the average number of file operations ended per second over the last minute.
+     *
+     * @return the rate
+     */
+    double getFileOperationsPerSecond();
+
+    /**
+     * Get the average number of bytes of files handled per second over the last minute.
+     *
+     * @return the rate
+     */
+    double getFileBytesPerSecond();
+
+    /**
+     * Get the latency histogram of file operations.
+     *
+     * @return the counts of the buckets
+     * @see #getLatencyBucketBoundsMillis()
+     */
+    long[] getFileLatencyHistogram();
+
+    /**
+     * Get the number of text operations in progress.
+     *
+     * @return the number of operations
+     */
+    int getActiveTextOperations();
+
+    /**
+     * Get the number of text operations which have ended.
+     *
+     * @return the number of operations
+     */
+    long getTextOperations();
+
+    /**
+     * Get the number of text operations which have failed.
+     *
+     * @return the number of operations
+     */
+    long getTextFailures();
+
+    /**
+     * Get the number of text operations which have been cancelled.
+     *
+     * @return the number of operations
+     */
+    long getTextCancellations();
+
+    /**
+     * Get the size of the texts which have been handled successfully.
+     *
+     * @return the number of bytes or characters
+     */
+    long getTextBytes();
+
+    /**
+     * Get the average number of text operations ended per second over the last minute.
+     *
+     * @return the rate
+     */
+    double getTextOperationsPerSecond();
+
+    /**
+     * Get the average size of texts handled per second over the last minute.
+     *
+     * @return the rate
+     */
+    double getTextBytesPerSecond();
+
+    /**
+     * Get the latency histogram of text operations.
+     *
+     * @return the counts of the buckets
+     * @see #getLatencyBucketBoundsMillis()
+     */
+    long[] getTextLatencyHistogram();
+
+    /**
+     * Reset all counters and histograms. The numbers of queued jobs and operations in progress are kept.
+     */
+    void resetStatistics();
+}
@@ -0,0 +1,239 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The settings which make file jobs fastest on this host, found by {@link CryptCalibrator}. A profile is saved per host in the <b>.crypttool</b> directory of the user's home, so hosts which share a home directory keep their own profiles, and it is applied to the engines of the GUI and the command line automatically. The file is a properties file, so it can be edited by hand.
+ *
+ * @author Magic Len
+ */
+public final class CryptProfile {
+
+    // -----Class Constant-----
+    private static final String BUFFER_SIZE = "buffer.size", THREADS = "threads", STORE = "store", CREATED = "created", PROVIDER = "provider.";
+
+    // -----Object Constant-----
+    private final int bufferSize, threads;
+    private final Map<String, String> providers;
+    private final String store;
+    private final long created;
+
+    // -----Object Variable-----
+    private ForkJoinPool pool;
+
+    // -----Constructor-----
+    /**
+     * Construct a profile.
+     *
+     * @param bufferSize the buffer size of the classic format in bytes
+     * @param threads the number of threads for parallel encryption and decryption
+     * @param providers the names of the fastest JCE providers, by transformations
+     * @param store the file store the profile was measured on
+     * @param created when the profile was measured, in milliseconds since the epoch
+     */
+    public CryptProfile(final int bufferSize, final int threads, final Map<String, String> providers, final String store, final long created) {
+        if (bufferSize < 16) {
+            throw new RuntimeException("The buffer size must be at least 16 bytes!");
+        }
+        if (threads <= 0) {
+            throw new RuntimeException("The number of threads must be positive!");
+        }
+        this.bufferSize = bufferSize;
+        this.threads = threads;
+        this.providers = Collections.unmodifiableMap(new TreeMap<>(providers));
+        this.store = store;
+        this.created = created;
+    }
+
+    // -----Class Method-----
+    /**
+     * Get the name of this host, which is safe to be used in a file name.
+     *
+     * @return the name
+     */
+    public static String getHostName() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (final IOException ex) {
+            host = System.getenv("HOSTNAME");
+            if (host == null) {
+                host = System.getenv("COMPUTERNAME");
+            }
+        }
+        if (host == null || host.isEmpty()) {
+            host = "localhost";
+        }
+        return host.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * Get the file of the profile of this host.
+     *
+     * @return the file, which may not exist
+     */
+    public static File getFile() {
+        return new File(new File(System.getProperty("user.home"), ".crypttool"), "profile-" + getHostName() + ".properties");
+    }
+
+    /**
+     * Load the profile of this host.
+     *
+     * @return the profile, or null if this host has not been calibrated or the profile is damaged
+     */
+    public static CryptProfile load() {
+        final File file = getFile();
+        if (!file.isFile()) {
+            return null;
+        }
+        final Properties properties = new Properties();
+        try (final InputStream is = new FileInputStream(file)) {
+            properties.load(is);
+            final Map<String, String> providers = new TreeMap<>();
+            for (final String name : properties.stringPropertyNames()) {
+                if (name.startsWith(PROVIDER)) {
+                    providers.put(name.substring(PROVIDER.length()), properties.getProperty(name).trim());
+                }
+            }
+            return new CryptProfile((int) CryptCommand.parseSize(properties.getProperty(BUFFER_SIZE, "")), Integer.parseInt(properties.getProperty(THREADS, "").trim()), providers, properties.getProperty(STORE, ""), Long.parseLong(properties.getProperty(CREATED, "0").trim()));
+        } catch (final IOException | RuntimeException ex) {
+            // A damaged profile is ignored, so the defaults are used.
+            return null;
+        }
+    }
+
+    // -----Object Method-----
+    /**
+     * Save this profile as the profile of this host.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void save() throws IOException {
+        final File file = getFile();
+        final File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format("Cannot create the directory: %s", directory));
+        }
+        final Properties properties = new Properties();
+        properties.setProperty(BUFFER_SIZE, Integer.toString(bufferSize));
+        properties.setProperty(THREADS, Integer.toString(threads));
+        properties.setProperty(STORE, store);
+        properties.setProperty(CREATED, Long.toString(created));
+        for (final Map.Entry<String, String> provider : providers.entrySet()) {
+            properties.setProperty(PROVIDER + provider.getKey(), provider.getValue());
+        }
+        try (final OutputStream os = new FileOutputStream(file)) {
+            properties.store(os, "CryptTool profile of " + getHostName());
+        }
+    }
+
+    /**
+     * Apply this profile to an engine. Settings given explicitly should be set after this.
+     *
+     * @param engine the engine
+     */
+    public void apply(final CryptEngine engine) {
+        engine.setBufferSize(bufferSize);
+        engine.setPool(getPool());
+        for (final Map.Entry<String, String> provider : providers.entrySet()) {
+            engine.setProvider(provider.getKey(), provider.getValue());
+        }
+    }
+
+    /**
+     * Get the pool with the number of threads of this profile. It is created once and shared by all engines this profile is applied to.
+     *
+     * @return the pool
+     */
+    public synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = threads == ForkJoinPool.commonPool().getParallelism() ? ForkJoinPool.commonPool() : new ForkJoinPool(threads);
+        }
+        return pool;
+    }
+
+    /**
+     * Get the buffer size of the classic format.
+     *
+     * @return the buffer size in bytes
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Get the number of threads for parallel encryption and decryption.
+     *
+     * @return the number of threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Get the names of the fastest JCE providers.
+     *
+     * @return the names, by transformations
+     */
+    public Map<String, String> getProviders() {
+        return providers;
+    }
+
+    /**
+     * Get the file store the profile was measured on.
+     *
+     * @return the description of the file store
+     */
+    public String getStore() {
+        return store;
+    }
+
+    /**
+     * Get when the profile was measured.
+     *
+     * @return the time in milliseconds since the epoch
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Buffer size: %s%n", ProgressMeter.formatBytes(bufferSize)));
+        sb.append(String.format("Threads: %d%n", threads));
+        for (final Map.Entry<String, String> provider : providers.entrySet()) {
+            sb.append(String.format("Provider of %s: %s%n", provider.getKey(), provider.getValue()));
+        }
+        sb.append(String.format("Measured on: %s, %tF %<tT", store, created));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,563 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A queue of file jobs which runs a bounded number of jobs at once.
+ * <p>
+ * In the adaptive mode, the jobs are grouped by the file store of their source files, and every file store has its own number of jobs run at once, which is adjusted by AIMD. The throughput of every file store is measured in windows: the number is increased by one while the throughput does not drop, and halved when an increase makes it drop, so a hard disk settles at one or two jobs while fast storage keeps more running.
+ * </p>
+ *
+ * @author Magic Len
+ */
+public class CryptQueue {
+
+    // -----Class Constant-----
+    /**
+     * The length of the windows in which the throughput of the adaptive mode is measured, in milliseconds.
+     */
+    private static final long WINDOW = 2000;
+    /**
+     * How much lower than the previous window the throughput may be before it counts as a drop.
+     */
+    private static final double TOLERANCE = 0.1;
+
+    // -----Object Constant-----
+    private final ThreadPoolExecutor executor;
+    private final Set<CryptJob> jobs = new LinkedHashSet<>();
+    private final Lane shared = new Lane(null);
+    private final Map<Object, Lane> lanes = new LinkedHashMap<>();
+
+    // -----Object Variable-----
+    private volatile Consumer<CryptJob> onDone;
+    private int pending;
+    private int workers;
+    private boolean adaptive;
+    private boolean keepDone = true;
+    private long waitingBytes, doneBytes, doneTotalBytes;
+    private ScheduledExecutorService controller;
+
+    // -----Constructor-----
+    /**
+     * Construct a queue.
+     *
+     * @param workers the number of jobs run at once
+     */
+    public CryptQueue(final int workers) {
+        executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+            final Thread thread = new Thread(r, "CryptQueue");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.workers = workers;
+        shared.limit = workers;
+    }
+
+    // -----Object Method-----
+    /**
+     * Set the number of jobs run at once, which is the maximum number per file store in the adaptive mode. Running jobs are not affected.
+     *
+     * @param workers the number of jobs run at once
+     */
+    public synchronized void setWorkers(final int workers) {
+        this.workers = workers;
+        shared.limit = workers;
+        dispatch(shared);
+        for (final Lane lane : lanes.values()) {
+            if (lane.limit > workers) {
+                lane.limit = workers;
+                lane.raised = false;
+            }
+            dispatch(lane);
+        }
+    }
+
+    /**
+     * Get the number of jobs run at once, which is the maximum number per file store in the adaptive mode.
+     *
+     * @return the number of jobs run at once
+     */
+    public synchronized int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Turn the adaptive mode on or off. It affects the jobs added afterwards, and the jobs which have been added keep waiting for the workers they were added for.
+     *
+     * @param adaptive true to group the jobs by file store and adjust the number of jobs run at once on every file store
+     */
+    public synchronized void setAdaptive(final boolean adaptive) {
+        if (this.adaptive == adaptive) {
+            return;
+        }
+        this.adaptive = adaptive;
+        if (adaptive) {
+            controller = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "CryptQueue controller");
+                thread.setDaemon(true);
+                return thread;
+            });
+            controller.scheduleWithFixedDelay(this::adjust, WINDOW, WINDOW, TimeUnit.MILLISECONDS);
+        } else {
+            controller.shutdownNow();
+            controller = null;
+        }
+    }
+
+    /**
+     * Check whether the adaptive mode is on.
+     *
+     * @return true if the adaptive mode is on
+     */
+    public synchronized boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Get the file stores of the adaptive mode and the numbers of jobs run at once on them.
+     *
+     * @return the file stores in the order they were found, and their concurrency
+     */
+    public synchronized List<Concurrency> getConcurrency() {
+        final List<Concurrency> list = new ArrayList<>(lanes.size());
+        for (final Lane lane : lanes.values()) {
+            list.add(new Concurrency(lane.name, lane.limit, lane.bestLimit, lane.bestRate));
+        }
+        return list;
+    }
+
+    /**
+     * Set whether the jobs which have ended are kept in {@link #getJobs()} until {@link #clearDone()} is called. A batch which nobody lists should not keep them, so its memory does not grow with the number of files.
+     *
+     * @param keepDone true to keep the jobs which have ended, which is the default
+     */
+    public synchronized void setKeepDone(final boolean keepDone) {
+        this.keepDone = keepDone;
+        if (!keepDone) {
+            jobs.removeIf(job -> job.getState().isDone());
+        }
+    }
+
+    /**
+     * Set the callback which is called in a worker thread whenever a job ends.
+     *
+     * @param onDone the callback, or null
+     */
+    public void setOnDone(final Consumer<CryptJob> onDone) {
+        this.onDone = onDone;
+    }
+
+    /**
+     * Add a job for a file.
+     *
+     * @param engine the engine
+     * @param method the method
+     * @param source the source file
+     * @param destination the destination file, or null for {@link CryptMethod#VERIFY}
+     * @return the job
+     */
+    public CryptJob add(final CryptEngine engine, final CryptMethod method, final File source, final File destination) {
+        return add(engine, method, source, destination, null);
+    }
+
+    /**
+     * Add a job for a file of an incremental run.
+     *
+     * @param engine the engine
+     * @param method the method
+     * @param source the source file
+     * @param destination the destination file
+     * @param manifest the manifest, or null
+     * @return the job
+     */
+    public CryptJob add(final CryptEngine engine, final CryptMethod method, final File source, final File destination, final CryptManifest manifest) {
+        final CryptJob job = new CryptJob(engine, method, source, destination, manifest);
+        CryptMetrics.getInstance().jobQueued();
+        synchronized (this) {
+            jobs.add(job);
+            waitingBytes += job.getTotalBytes();
+            ++pending;
+            final Lane lane = adaptive ? laneOf(source) : shared;
+            lane.waiting.add(job);
+            dispatch(lane);
+        }
+        return job;
+    }
+
+    /**
+     * Get the lane of the file store of a file, creating it when the file store is new. File stores are told apart by their device numbers where the file system provides them, which is cheaper than looking the file store up for every file.
+     *
+     * @param file the file
+     * @return the lane
+     */
+    private Lane laneOf(final File file) {
+        final Path path = file.toPath();
+        Object device;
+        try {
+            device = Files.getAttribute(path, "unix:dev");
+        } catch (final IOException | UnsupportedOperationException | IllegalArgumentException ex) {
+            device = null;
+        }
+        final Lane existing = device == null ? null : lanes.get(device);
+        if (existing != null) {
+            return existing;
+        }
+        String name;
+        try {
+            final FileStore store = Files.getFileStore(path);
+            name = store.toString();
+            if (device == null) {
+                device = store;
+            }
+        } catch (final IOException ex) {
+            name = "unknown";
+            if (device == null) {
+                device = name;
+            }
+        }
+        Lane lane = lanes.get(device);
+        if (lane == null) {
+            lane = new Lane(name);
+            lanes.put(device, lane);
+        }
+        return lane;
+    }
+
+    /**
+     * Start the waiting jobs of a lane while it has fewer running jobs than its limit. The monitor of this queue must be held.
+     *
+     * @param lane the lane
+     */
+    private void dispatch(final Lane lane) {
+        while (lane.running.size() < lane.limit) {
+            final CryptJob job = lane.waiting.poll();
+            if (job == null) {
+                lane.starved = true;
+                return;
+            }
+            lane.running.add(job);
+            waitingBytes -= job.getTotalBytes();
+            executor.execute(() -> {
+                CryptMetrics.getInstance().jobDequeued();
+                try {
+                    job.run();
+                } finally {
+                    final Consumer<CryptJob> callback = onDone;
+                    if (callback != null) {
+                        callback.accept(job);
+                    }
+                    synchronized (this) {
+                        lane.running.remove(job);
+                        lane.doneBytes += job.getCurrentBytes();
+                        if (job.getState() != CryptJob.State.CANCELLED) {
+                            doneBytes += job.getTotalBytes();
+                            doneTotalBytes += job.getTotalBytes();
+                        }
+                        if (!keepDone) {
+                            jobs.remove(job);
+                        }
+                        dispatch(lane);
+                        --pending;
+                        notifyAll();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Measure the throughput of every file store in the last window and adjust its number of jobs run at once. A window only counts if the file store had jobs waiting all the time and no more running jobs than its limit, because otherwise the limit did not decide the throughput.
+     */
+    private synchronized void adjust() {
+        final long now = System.nanoTime();
+        for (final Lane lane : lanes.values()) {
+            long bytes = lane.doneBytes;
+            for (final CryptJob job : lane.running) {
+                bytes += job.getCurrentBytes();
+            }
+            final double rate = lane.time == 0 ? -1 : (bytes - lane.bytes) * 1e9 / (now - lane.time);
+            final boolean valid = rate >= 0 && !lane.starved && lane.running.size() == lane.limit;
+            lane.bytes = bytes;
+            lane.time = now;
+            lane.starved = lane.waiting.isEmpty();
+            if (!valid) {
+                continue;
+            }
+            if (rate > lane.bestRate) {
+                lane.bestRate = rate;
+                lane.bestLimit = lane.limit;
+            }
+            if (lane.raised && rate < lane.baseRate * (1 - TOLERANCE)) {
+                // The last increase made it slower than the previous limit, so back off, and measure the new limit before raising it again.
+                lane.limit = Math.max(1, lane.limit / 2);
+                lane.raised = false;
+                continue;
+            }
+            // The current limit is measured and no slower than the previous one, so it becomes the base of the next increase. At the maximum, the limit is kept however the throughput varies.
+            lane.baseRate = rate;
+            lane.raised = lane.limit < workers;
+            if (lane.raised) {
+                ++lane.limit;
+                dispatch(lane);
+            }
+        }
+    }
+
+    /**
+     * Add jobs for all files in a directory tree. The tree is mirrored to the destination directory.
+     *
+     * @param engine the engine
+     * @param method the method
+     * @param sourceDirectory the source directory
+     * @param destinationDirectory the destination directory, or null for {@link CryptMethod#VERIFY}
+     * @return the jobs
+     * @throws IOException if the source directory cannot be read
+     */
+    public List<CryptJob> addTree(final CryptEngine engine, final CryptMethod method, final File sourceDirectory, final File destinationDirectory) throws IOException {
+        final List<CryptJob> added = new ArrayList<>();
+        for (final File source : listTree(sourceDirectory)) {
+            added.add(add(engine, method, source, destinationDirectory == null ? null : mirror(sourceDirectory, source, destinationDirectory)));
+        }
+        return added;
+    }
+
+    /**
+     * List all files in a directory tree, except the part files and the journals of interrupted jobs, and manifests.
+     *
+     * @param directory the directory
+     * @return the files, sorted by their paths
+     * @throws IOException if the directory cannot be read
+     */
+    public static List<File> listTree(final File directory) throws IOException {
+        try (final Stream<Path> stream = Files.walk(directory.toPath())) {
+            return stream.filter(p -> Files.isRegularFile(p) && !isWorkFile(p.getFileName().toString())).sorted().map(Path::toFile).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Check whether a file name is a part file or a journal left by an interrupted job, or a manifest.
+     *
+     * @param name the file name
+     * @return true if the file is a part file, a journal or a manifest
+     */
+    private static boolean isWorkFile(final String name) {
+        return name.startsWith(".") && (name.endsWith(CryptEngine.PART_SUFFIX) || name.endsWith(CryptEngine.JOURNAL_SUFFIX) || name.endsWith(CryptEngine.JOURNAL_SUFFIX + ".tmp") || name.equals(CryptManifest.FILE_NAME) || name.equals(CryptManifest.FILE_NAME + ".tmp"));
+    }
+
+    /**
+     * Get the path of a file in a mirrored tree.
+     *
+     * @param sourceDirectory the source directory
+     * @param source a file in the source directory
+     * @param destinationDirectory the destination directory
+     * @return the file at the same relative path in the destination directory
+     */
+    public static File mirror(final File sourceDirectory, final File source, final File destinationDirectory) {
+        return destinationDirectory.toPath().resolve(sourceDirectory.toPath().relativize(source.toPath())).toFile();
+    }
+
+    /**
+     * Get all jobs, including the ones which have ended unless they are not kept.
+     *
+     * @return a copy of the jobs, in the order they were added
+     */
+    public synchronized List<CryptJob> getJobs() {
+        return new ArrayList<>(jobs);
+    }
+
+    /**
+     * Cancel all jobs which have not ended.
+     */
+    public synchronized void cancelAll() {
+        for (final CryptJob job : jobs) {
+            job.cancel();
+        }
+    }
+
+    /**
+     * Remove the jobs which have ended. Their bytes are no longer counted by {@link #getCurrentBytes()} and {@link #getTotalBytes()}.
+     */
+    public synchronized void clearDone() {
+        jobs.removeIf(job -> job.getState().isDone());
+        doneBytes = 0;
+        doneTotalBytes = 0;
+    }
+
+    /**
+     * Check whether any job has not ended.
+     *
+     * @return true if any job has not ended
+     */
+    public synchronized boolean isBusy() {
+        return pending > 0;
+    }
+
+    /**
+     * Wait until all jobs end.
+     *
+     * @throws InterruptedException if the current thread is interrupted
+     */
+    public synchronized void awaitIdle() throws InterruptedException {
+        while (pending > 0) {
+            wait();
+        }
+    }
+
+    /**
+     * Get the number of bytes handled by the jobs which have not been cancelled. Only the running jobs are visited, and the ended jobs are counted as they end.
+     *
+     * @return the number of bytes
+     */
+    public synchronized long getCurrentBytes() {
+        long sum = doneBytes;
+        for (final CryptJob job : running()) {
+            if (job.getState() != CryptJob.State.CANCELLED) {
+                sum += job.getState().isDone() ? job.getTotalBytes() : job.getCurrentBytes();
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Get the total number of bytes of the jobs which have not been cancelled. Only the running jobs are visited, and the waiting and ended jobs are counted as they are added and end.
+     *
+     * @return the number of bytes
+     */
+    public synchronized long getTotalBytes() {
+        long sum = waitingBytes + doneTotalBytes;
+        for (final CryptJob job : running()) {
+            if (job.getState() != CryptJob.State.CANCELLED) {
+                sum += job.getTotalBytes();
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Get the running jobs of all lanes. The monitor of this queue must be held.
+     *
+     * @return the running jobs
+     */
+    private List<CryptJob> running() {
+        final List<CryptJob> list = new ArrayList<>(shared.running);
+        for (final Lane lane : lanes.values()) {
+            list.addAll(lane.running);
+        }
+        return list;
+    }
+
+    // -----Inner Class-----
+    /**
+     * The jobs of a file store, or of all file stores when the adaptive mode is off. Its fields are guarded by the monitor of the queue.
+     */
+    private static final class Lane {
+
+        private final String name;
+        private final Deque<CryptJob> waiting = new ArrayDeque<>();
+        private final Set<CryptJob> running = new HashSet<>();
+        private int limit = 1, bestLimit;
+        private boolean starved, raised;
+        private long doneBytes, bytes, time;
+        private double baseRate, bestRate;
+
+        private Lane(final String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * The number of jobs run at once on a file store in the adaptive mode.
+     */
+    public static final class Concurrency {
+
+        private final String store;
+        private final int limit, bestLimit;
+        private final double bestRate;
+
+        private Concurrency(final String store, final int limit, final int bestLimit, final double bestRate) {
+            this.store = store;
+            this.limit = limit;
+            this.bestLimit = bestLimit;
+            this.bestRate = bestRate;
+        }
+
+        /**
+         * Get the name of the file store.
+         *
+         * @return the name
+         */
+        public String getStore() {
+            return store;
+        }
+
+        /**
+         * Get the number of jobs run at once now.
+         *
+         * @return the number of jobs
+         */
+        public int getLimit() {
+            return limit;
+        }
+
+        /**
+         * Get the number of jobs run at once in the window with the highest throughput.
+         *
+         * @return the number of jobs, or 0 if no window has been measured
+         */
+        public int getBestLimit() {
+            return bestLimit;
+        }
+
+        /**
+         * Get the highest throughput measured in a window.
+         *
+         * @return the throughput in bytes per second, or 0 if no window has been measured
+         */
+        public double getBestRate() {
+            return bestRate;
+        }
+
+        @Override
+        public String toString() {
+            return bestLimit == 0 ? String.format("%s: %d", store, limit) : String.format("%s: %d, best %d at %s/s", store, limit, bestLimit, ProgressMeter.formatBytes(bestRate));
+        }
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A local HTTP server which keeps the JVM and the engine warm, so that scripts which make many small calls do not pay the startup cost every time.
+ * <p>
+ * All requests use POST. The key, the key strength and the IV of the server are used unless a request overrides them with the <b>X-Key</b>, <b>X-Bits</b> and <b>X-IV</b> headers.
+ * </p>
+ * <ul>
+ * <li><b>/encrypt</b> and <b>/decrypt</b> stream the request body to the response body in the classic format, which is the same as the text tab. With <b>?base64=true</b>, the ciphertext is Base64, which is the same as the text tab.</li>
+ * <li><b>/file?method=&lt;method&gt;&amp;source=&lt;path&gt;&amp;destination=&lt;path&gt;</b> handles a file on the server in the same way as the file tab. Existing destination files are kept unless <b>force=true</b> is given, and the Verify method needs no destination.</li>
+ * </ul>
+ * <p>
+ * The responses of <b>/encrypt</b> and <b>/decrypt</b> are held until they exceed {@link #DEFERRED_SIZE}, so a request whose response fits is handled completely before the status is sent, and a wrong key or damaged data gets status 422. Longer responses are streamed, and a failure after the status has been sent drops the connection.
+ * </p>
+ * <p>
+ * Every request is served on a virtual thread if the runtime supports them, or on a pooled thread otherwise. The server is bound to the loopback address unless another host is given, because anyone who can reach it can use its key.
+ * </p>
+ *
+ * @author Magic Len
+ */
+public class CryptServer {
+
+    // -----Class Constant-----
+    /**
+     * The size of responses which are held until their requests have been handled completely.
+     */
+    public static final int DEFERRED_SIZE = 1024 * 1024;
+
+    // -----Object Constant-----
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final EngineFactory factory;
+    private final String key, iv;
+    private final int bits;
+    private final CryptEngine engine;
+
+    // -----Constructor-----
+    /**
+     * Construct a server which is not started.
+     *
+     * @param address the address to bind
+     * @param factory the factory of engines, which sets the options of the server on every engine
+     * @param key the default key
+     * @param bits the default key strength
+     * @param iv the default IV, or null
+     * @throws IOException if the address cannot be bound
+     */
+    public CryptServer(final InetSocketAddress address, final EngineFactory factory, final String key, final int bits, final String iv) throws IOException {
+        this.factory = factory;
+        this.key = key;
+        this.bits = bits;
+        this.iv = iv;
+        this.engine = factory.create(key, bits, iv);
+        executor = newExecutor();
+        server = HttpServer.create(address, 0);
+        server.setExecutor(executor);
+        server.createContext("/encrypt", exchange -> handle(exchange, this::handleEncrypt));
+        server.createContext("/decrypt", exchange -> handle(exchange, this::handleDecrypt));
+        server.createContext("/file", exchange -> handle(exchange, this::handleFile));
+    }
+
+    // -----Class Method-----
+    /**
+     * Create an executor which runs every task on a new virtual thread if the runtime supports them, or on a pooled daemon thread otherwise.
+     *
+     * @return the executor
+     */
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (final ReflectiveOperationException ex) {
+            return Executors.newCachedThreadPool(r -> {
+                final Thread thread = new Thread(r, "CryptTool server");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Parse the query of a request.
+     *
+     * @param query the raw query, or null
+     * @return the parameters
+     */
+    private static Map<String, String> parseQuery(final String query) {
+        final Map<String, String> parameters = new HashMap<>();
+        if (query == null) {
+            return parameters;
+        }
+        for (final String pair : query.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            final int index = pair.indexOf('=');
+            final String name = URLDecoder.decode(index < 0 ? pair : pair.substring(0, index), StandardCharsets.UTF_8);
+            final String value = index < 0 ? "" : URLDecoder.decode(pair.substring(index + 1), StandardCharsets.UTF_8);
+            parameters.put(name, value);
+        }
+        return parameters;
+    }
+
+    /**
+     * Send a short text response.
+     *
+     * @param exchange the exchange
+     * @param status the status code
+     * @param text the text
+     * @throws IOException if an I/O error occurs
+     */
+    private static void sendText(final HttpExchange exchange, final int status, final String text) throws IOException {
+        final byte[] body = (text + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    // -----Object Method-----
+    /**
+     * Start serving.
+     */
+    public void start() {
+        // Register the MBean now, so that JMX clients can find it before the first request.
+        CryptMetrics.getInstance();
+        server.start();
+    }
+
+    /**
+     * Stop serving. Requests which are being handled are given a second to finish.
+     */
+    public void stop() {
+        server.stop(1);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Get the address the server is bound to.
+     *
+     * @return the address
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Get the engine of a request. The engine of the server is used unless the key is overridden by headers.
+     *
+     * @param exchange the exchange
+     * @return the engine
+     */
+    private CryptEngine engineOf(final HttpExchange exchange) {
+        final String requestKey = exchange.getRequestHeaders().getFirst("X-Key");
+        final String requestBits = exchange.getRequestHeaders().getFirst("X-Bits");
+        final String requestIV = exchange.getRequestHeaders().getFirst("X-IV");
+        if (requestKey == null && requestBits == null && requestIV == null) {
+            return engine;
+        }
+        int b = bits;
+        if (requestBits != null) {
+            try {
+                b = Integer.parseInt(requestBits.trim());
+            } catch (final NumberFormatException ex) {
+                b = 0;
+            }
+            if (b != 64 && b != 128 && b != 192 && b != 256) {
+                throw new RuntimeException(String.format("The key strength must be 64, 128, 192 or 256: %s", requestBits));
+            }
+        }
+        return factory.create(requestKey != null ? requestKey : key, b, requestIV != null ? requestIV : iv);
+    }
+
+    /**
+     * Handle a request and map failures which happen before the response has started to status codes. A failure after the response has started is thrown without closing the exchange, so the server drops the connection before the end of the response and the client sees an incomplete response instead of a truncated one.
+     *
+     * @param exchange the exchange
+     * @param handler the handler
+     * @throws IOException if the response has started and cannot be completed
+     */
+    private void handle(final HttpExchange exchange, final Handler handler) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                sendText(exchange, 405, "Use POST.");
+            } else {
+                handler.handle(exchange);
+            }
+        } catch (final IOException | RuntimeException ex) {
+            if (exchange.getResponseCode() >= 0) {
+                throw ex;
+            }
+            final String message = ex.getMessage() != null ? ex.getMessage() : ex.toString();
+            if (ex instanceof IOException) {
+                sendText(exchange, 422, message);
+            } else if (ex instanceof CancellationException) {
+                sendText(exchange, 503, message);
+            } else {
+                sendText(exchange, 400, message);
+            }
+        }
+        exchange.close();
+    }
+
+    private void handleEncrypt(final HttpExchange exchange) throws IOException {
+        final CryptEngine requestEngine = engineOf(exchange);
+        final boolean base64 = Boolean.parseBoolean(parseQuery(exchange.getRequestURI().getRawQuery()).get("base64"));
+        exchange.getResponseHeaders().set("Content-Type", base64 ? "text/plain; charset=us-ascii" : "application/octet-stream");
+        final DeferredResponse response = new DeferredResponse(exchange);
+        final OutputStream out = base64 ? Base64.getEncoder().wrap(response) : response;
+        try (final InputStream in = exchange.getRequestBody()) {
+            requestEngine.encrypt(in, out);
+        }
+        out.close();
+    }
+
+    private void handleDecrypt(final HttpExchange exchange) throws IOException {
+        final CryptEngine requestEngine = engineOf(exchange);
+        final boolean base64 = Boolean.parseBoolean(parseQuery(exchange.getRequestURI().getRawQuery()).get("base64"));
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        final DeferredResponse response = new DeferredResponse(exchange);
+        try (final InputStream in = base64 ? Base64.getMimeDecoder().wrap(exchange.getRequestBody()) : exchange.getRequestBody()) {
+            requestEngine.decrypt(in, response);
+        }
+        response.close();
+    }
+
+    private void handleFile(final HttpExchange exchange) throws IOException {
+        final Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+        final CryptMethod method = CryptMethod.parse(parameters.getOrDefault("method", CryptMethod.AUTO.toString()));
+        final String sourcePath = parameters.get("source");
+        final String destinationPath = parameters.get("destination");
+        if (sourcePath == null || sourcePath.isEmpty()) {
+            throw new RuntimeException("The source parameter is needed.");
+        }
+        final File source = new File(sourcePath).getAbsoluteFile();
+        if (!source.isFile()) {
+            throw new RuntimeException(String.format("Not a file: %s", source));
+        }
+        File destination = null;
+        if (method != CryptMethod.VERIFY) {
+            if (destinationPath == null || destinationPath.isEmpty()) {
+                throw new RuntimeException("The destination parameter is needed.");
+            }
+            destination = new File(destinationPath).getAbsoluteFile();
+            if (destination.equals(source)) {
+                throw new RuntimeException("The destination and source files must be different.");
+            }
+            if (destination.exists() && (destination.isDirectory() || !Boolean.parseBoolean(parameters.get("force")))) {
+                sendText(exchange, 409, String.format("The destination file exists: %s", destination));
+                return;
+            }
+        }
+        final CryptMethod used = engineOf(exchange).crypt(method, source, destination, null);
+        sendText(exchange, 200, destination == null ? String.format("%s: %s", used.getDoneText(), source) : String.format("%s: %s -> %s", used.getDoneText(), source, destination));
+    }
+
+    // -----Inner Class-----
+    /**
+     * The factory of engines, which sets the options of the server on every engine.
+     */
+    public interface EngineFactory {
+
+        /**
+         * Create an engine.
+         *
+         * @param key the key
+         * @param bits the key strength
+         * @param iv the IV, or null
+         * @return the engine
+         */
+        CryptEngine create(String key, int bits, String iv);
+    }
+
+    /**
+     * The handler of a path.
+     */
+    private interface Handler {
+
+        /**
+         * Handle a request.
+         *
+         * @param exchange the exchange
+         * @throws IOException if an I/O error occurs
+         */
+        void handle(HttpExchange exchange) throws IOException;
+    }
+
+    /**
+     * The body of a successful response, which is held in memory until it exceeds {@link #DEFERRED_SIZE}. The status is sent when the body exceeds it or is closed, so a failure before that can still be reported with another status.
+     */
+    private static final class DeferredResponse extends OutputStream {
+
+        private final HttpExchange exchange;
+        private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private OutputStream body;
+
+        private DeferredResponse(final HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        /**
+         * Send the status and the held bytes.
+         *
+         * @param length the length of the body, 0 if unknown, or -1 if there is no body
+         * @throws IOException if an I/O error occurs
+         */
+        private void commit(final long length) throws IOException {
+            exchange.sendResponseHeaders(200, length);
+            body = exchange.getResponseBody();
+            pending.writeTo(body);
+            pending = null;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (body != null) {
+                body.write(b, off, len);
+                return;
+            }
+            pending.write(b, off, len);
+            if (pending.size() > DEFERRED_SIZE) {
+                commit(0);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (body == null) {
+                commit(pending.size() == 0 ? -1 : pending.size());
+            }
+            body.close();
+        }
+    }
+}
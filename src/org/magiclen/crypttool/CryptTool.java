@@ -20,18 +20,32 @@ package org.magiclen.crypttool;
 import java.awt.Desktop;
 import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
 import java.net.URI;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
 import javafx.application.Application;
 import javafx.application.Platform;
+import javafx.collections.FXCollections;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.geometry.Rectangle2D;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
 import javafx.scene.control.ButtonType;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
 import javafx.scene.control.ProgressBar;
 import javafx.scene.control.RadioButton;
+import javafx.scene.control.SelectionMode;
+import javafx.scene.control.Spinner;
 import javafx.scene.control.Tab;
 import javafx.scene.control.TabPane;
 import javafx.scene.control.TextArea;
@@ -40,7 +54,9 @@ import javafx.scene.control.ToggleGroup;
 import javafx.scene.control.Tooltip;
 import javafx.scene.input.Clipboard;
 import javafx.scene.input.ClipboardContent;
+import javafx.scene.input.Dragboard;
 import javafx.scene.input.KeyCode;
+import javafx.scene.input.TransferMode;
 import javafx.scene.layout.Border;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.BorderStroke;
@@ -52,11 +68,16 @@ import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
 import javafx.scene.paint.Color;
 import javafx.scene.text.Font;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Screen;
 import javafx.stage.Stage;
-import org.magiclen.magiccrypt.MagicCrypt;
-import org.magiclen.magiccrypt.lib.Crypt;
+import javafx.util.Duration;
+import org.magiclen.crypttool.lib.Codec;
+import org.magiclen.crypttool.lib.CryptCache;
+import org.magiclen.crypttool.lib.CryptDetector;
+import org.magiclen.crypttool.lib.CryptFormat;
+import org.magiclen.crypttool.lib.TextCrypt;
 import org.magiclen.magicdialog.Dialogs;
 
 /**
@@ -66,17 +87,6 @@ import org.magiclen.magicdialog.Dialogs;
  */
 public class CryptTool extends Application {
 
-    // -----Class Constant-----
-    private static final int SCREEN_WIDTH, SCREEN_HEIGHT;
-
-    // -----Initial Static-----
-    static {
-        final Screen mainScreen = Screen.getPrimary();
-        final Rectangle2D screenRectangle = mainScreen.getBounds();
-        SCREEN_WIDTH = (int) screenRectangle.getWidth();
-        SCREEN_HEIGHT = (int) screenRectangle.getHeight();
-    }
-
     // -----Object Constant-----
     /**
      * The default value of width.
@@ -85,7 +95,7 @@ public class CryptTool extends Application {
     /**
      * The default value of Height.
      */
-    private final int HEIGHT = 540;
+    private final int HEIGHT = 680;
     /**
      * The default distance of controls.
      */
@@ -102,9 +112,25 @@ public class CryptTool extends Application {
      * The default height of progress bar.
      */
     private final float PROGRESS_HEIGHT = 50;
+    /**
+     * The maximum length of results shown in the text area. Longer results are shown in a virtualized list.
+     */
+    private final int MAX_TEXT_AREA_LENGTH = 1024 * 1024;
 
     private final Border encryptBorder = new Border(new BorderStroke(Color.RED, BorderStrokeStyle.SOLID, CornerRadii.EMPTY, BorderWidths.DEFAULT));
     private final Border decryptBorder = new Border(new BorderStroke(Color.GREEN, BorderStrokeStyle.SOLID, CornerRadii.EMPTY, BorderWidths.DEFAULT));
+    /**
+     * The meter of the throughput of the file tab, sampled by {@link #tlFileProgress}.
+     */
+    private final ProgressMeter fileMeter = new ProgressMeter();
+    /**
+     * The prepared crypts of the text tab. It is used on the thread of {@link #textRunner} only.
+     */
+    private final CryptCache textCache = new CryptCache();
+    /**
+     * The runner which transforms text off the JavaFX application thread.
+     */
+    private final LatestTaskRunner<TextResult> textRunner = new LatestTaskRunner<>("TextCrypt", 150, Platform::runLater, this::showTextResult, this::showTextError);
 
     // -----Object Variable-----
     /**
@@ -132,249 +158,404 @@ public class CryptTool extends Application {
      */
     private BorderPane MAIN_ROOT;
     private TextArea taTextSource, taTextDestination;
-    private TextField tfTextKey, tfTextIV, tfFileKey, tfFileIV, tfFileSource, tfFileDestination;
-    private Button bCopy, bStartOrStop;
-    private RadioButton rbTextAuto, rbTextEnc, rbTextDec, rbText64, rbText128, rbText192, rbText256, rbFileAuto, rbFileEnc, rbFileDec, rbFile64, rbFile128, rbFile192, rbFile256;
-    private ToggleGroup tgTextMethod, tgTextKeyLength, tgFileMethod, tgFileKeyLength;
+    private ListView<String> lvTextDestination;
+    private TextField tfTextKey, tfTextIV, tfFileKey, tfFileIV, tfFileSource, tfFileDestination, tfFileRange;
+    private Button bCopy, bSave, bAdd, bCancel, bCancelAll, bClear;
+    private RadioButton rbTextAuto, rbTextEnc, rbTextDec, rbText64, rbText128, rbText192, rbText256, rbFileAuto, rbFileEnc, rbFileDec, rbFileVerify, rbFile64, rbFile128, rbFile192, rbFile256, rbFileClassic, rbFileSegmented, rbFileAuthenticated;
+    private ToggleGroup tgTextMethod, tgTextKeyLength, tgFileMethod, tgFileKeyLength, tgFileFormat;
     private VBox vbText, vbFile;
-    private HBox hbTextMethod, hbTextBits, hbFileMethod, hbFileBits;
-    private Label lTextMethod, lTextKey, lFileMethod, lFileKey, lFileSource, lFileDestination, lAuthor;
+    private HBox hbTextMethod, hbTextBits, hbTextButtons, hbFileMethod, hbFileBits, hbFileFormat, hbFileButtons, hbFileWorkers;
+    private Label lTextMethod, lTextKey, lFileMethod, lFileKey, lFileFormat, lFileWorkers, lFileProgress, lFileSource, lFileDestination, lAuthor;
     private TabPane tpMain;
     private Tab tText, tFile;
     private ProgressBar pbProgress;
+    private ListView<CryptJob> lvFileJobs;
+    private CheckBox cbFileCompress, cbFileAdaptive;
+    private Spinner<Integer> spFileWorkers;
+    private Timeline tlFileProgress;
     private FileChooser fcChooser;
+    private DirectoryChooser dcChooser;
 
-    private boolean runningFile = false, stoppingFile = false;
+    private CryptQueue queue;
+    /**
+     * The profile of this host, which is loaded once when the GUI starts.
+     */
+    private CryptProfile profile;
+    private boolean fileBusy = false;
+    /**
+     * The result of the text tab.
+     */
+    private TextBuffer textOutput = new TextBuffer();
 
     // -----Object Method-----
     /**
-     * Lock or unclock controls.
+     * Create an engine with the settings of the file tab.
      *
-     * @param disable whether to disable controls
-     */
-    private void lockOrUnlock(final boolean disable) {
-        tfFileSource.setDisable(disable);
-        tfFileDestination.setDisable(disable);
-        tfFileKey.setDisable(disable);
-        tfFileIV.setDisable(disable);
-        rbFileAuto.setDisable(disable);
-        rbFileEnc.setDisable(disable);
-        rbFileDec.setDisable(disable);
-        rbFile64.setDisable(disable);
-        rbFile128.setDisable(disable);
-        rbFile192.setDisable(disable);
-        rbFile256.setDisable(disable);
-        bStartOrStop.setText(disable ? "Stop" : "Start");
+     * @return the engine
+     */
+    private CryptEngine createFileEngine() {
+        final String key = tfFileKey.getText().trim();
+        final String iv = tfFileIV.getText();
+
+        final Integer rbFilebits = (Integer) tgFileKeyLength.getSelectedToggle().getUserData();
+        final CryptFormat format = (CryptFormat) tgFileFormat.getSelectedToggle().getUserData();
+
+        final CryptEngine engine = new CryptEngine(key, rbFilebits, iv);
+        if (profile != null) {
+            profile.apply(engine);
+        }
+        engine.setFormat(format);
+        if (format != CryptFormat.CLASSIC && cbFileCompress.isSelected()) {
+            engine.setCodec(Codec.DEFLATE);
+        }
+        final String range = tfFileRange.getText().trim();
+        if (rbFileDec.isSelected() && range.length() > 0) {
+            final long[] r = CryptCommand.parseRange(range);
+            engine.setRange(r[0], r[1]);
+        }
+        return engine;
     }
 
     /**
-     * Encrypt or decrypt a file.
+     * Check the range of the file tab, which is used only by the Decrypt method.
+     *
+     * @return true if the range is empty or valid
      */
-    private void handleFile() {
-        if (runningFile) {
-            stoppingFile = true;
-            return;
+    private boolean checkFileRange() {
+        final String range = tfFileRange.getText().trim();
+        if (rbFileDec.isSelected() && range.length() > 0) {
+            try {
+                CryptCommand.parseRange(range);
+            } catch (final RuntimeException ex) {
+                Dialogs.create().type(Dialogs.Type.INFORMATION).title("HINT").message("You need to input the range correctly, such as 30G:4K, which is an offset and an optional length.").showAndWait();
+                return false;
+            }
         }
-        runningFile = true;
-        stoppingFile = false;
-        lockOrUnlock(true);
-        pbProgress.setProgress(-1);
+        return true;
+    }
 
+    /**
+     * Check whether the Verify method is selected in the file tab.
+     *
+     * @return true if the Verify method is selected
+     */
+    private boolean isFileVerify() {
+        return tgFileMethod.getSelectedToggle().getUserData() == CryptMethod.VERIFY;
+    }
+
+    /**
+     * Add the jobs of the source and destination paths in the file tab. The Verify method needs no destination.
+     */
+    private void handleFile() {
         final String sourcePath = tfFileSource.getText().trim();
         final String destinationPath = tfFileDestination.getText().trim();
 
-        final String key = tfFileKey.getText().trim();
-        final String iv = tfFileIV.getText();
-
-        final Integer rbTextbits = (Integer) tgFileKeyLength.getSelectedToggle().getUserData();
+        if (sourcePath.length() == 0) {
+            Dialogs.create().type(Dialogs.Type.INFORMATION).title("HINT").message("You need to input the path of source file.").showAndWait();
+            return;
+        }
+        if (!checkFileRange()) {
+            return;
+        }
+        if (isFileVerify()) {
+            addFileJobs(createFileEngine(), new File(sourcePath).getAbsoluteFile(), null);
+            return;
+        }
+        if (destinationPath.length() == 0) {
+            Dialogs.create().type(Dialogs.Type.INFORMATION).title("HINT").message("You need to input the path of destination file.").showAndWait();
+            return;
+        }
 
-        taTextSource.setBorder(null);
-        taTextDestination.setBorder(null);
+        addFileJobs(createFileEngine(), new File(sourcePath).getAbsoluteFile(), new File(destinationPath).getAbsoluteFile());
+    }
 
-        try {
-            if (sourcePath.length() == 0) {
-                Dialogs.create().type(Dialogs.Type.INFORMATION).title("HINT").message("You need to input the path of source file.").showAndWait();
-                throw new Exception();
+    /**
+     * Add the jobs of files dropped on the job list. They are saved into the destination directory.
+     *
+     * @param files the dropped files
+     */
+    private void handleDroppedFiles(final List<File> files) {
+        if (!checkFileRange()) {
+            return;
+        }
+        if (isFileVerify()) {
+            final CryptEngine engine = createFileEngine();
+            for (final File file : files) {
+                addFileJobs(engine, file.getAbsoluteFile(), null);
             }
-            if (destinationPath.length() == 0) {
-                Dialogs.create().type(Dialogs.Type.INFORMATION).title("HINT").message("You need to input the path of destination file.").showAndWait();
-                throw new Exception();
+            return;
+        }
+        final String destinationPath = tfFileDestination.getText().trim();
+        final File destinationDirectory = new File(destinationPath).getAbsoluteFile();
+        if (destinationPath.length() == 0 || destinationDirectory.isFile()) {
+            Dialogs.create().type(Dialogs.Type.INFORMATION).title("HINT").message("You need to input the path of destination directory.").showAndWait();
+            return;
+        }
+
+        final CryptEngine engine = createFileEngine();
+        for (final File file : files) {
+            final File source = file.getAbsoluteFile();
+            if (!addFileJobs(engine, source, new File(destinationDirectory, source.getName()))) {
+                break;
             }
+        }
+    }
+
+    /**
+     * Add the job of a file, or the jobs of all files in a directory tree.
+     *
+     * @param engine the engine
+     * @param source the source file or directory
+     * @param destination the destination file, or the destination directory if the source is a directory, or null for the Verify method
+     * @return false if the user cancels
+     */
+    private boolean addFileJobs(final CryptEngine engine, final File source, final File destination) {
+        final CryptMethod method = (CryptMethod) tgFileMethod.getSelectedToggle().getUserData();
 
-            final File source = new File(sourcePath).getAbsoluteFile();
-            if (!source.exists() || source.isDirectory()) {
-                Dialogs.create().type(Dialogs.Type.INFORMATION).title("HINT").message("You need to input the path of source file correctly.").showAndWait();
-                throw new Exception();
+        if (!source.exists()) {
+            Dialogs.create().type(Dialogs.Type.INFORMATION).title("HINT").message("You need to input the path of source file correctly.").showAndWait();
+            return false;
+        }
+
+        if (destination == null) {
+            if (source.isDirectory()) {
+                try {
+                    queue.addTree(engine, method, source, null);
+                } catch (final IOException ex) {
+                    Dialogs.create().type(Dialogs.Type.WARNING).title("WARNING").message(ex.getMessage()).showAndWait();
+                    return false;
+                }
+            } else {
+                queue.add(engine, method, source, null);
             }
+            lvFileJobs.getItems().setAll(queue.getJobs());
+            return true;
+        }
 
-            final File destination = new File(destinationPath).getAbsoluteFile();
+        if (source.isDirectory()) {
+            if (destination.isFile()) {
+                Dialogs.create().type(Dialogs.Type.INFORMATION).title("HINT").message("You need to input the path of destination directory correctly.").showAndWait();
+                return false;
+            }
+            if (destination.toPath().startsWith(source.toPath())) {
+                Dialogs.create().type(Dialogs.Type.WARNING).title("WARNING").message("The destination directory must not be in the source directory.").showAndWait();
+                return false;
+            }
+            final List<File> sources;
+            try {
+                sources = CryptQueue.listTree(source);
+            } catch (final IOException ex) {
+                Dialogs.create().type(Dialogs.Type.WARNING).title("WARNING").message(ex.getMessage()).showAndWait();
+                return false;
+            }
+            int exists = 0;
+            for (final File file : sources) {
+                if (CryptQueue.mirror(source, file, destination).exists()) {
+                    ++exists;
+                }
+            }
+            if (exists > 0) {
+                final ButtonType rtn = Dialogs.create().type(Dialogs.Type.QUESTION).title("QUESTION").header(String.format("%d destination files exist.", exists)).message("Do you want to overwrite the original files?").showAndWait();
+                if (rtn != ButtonType.OK) {
+                    return false;
+                }
+            }
+            for (final File file : sources) {
+                queue.add(engine, method, file, CryptQueue.mirror(source, file, destination));
+            }
+        } else {
             if (destination.exists()) {
                 if (destination.isDirectory()) {
                     Dialogs.create().type(Dialogs.Type.INFORMATION).title("HINT").message("You need to input the path of destination file correctly.").showAndWait();
-                    throw new Exception();
+                    return false;
                 } else if (destination.equals(source)) {
                     Dialogs.create().type(Dialogs.Type.WARNING).title("WARNING").message("The destination and source files must be different.").showAndWait();
-                    throw new Exception();
+                    return false;
                 } else {
                     final ButtonType rtn = Dialogs.create().type(Dialogs.Type.QUESTION).title("QUESTION").header("Destination file exists.").message("Do you want to overwrite the original file?").showAndWait();
                     if (rtn != ButtonType.OK) {
-                        throw new Exception();
+                        return false;
                     }
                 }
             }
+            queue.add(engine, method, source, destination);
+        }
+        lvFileJobs.getItems().setAll(queue.getJobs());
+        return true;
+    }
 
-            final MagicCrypt mc = new MagicCrypt(key, rbTextbits, iv.length() == 0 ? null : iv.trim());
-            final Crypt.CryptListener listener = new Crypt.CryptListener() {
+    /**
+     * Cancel the selected jobs.
+     */
+    private void cancelSelectedFileJobs() {
+        for (final CryptJob job : lvFileJobs.getSelectionModel().getSelectedItems()) {
+            job.cancel();
+        }
+    }
 
-                @Override
-                public void onStarted(final long totalBytes) {
-                    Platform.runLater(() -> {
-                        pbProgress.setProgress(-1);
-                    });
-                }
+    /**
+     * Refresh the job list and the aggregate progress. It is called periodically so that workers never post updates to the JavaFX application thread.
+     */
+    private void refreshFileJobs() {
+        final boolean busy = queue.isBusy();
+        if (!busy && !fileBusy) {
+            return;
+        }
+        final long total = queue.getTotalBytes();
+        final long current = queue.getCurrentBytes();
+        if (!fileBusy) {
+            fileMeter.reset();
+        }
+        fileMeter.sample(System.nanoTime(), current, total);
+        fileBusy = busy;
+        lvFileJobs.refresh();
+        pbProgress.setProgress(total <= 0 ? (busy ? -1 : 0) : current * 1d / total);
+        final StringBuilder sb = new StringBuilder(String.format("%s / %s, %s", ProgressMeter.formatBytes(current), ProgressMeter.formatBytes(total), fileMeter));
+        for (final CryptQueue.Concurrency concurrency : queue.getConcurrency()) {
+            sb.append(String.format(", %d jobs on %s", concurrency.getLimit(), concurrency.getStore()));
+        }
+        lFileProgress.setText(sb.toString());
+    }
 
-                @Override
-                public boolean onRunning(final long currentBytes, final long totalBytes) {
-                    if (totalBytes <= 0) {
-                        Platform.runLater(() -> {
-                            pbProgress.setProgress(-1);
-                        });
-                    } else {
-                        Platform.runLater(() -> {
-                            pbProgress.setProgress(currentBytes * 1f / totalBytes);
-                        });
-                    }
-                    return !stoppingFile;
-                }
+    /**
+     * Transform the text on the background thread. Only the result of the latest input is shown.
+     */
+    private void handleText() {
+        final String source = taTextSource.getText();
+        final String key = tfTextKey.getText().trim();
+        final String iv = tfTextIV.getText();
 
-                @Override
-                public void onFinished(final long finishedBytes, final long totalBytes) {
-                    if (stoppingFile) {
-                        destination.delete();
-                    } else {
-                        Platform.runLater(() -> {
-                            pbProgress.setProgress(1);
-                        });
-                    }
+        final int rbTextbits = (Integer) tgTextKeyLength.getSelectedToggle().getUserData();
+        final CryptMethod method = (CryptMethod) tgTextMethod.getSelectedToggle().getUserData();
+
+        textRunner.submit(() -> {
+            final CharSequence text = trim(source);
+            final CryptMetrics.Operation operation = CryptMetrics.start(CryptMetrics.Kind.TEXT, method, rbTextbits);
+            try {
+                operation.setSize(text.length());
+                operation.setFormat(CryptFormat.CLASSIC, Codec.NONE);
+                final TextCrypt crypt = textCache.get(key, rbTextbits, iv.length() == 0 ? null : iv.trim());
+                final TextBuffer output = new TextBuffer();
+                final CryptMethod used;
+                final boolean encrypt;
+                if (method == CryptMethod.AUTO) {
+                    final boolean encrypted = crypt.isEncrypted(text);
+                    operation.setDetection(encrypted ? CryptDetector.Result.CLASSIC : CryptDetector.Result.PLAINTEXT);
+                    encrypt = !encrypted;
+                } else {
+                    encrypt = method == CryptMethod.ENCRYPT;
                 }
-            };
-            new Thread(() -> {
-                int encIndex = 2;
-                try {
-                    switch ((String) tgFileMethod.getSelectedToggle().getUserData()) {
-                        case "Auto":
-                            try {
-                                mc.decrypt(source, destination, listener);
-                                encIndex = 0;
-                            } catch (final Exception ex) {
-                                mc.encrypt(source, destination, listener);
-                                encIndex = 1;
-                            }
-                            break;
-                        case "Encrypt":
-                            mc.encrypt(source, destination, listener);
-                            encIndex = 1;
-                            break;
-                        case "Decrypt":
-                            mc.decrypt(source, destination, listener);
-                            encIndex = 0;
-                            break;
-                    }
-                } catch (final Exception ex) {
-                    final String msg = ex.getMessage();
-                    Dialogs.create().type(Dialogs.Type.WARNING).title("WARNING").message(msg).showAndWait();
+                if (encrypt) {
+                    crypt.encrypt(text, output);
+                    used = CryptMethod.ENCRYPT;
+                } else {
+                    crypt.decrypt(text, output);
+                    used = CryptMethod.DECRYPT;
                 }
+                operation.setUsedMethod(used);
+                output.finish();
+                return new TextResult(output, used);
+            } catch (final Throwable ex) {
+                operation.fail(ex);
+                throw ex;
+            } finally {
+                operation.finish();
+            }
+        });
+    }
 
-                final int fixedEncIndex = encIndex;
-                Platform.runLater(() -> {
-                    switch (fixedEncIndex) {
-                        case 0:
-                            tfFileSource.setBorder(encryptBorder);
-                            tfFileDestination.setBorder(decryptBorder);
-                            break;
-                        case 1:
-                            tfFileSource.setBorder(decryptBorder);
-                            tfFileDestination.setBorder(encryptBorder);
-                            break;
-                    }
-
-                    if (stoppingFile) {
-                        Dialogs.create().type(Dialogs.Type.INFORMATION).title("HINT").message("Stopped.").showAndWait();
-                    } else {
-                        Dialogs.create().type(Dialogs.Type.INFORMATION).title("HINT").message("Finished.").showAndWait();
-                    }
-                    lockOrUnlock(false);
-                    runningFile = false;
-                });
-            }).start();
-        } catch (final Exception ex) {
-            lockOrUnlock(false);
-            runningFile = false;
-            pbProgress.setProgress(0);
+    /**
+     * Get a view of a string without leading and trailing whitespace, in the same way as {@link String#trim()} but without copying.
+     *
+     * @param text the string
+     * @return the view
+     */
+    private static CharSequence trim(final String text) {
+        int start = 0;
+        int end = text.length();
+        while (start < end && text.charAt(start) <= ' ') {
+            ++start;
+        }
+        while (start < end && text.charAt(end - 1) <= ' ') {
+            --end;
         }
+        return CharBuffer.wrap(text, start, end);
     }
 
     /**
-     * Encrypt or decrypt text.
+     * Show the result of the text tab. Large results are shown in a virtualized list of rows instead of the text area.
+     *
+     * @param result the result
      */
-    private void handleText() {
-        final String text = taTextSource.getText().trim();
-        final String key = tfTextKey.getText().trim();
-        final String iv = tfTextIV.getText();
+    private void showTextResult(final TextResult result) {
+        textOutput = result.text;
+        final boolean large = result.text.length() > MAX_TEXT_AREA_LENGTH;
+        if (large) {
+            taTextDestination.clear();
+            lvTextDestination.setItems(FXCollections.observableList(result.text.getRows()));
+        } else {
+            lvTextDestination.getItems().clear();
+            taTextDestination.setText(result.text.toString());
+        }
+        taTextDestination.setVisible(!large);
+        taTextDestination.setManaged(!large);
+        lvTextDestination.setVisible(large);
+        lvTextDestination.setManaged(large);
+
+        final Border destinationBorder = result.method == CryptMethod.DECRYPT ? decryptBorder : encryptBorder;
+        taTextSource.setBorder(result.method == CryptMethod.DECRYPT ? encryptBorder : decryptBorder);
+        taTextDestination.setBorder(destinationBorder);
+        lvTextDestination.setBorder(destinationBorder);
+    }
 
-        final Integer rbTextbits = (Integer) tgTextKeyLength.getSelectedToggle().getUserData();
-
-        int encIndex = 2;
-        final MagicCrypt mc = new MagicCrypt(key, rbTextbits, iv.length() == 0 ? null : iv.trim());
-        try {
-            switch ((String) tgTextMethod.getSelectedToggle().getUserData()) {
-                case "Auto":
-                    try {
-                        taTextDestination.setText(mc.decrypt(text));
-                        encIndex = 0;
-                    } catch (final Exception ex) {
-                        taTextDestination.setText(mc.encrypt(text));
-                        encIndex = 1;
-                    }
-                    break;
-                case "Encrypt":
-                    taTextDestination.setText(mc.encrypt(text));
-                    encIndex = 1;
-                    break;
-                case "Decrypt":
-                    taTextDestination.setText(mc.decrypt(text));
-                    encIndex = 0;
-                    break;
-            }
-        } catch (final Exception ex) {
-            final String msg = ex.getMessage();
-            if (msg.contains("Illegal key size")) {
-                Dialogs.create().type(Dialogs.Type.WARNING).title("WARNING").message("You may need Java Cryptography Extension(JCE) to encrypt or decrypt.").showAndWait();
-            } else {
-                Dialogs.create().type(Dialogs.Type.WARNING).title("WARNING").message(msg).showAndWait();
-            }
+    /**
+     * Save the result of the text tab to a file, row by row.
+     */
+    private void saveTextResult() {
+        fcChooser.setTitle("Choose a file to save.");
+        final File file = fcChooser.showSaveDialog(MAIN_STAGE);
+        if (file == null) {
+            return;
+        }
+        fcChooser.setInitialDirectory(file.getParentFile());
+        try (final Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            textOutput.writeTo(writer);
+        } catch (final IOException ex) {
+            Dialogs.create().type(Dialogs.Type.WARNING).title("WARNING").message(ex.getMessage()).showAndWait();
         }
+    }
 
+    /**
+     * Show the error of the text tab.
+     *
+     * @param ex the error
+     */
+    private void showTextError(final Exception ex) {
         taTextSource.setBorder(null);
         taTextDestination.setBorder(null);
-        switch (encIndex) {
-            case 0:
-                taTextSource.setBorder(encryptBorder);
-                taTextDestination.setBorder(decryptBorder);
-                break;
-            case 1:
-                taTextSource.setBorder(decryptBorder);
-                taTextDestination.setBorder(encryptBorder);
-                break;
+        lvTextDestination.setBorder(null);
+        final String msg = ex.getMessage() != null ? ex.getMessage() : ex.toString();
+        if (msg.contains("Illegal key size")) {
+            Dialogs.create().type(Dialogs.Type.WARNING).title("WARNING").message("You may need Java Cryptography Extension(JCE) to encrypt or decrypt.").showAndWait();
+        } else {
+            Dialogs.create().type(Dialogs.Type.WARNING).title("WARNING").message(msg).showAndWait();
         }
     }
 
     /**
-     * Choose a file to load.
+     * Choose a file or a directory to load.
+     *
+     * @param directory whether to choose a directory
      */
-    private void chooseInputFile() {
-        fcChooser.setTitle("Choose a file to encrypt or decrypt.");
-        final File file = fcChooser.showOpenDialog(MAIN_STAGE);
+    private void chooseInputFile(final boolean directory) {
+        final File file;
+        if (directory) {
+            dcChooser.setTitle("Choose a directory to encrypt or decrypt.");
+            file = dcChooser.showDialog(MAIN_STAGE);
+        } else {
+            fcChooser.setTitle("Choose a file to encrypt or decrypt.");
+            file = fcChooser.showOpenDialog(MAIN_STAGE);
+        }
         if (file != null) {
             fcChooser.setInitialDirectory(file.getParentFile());
             tfFileSource.setText(file.getAbsolutePath());
@@ -382,11 +563,19 @@ public class CryptTool extends Application {
     }
 
     /**
-     * Choose a file to save.
+     * Choose a file or a directory to save.
+     *
+     * @param directory whether to choose a directory
      */
-    private void chooseOutputFile() {
-        fcChooser.setTitle("Choose a file to save.");
-        final File file = fcChooser.showSaveDialog(MAIN_STAGE);
+    private void chooseOutputFile(final boolean directory) {
+        final File file;
+        if (directory) {
+            dcChooser.setTitle("Choose a directory to save.");
+            file = dcChooser.showDialog(MAIN_STAGE);
+        } else {
+            fcChooser.setTitle("Choose a file to save.");
+            file = fcChooser.showSaveDialog(MAIN_STAGE);
+        }
         if (file != null) {
             fcChooser.setInitialDirectory(file.getParentFile());
             tfFileDestination.setText(file.getAbsolutePath());
@@ -400,10 +589,14 @@ public class CryptTool extends Application {
         bCopy.setOnAction((e) -> {
             final Clipboard clipboard = Clipboard.getSystemClipboard();
             final ClipboardContent content = new ClipboardContent();
-            content.putString(taTextDestination.getText());
+            content.putString(textOutput.toString());
             clipboard.setContent(content);
         });
 
+        bSave.setOnAction((e) -> {
+            saveTextResult();
+        });
+
         taTextSource.textProperty().addListener((e) -> {
             handleText();
         });
@@ -426,29 +619,64 @@ public class CryptTool extends Application {
 
         tfFileSource.setOnMouseClicked(e -> {
             if (e.getClickCount() == 3) {
-                chooseInputFile();
+                chooseInputFile(e.isShiftDown());
             }
         });
         tfFileDestination.setOnMouseClicked(e -> {
             if (e.getClickCount() == 3) {
-                chooseOutputFile();
+                chooseOutputFile(e.isShiftDown());
             }
         });
 
         tfFileSource.setOnKeyPressed(e -> {
             if (e.getCode() == KeyCode.ENTER) {
-                chooseInputFile();
+                chooseInputFile(e.isShiftDown());
             }
         });
         tfFileDestination.setOnKeyPressed(e -> {
             if (e.getCode() == KeyCode.ENTER) {
-                chooseOutputFile();
+                chooseOutputFile(e.isShiftDown());
             }
         });
 
-        bStartOrStop.setOnAction(e -> {
+        bAdd.setOnAction(e -> {
             handleFile();
         });
+        bCancel.setOnAction(e -> {
+            cancelSelectedFileJobs();
+        });
+        bCancelAll.setOnAction(e -> {
+            queue.cancelAll();
+        });
+        bClear.setOnAction(e -> {
+            queue.clearDone();
+            lvFileJobs.getItems().setAll(queue.getJobs());
+        });
+
+        lvFileJobs.setOnDragOver(e -> {
+            if (e.getDragboard().hasFiles()) {
+                e.acceptTransferModes(TransferMode.COPY);
+            }
+            e.consume();
+        });
+        lvFileJobs.setOnDragDropped(e -> {
+            final Dragboard dragboard = e.getDragboard();
+            if (dragboard.hasFiles()) {
+                handleDroppedFiles(dragboard.getFiles());
+            }
+            e.setDropCompleted(dragboard.hasFiles());
+            e.consume();
+        });
+
+        spFileWorkers.valueProperty().addListener((e) -> {
+            queue.setWorkers(spFileWorkers.getValue());
+        });
+
+        cbFileAdaptive.selectedProperty().addListener((e) -> {
+            queue.setAdaptive(cbFileAdaptive.isSelected());
+        });
+
+        tlFileProgress.play();
 
         lAuthor.setOnMouseClicked((e) -> {
             final URI uri = URI.create("https://magiclen.org/");
@@ -473,6 +701,7 @@ public class CryptTool extends Application {
         padding = new Insets(PADDING_GAP, PADDING_GAP, PADDING_GAP, PADDING_GAP);
 
         fcChooser = new FileChooser();
+        dcChooser = new DirectoryChooser();
 
         taTextSource = new TextArea();
         taTextDestination = new TextArea();
@@ -482,18 +711,27 @@ public class CryptTool extends Application {
 
         taTextDestination.setEditable(false);
 
+        lvTextDestination = new ListView<>();
+        lvTextDestination.setStyle(String.format("-fx-font-size: %.0fpx;", FONT_SIZE));
+        lvTextDestination.setVisible(false);
+        lvTextDestination.setManaged(false);
+
         lTextMethod = new Label("Method: ");
         lTextKey = new Label("Key Strength: ");
         lFileMethod = new Label("Method: ");
         lFileKey = new Label("Key Strength: ");
-        lFileSource = new Label("Source File: ");
-        lFileDestination = new Label("Destination File: ");
+        lFileFormat = new Label("Format: ");
+        lFileWorkers = new Label("Parallel Jobs: ");
+        lFileSource = new Label("Source File or Directory: ");
+        lFileDestination = new Label("Destination File or Directory: ");
         lAuthor = new Label("Powered by magiclen.org");
 
         lTextMethod.setFont(font);
         lTextKey.setFont(font);
         lFileMethod.setFont(font);
         lFileKey.setFont(font);
+        lFileFormat.setFont(font);
+        lFileWorkers.setFont(font);
         lFileSource.setFont(font);
         lFileDestination.setFont(font);
         lAuthor.setFont(font);
@@ -511,10 +749,15 @@ public class CryptTool extends Application {
         rbFileAuto = new RadioButton("Auto");
         rbFileEnc = new RadioButton("Encrypt");
         rbFileDec = new RadioButton("Decrypt");
+        rbFileVerify = new RadioButton("Verify");
         rbFile64 = new RadioButton("64 bits");
         rbFile128 = new RadioButton("128 bits");
         rbFile192 = new RadioButton("192 bits");
         rbFile256 = new RadioButton("256 bits");
+        rbFileClassic = new RadioButton(CryptFormat.CLASSIC.toString());
+        rbFileSegmented = new RadioButton(CryptFormat.SEGMENTED.toString());
+        rbFileAuthenticated = new RadioButton(CryptFormat.AUTHENTICATED.toString());
+        cbFileCompress = new CheckBox("Compress");
 
         rbTextAuto.setFont(font);
         rbTextEnc.setFont(font);
@@ -526,30 +769,40 @@ public class CryptTool extends Application {
         rbFileAuto.setFont(font);
         rbFileEnc.setFont(font);
         rbFileDec.setFont(font);
+        rbFileVerify.setFont(font);
         rbFile64.setFont(font);
         rbFile128.setFont(font);
         rbFile192.setFont(font);
         rbFile256.setFont(font);
-
-        rbTextAuto.setUserData("Auto");
-        rbTextEnc.setUserData("Encrypt");
-        rbTextDec.setUserData("Decrypt");
+        rbFileClassic.setFont(font);
+        rbFileSegmented.setFont(font);
+        rbFileAuthenticated.setFont(font);
+        cbFileCompress.setFont(font);
+
+        rbTextAuto.setUserData(CryptMethod.AUTO);
+        rbTextEnc.setUserData(CryptMethod.ENCRYPT);
+        rbTextDec.setUserData(CryptMethod.DECRYPT);
         rbText64.setUserData(64);
         rbText128.setUserData(128);
         rbText192.setUserData(192);
         rbText256.setUserData(256);
-        rbFileAuto.setUserData("Auto");
-        rbFileEnc.setUserData("Encrypt");
-        rbFileDec.setUserData("Decrypt");
+        rbFileAuto.setUserData(CryptMethod.AUTO);
+        rbFileEnc.setUserData(CryptMethod.ENCRYPT);
+        rbFileDec.setUserData(CryptMethod.DECRYPT);
+        rbFileVerify.setUserData(CryptMethod.VERIFY);
         rbFile64.setUserData(64);
         rbFile128.setUserData(128);
         rbFile192.setUserData(192);
         rbFile256.setUserData(256);
+        rbFileClassic.setUserData(CryptFormat.CLASSIC);
+        rbFileSegmented.setUserData(CryptFormat.SEGMENTED);
+        rbFileAuthenticated.setUserData(CryptFormat.AUTHENTICATED);
 
         tgTextMethod = new ToggleGroup();
         tgTextKeyLength = new ToggleGroup();
         tgFileMethod = new ToggleGroup();
         tgFileKeyLength = new ToggleGroup();
+        tgFileFormat = new ToggleGroup();
 
         rbTextAuto.setToggleGroup(tgTextMethod);
         rbTextEnc.setToggleGroup(tgTextMethod);
@@ -561,10 +814,14 @@ public class CryptTool extends Application {
         rbFileAuto.setToggleGroup(tgFileMethod);
         rbFileEnc.setToggleGroup(tgFileMethod);
         rbFileDec.setToggleGroup(tgFileMethod);
+        rbFileVerify.setToggleGroup(tgFileMethod);
         rbFile64.setToggleGroup(tgFileKeyLength);
         rbFile128.setToggleGroup(tgFileKeyLength);
         rbFile192.setToggleGroup(tgFileKeyLength);
         rbFile256.setToggleGroup(tgFileKeyLength);
+        rbFileClassic.setToggleGroup(tgFileFormat);
+        rbFileSegmented.setToggleGroup(tgFileFormat);
+        rbFileAuthenticated.setToggleGroup(tgFileFormat);
 
         rbTextAuto.setMaxWidth(Integer.MAX_VALUE);
         rbTextEnc.setMaxWidth(Integer.MAX_VALUE);
@@ -576,15 +833,22 @@ public class CryptTool extends Application {
         rbFileAuto.setMaxWidth(Integer.MAX_VALUE);
         rbFileEnc.setMaxWidth(Integer.MAX_VALUE);
         rbFileDec.setMaxWidth(Integer.MAX_VALUE);
+        rbFileVerify.setMaxWidth(Integer.MAX_VALUE);
         rbFile64.setMaxWidth(Integer.MAX_VALUE);
         rbFile128.setMaxWidth(Integer.MAX_VALUE);
         rbFile192.setMaxWidth(Integer.MAX_VALUE);
         rbFile256.setMaxWidth(Integer.MAX_VALUE);
+        rbFileClassic.setMaxWidth(Integer.MAX_VALUE);
+        rbFileSegmented.setMaxWidth(Integer.MAX_VALUE);
+        rbFileAuthenticated.setMaxWidth(Integer.MAX_VALUE);
+        cbFileCompress.setMaxWidth(Integer.MAX_VALUE);
 
         rbTextEnc.setSelected(true);
         rbText128.setSelected(true);
         rbFileEnc.setSelected(true);
         rbFile128.setSelected(true);
+        rbFileClassic.setSelected(true);
+        cbFileCompress.disableProperty().bind(rbFileClassic.selectedProperty());
 
         tfTextKey = new TextField();
         tfTextIV = new TextField();
@@ -592,6 +856,7 @@ public class CryptTool extends Application {
         tfFileIV = new TextField();
         tfFileSource = new TextField();
         tfFileDestination = new TextField();
+        tfFileRange = new TextField();
 
         tfTextKey.setFont(font);
         tfTextIV.setFont(font);
@@ -599,26 +864,79 @@ public class CryptTool extends Application {
         tfFileIV.setFont(font);
         tfFileSource.setFont(font);
         tfFileDestination.setFont(font);
+        tfFileRange.setFont(font);
 
         tfTextKey.setPromptText("Key");
         tfTextIV.setPromptText("IV(0)");
         tfFileKey.setPromptText("Key");
         tfFileIV.setPromptText("IV(0)");
-        tfFileSource.setPromptText("Click here 3 times or press enter to choose a file to load.");
-        tfFileDestination.setPromptText("Click here 3 times or press enter to choose a file to save.");
+        tfFileSource.setPromptText("Click here 3 times or press enter to choose a file to load. Hold shift for a directory.");
+        tfFileRange.setPromptText("Range, such as 30G:4K");
+        tfFileRange.disableProperty().bind(rbFileDec.selectedProperty().not());
+        tfFileDestination.setPromptText("Click here 3 times or press enter to choose a file to save. Hold shift for a directory.");
 
         bCopy = new Button("Copy");
-        bStartOrStop = new Button("Start");
+        bSave = new Button("Save");
+        bAdd = new Button("Add");
+        bCancel = new Button("Cancel");
+        bCancelAll = new Button("Cancel All");
+        bClear = new Button("Clear");
 
         bCopy.setFont(font);
-        bStartOrStop.setFont(font);
+        bSave.setFont(font);
+        bAdd.setFont(font);
+        bCancel.setFont(font);
+        bCancelAll.setFont(font);
+        bClear.setFont(font);
 
         bCopy.setMaxWidth(Integer.MAX_VALUE);
-        bStartOrStop.setMaxSize(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        bSave.setMaxWidth(Integer.MAX_VALUE);
+        bAdd.setMaxWidth(Integer.MAX_VALUE);
+        bCancel.setMaxWidth(Integer.MAX_VALUE);
+        bCancelAll.setMaxWidth(Integer.MAX_VALUE);
+        bClear.setMaxWidth(Integer.MAX_VALUE);
+
+        final int workers = Math.min(4, Runtime.getRuntime().availableProcessors());
+        queue = new CryptQueue(workers);
+        profile = CryptProfile.load();
+
+        spFileWorkers = new Spinner<>(1, 64, workers);
+        spFileWorkers.setStyle(String.format("-fx-font-size: %.0fpx;", FONT_SIZE));
+        cbFileAdaptive = new CheckBox("Adaptive per Device");
+        cbFileAdaptive.setFont(font);
+        Tooltip.install(cbFileAdaptive, new Tooltip("Adjust the number of parallel jobs on every device to the highest throughput, up to the number of parallel jobs."));
+
+        lvFileJobs = new ListView<>();
+        lvFileJobs.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+        lvFileJobs.setPlaceholder(new Label("Add files, or drop them here."));
+        lvFileJobs.setCellFactory(v -> new ListCell<CryptJob>() {
+            private final ProgressBar progressBar = new ProgressBar(0);
+
+            @Override
+            protected void updateItem(final CryptJob job, final boolean empty) {
+                super.updateItem(job, empty);
+                if (empty || job == null) {
+                    setText(null);
+                    setGraphic(null);
+                } else {
+                    progressBar.setProgress(job.getProgress());
+                    setText(job.toString());
+                    setGraphic(progressBar);
+                }
+            }
+        });
+
+        tlFileProgress = new Timeline(new KeyFrame(Duration.millis(50), e -> {
+            refreshFileJobs();
+        }));
+        tlFileProgress.setCycleCount(Animation.INDEFINITE);
 
         pbProgress = new ProgressBar(0);
         pbProgress.setMaxSize(Double.MAX_VALUE, PROGRESS_HEIGHT);
 
+        lFileProgress = new Label();
+        lFileProgress.setFont(font);
+
         final Tooltip tipAuthor = new Tooltip("Magic Len");
         tipAuthor.setFont(font);
         Tooltip.install(lAuthor, tipAuthor);
@@ -633,35 +951,64 @@ public class CryptTool extends Application {
         HBox.setHgrow(rbFileAuto, Priority.ALWAYS);
         HBox.setHgrow(rbFileEnc, Priority.ALWAYS);
         HBox.setHgrow(rbFileDec, Priority.ALWAYS);
+        HBox.setHgrow(rbFileVerify, Priority.ALWAYS);
+        HBox.setHgrow(tfFileRange, Priority.ALWAYS);
         HBox.setHgrow(rbFile64, Priority.ALWAYS);
         HBox.setHgrow(rbFile128, Priority.ALWAYS);
         HBox.setHgrow(rbFile192, Priority.ALWAYS);
         HBox.setHgrow(rbFile256, Priority.ALWAYS);
+        HBox.setHgrow(bCopy, Priority.ALWAYS);
+        HBox.setHgrow(bSave, Priority.ALWAYS);
+        HBox.setHgrow(bAdd, Priority.ALWAYS);
+        HBox.setHgrow(bCancel, Priority.ALWAYS);
+        HBox.setHgrow(bCancelAll, Priority.ALWAYS);
+        HBox.setHgrow(bClear, Priority.ALWAYS);
+        HBox.setHgrow(rbFileClassic, Priority.ALWAYS);
+        HBox.setHgrow(rbFileSegmented, Priority.ALWAYS);
+        HBox.setHgrow(rbFileAuthenticated, Priority.ALWAYS);
+        HBox.setHgrow(cbFileCompress, Priority.ALWAYS);
 
         hbTextMethod = new HBox();
         hbTextBits = new HBox();
+        hbTextButtons = new HBox();
         hbFileMethod = new HBox();
         hbFileBits = new HBox();
+        hbFileFormat = new HBox();
+        hbFileButtons = new HBox();
+        hbFileWorkers = new HBox();
 
         hbTextMethod.setMaxWidth(Integer.MAX_VALUE);
         hbTextBits.setMaxWidth(Integer.MAX_VALUE);
+        hbTextButtons.setMaxWidth(Integer.MAX_VALUE);
         hbFileMethod.setMaxWidth(Integer.MAX_VALUE);
         hbFileBits.setMaxWidth(Integer.MAX_VALUE);
+        hbFileFormat.setMaxWidth(Integer.MAX_VALUE);
+        hbFileButtons.setMaxWidth(Integer.MAX_VALUE);
+        hbFileWorkers.setMaxWidth(Integer.MAX_VALUE);
+        hbTextButtons.setSpacing(GAP);
+        hbFileButtons.setSpacing(GAP);
 
         hbTextMethod.getChildren().addAll(lTextMethod, rbTextEnc, rbTextDec, rbTextAuto);
         hbTextBits.getChildren().addAll(lTextKey, rbText64, rbText128, rbText192, rbText256);
-        hbFileMethod.getChildren().addAll(lFileMethod, rbFileEnc, rbFileDec, rbFileAuto);
+        hbFileMethod.getChildren().addAll(lFileMethod, rbFileEnc, rbFileDec, rbFileAuto, rbFileVerify, tfFileRange);
         hbFileBits.getChildren().addAll(lFileKey, rbFile64, rbFile128, rbFile192, rbFile256);
+        hbFileFormat.getChildren().addAll(lFileFormat, rbFileClassic, rbFileSegmented, rbFileAuthenticated, cbFileCompress);
+        hbTextButtons.getChildren().addAll(bCopy, bSave);
+        hbFileButtons.getChildren().addAll(bAdd, bCancel, bCancelAll, bClear);
+        HBox.setMargin(cbFileAdaptive, new Insets(0, 0, 0, GAP));
+        hbFileWorkers.getChildren().addAll(lFileWorkers, spFileWorkers, cbFileAdaptive);
 
         VBox.setVgrow(taTextSource, Priority.ALWAYS);
         VBox.setVgrow(taTextDestination, Priority.ALWAYS);
-        VBox.setVgrow(bCopy, Priority.SOMETIMES);
-        VBox.setVgrow(bStartOrStop, Priority.ALWAYS);
-        VBox.setVgrow(pbProgress, Priority.ALWAYS);
+        VBox.setVgrow(lvTextDestination, Priority.ALWAYS);
+        VBox.setVgrow(hbTextButtons, Priority.SOMETIMES);
+        VBox.setVgrow(lvFileJobs, Priority.ALWAYS);
+        VBox.setVgrow(pbProgress, Priority.SOMETIMES);
 
         VBox.setMargin(taTextSource, insets);
         VBox.setMargin(taTextDestination, insets);
-        VBox.setMargin(bCopy, insets);
+        VBox.setMargin(lvTextDestination, insets);
+        VBox.setMargin(hbTextButtons, insets);
         VBox.setMargin(hbTextMethod, insets);
         VBox.setMargin(hbTextBits, insets);
         VBox.setMargin(tfTextKey, insets);
@@ -670,12 +1017,16 @@ public class CryptTool extends Application {
         VBox.setMargin(tfFileSource, insets);
         VBox.setMargin(lFileDestination, insets);
         VBox.setMargin(tfFileDestination, insets);
-        VBox.setMargin(bStartOrStop, insets);
+        VBox.setMargin(hbFileButtons, insets);
+        VBox.setMargin(lvFileJobs, insets);
+        VBox.setMargin(hbFileWorkers, insets);
         VBox.setMargin(hbFileMethod, insets);
         VBox.setMargin(hbFileBits, insets);
+        VBox.setMargin(hbFileFormat, insets);
         VBox.setMargin(tfFileKey, insets);
         VBox.setMargin(tfFileIV, insets);
         VBox.setMargin(pbProgress, insets);
+        VBox.setMargin(lFileProgress, insets);
 
         vbText = new VBox();
         vbFile = new VBox();
@@ -683,8 +1034,8 @@ public class CryptTool extends Application {
         vbText.setPadding(padding);
         vbFile.setPadding(padding);
 
-        vbText.getChildren().addAll(taTextSource, taTextDestination, bCopy, hbTextMethod, hbTextBits, tfTextKey, tfTextIV);
-        vbFile.getChildren().addAll(lFileSource, tfFileSource, lFileDestination, tfFileDestination, bStartOrStop, pbProgress, hbFileMethod, hbFileBits, tfFileKey, tfFileIV);
+        vbText.getChildren().addAll(taTextSource, taTextDestination, lvTextDestination, hbTextButtons, hbTextMethod, hbTextBits, tfTextKey, tfTextIV);
+        vbFile.getChildren().addAll(lFileSource, tfFileSource, lFileDestination, tfFileDestination, hbFileButtons, lvFileJobs, pbProgress, lFileProgress, hbFileMethod, hbFileBits, hbFileFormat, hbFileWorkers, tfFileKey, tfFileIV);
 
         tText = new Tab();
         tFile = new Tab();
@@ -715,23 +1066,45 @@ public class CryptTool extends Application {
         primaryStage.setResizable(true);
         primaryStage.setTitle("Crypt Tool");
         primaryStage.setScene(MAIN_SCENE);
-        primaryStage.setX((SCREEN_WIDTH - WIDTH) / 2);
-        primaryStage.setY((SCREEN_HEIGHT - HEIGHT) / 2);
+        final Rectangle2D screenRectangle = Screen.getPrimary().getBounds();
+        primaryStage.setX((screenRectangle.getWidth() - WIDTH) / 2);
+        primaryStage.setY((screenRectangle.getHeight() - HEIGHT) / 2);
 
         MAIN_STAGE = primaryStage;
 
         primaryStage.show();
 
         addActions();
+
+        // Register the MBean now, so that JMX clients can find it before the first job.
+        CryptMetrics.getInstance();
     }
 
     /**
-     * The initiation of this program.
+     * The initiation of this program. If there are arguments, the command-line interface is used instead of the GUI.
      *
-     * @param args not used
+     * @param args the arguments of {@link CryptCommand}, or nothing to launch the GUI
      */
     public static void main(final String[] args) {
-        launch(args);
+        if (args.length > 0) {
+            CryptCommand.main(args);
+        } else {
+            launch(args);
+        }
     }
 
+    // -----Inner Class-----
+    /**
+     * The result of the text tab.
+     */
+    private static final class TextResult {
+
+        private final TextBuffer text;
+        private final CryptMethod method;
+
+        private TextResult(final TextBuffer text, final CryptMethod method) {
+            this.text = text;
+            this.method = method;
+        }
+    }
 }
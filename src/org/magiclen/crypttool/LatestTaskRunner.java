@@ -0,0 +1,131 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Run tasks on a background thread after a quiet period, keeping only the latest one. Submitting a task cancels the pending or running one, and a result is published only if no newer task has been submitted since.
+ *
+ * @param <T> the type of results
+ * @author Magic Len
+ */
+public class LatestTaskRunner<T> {
+
+    // -----Object Constant-----
+    private final ScheduledExecutorService executor;
+    private final long delay;
+    private final Executor publisher;
+    private final Consumer<T> onResult;
+    private final Consumer<Exception> onError;
+    private final AtomicLong generation = new AtomicLong();
+
+    // -----Object Variable-----
+    private Future<?> current;
+
+    // -----Constructor-----
+    /**
+     * Construct.
+     *
+     * @param name the name of the background thread
+     * @param delay the quiet period in milliseconds
+     * @param publisher the executor which publishes results, such as Platform::runLater
+     * @param onResult the consumer of results
+     * @param onError the consumer of exceptions
+     */
+    public LatestTaskRunner(final String name, final long delay, final Executor publisher, final Consumer<T> onResult, final Consumer<Exception> onError) {
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.delay = delay;
+        this.publisher = publisher;
+        this.onResult = onResult;
+        this.onError = onError;
+    }
+
+    // -----Object Method-----
+    /**
+     * Submit a task. The previous task is cancelled, and it is interrupted if it is running.
+     *
+     * @param task the task
+     */
+    public synchronized void submit(final Callable<T> task) {
+        final long id = generation.incrementAndGet();
+        if (current != null) {
+            current.cancel(true);
+        }
+        current = executor.schedule(() -> {
+            if (generation.get() != id) {
+                return;
+            }
+            T result = null;
+            Exception error = null;
+            try {
+                result = task.call();
+            } catch (final CancellationException ex) {
+                return;
+            } catch (final Exception ex) {
+                error = ex;
+            }
+            if (Thread.interrupted() || generation.get() != id) {
+                return;
+            }
+            final T r = result;
+            final Exception e = error;
+            publisher.execute(() -> {
+                if (generation.get() != id) {
+                    return;
+                }
+                if (e != null) {
+                    onError.accept(e);
+                } else {
+                    onResult.accept(r);
+                }
+            });
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancel the current task, so that nothing is published until another task is submitted.
+     */
+    public synchronized void cancel() {
+        generation.incrementAndGet();
+        if (current != null) {
+            current.cancel(true);
+            current = null;
+        }
+    }
+
+    /**
+     * Stop the background thread.
+     */
+    public void shutdown() {
+        cancel();
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool;
+
+/**
+ * Turn sampled byte counts into throughput and the remaining time. It is fed by a timer rather than by crypt listeners, so the cipher loops only publish their byte counts and never wait for it.
+ *
+ * @author Magic Len
+ */
+public class ProgressMeter {
+
+    // -----Class Constant-----
+    /**
+     * The time constant of the current throughput in nanoseconds. Older samples fade out over about this period.
+     */
+    private static final double SMOOTHING_NANOS = 2e9;
+    private static final String[] UNITS = {"B", "KiB", "MiB", "GiB", "TiB"};
+
+    // -----Object Variable-----
+    private boolean started;
+    private long startTime, startBytes, lastTime, lastBytes, bytes, total;
+    private double currentRate;
+
+    // -----Class Method-----
+    /**
+     * Format a number of bytes, such as 1.5 MiB.
+     *
+     * @param bytes the number of bytes
+     * @return the text
+     */
+    public static String formatBytes(final double bytes) {
+        double value = bytes;
+        int unit = 0;
+        while (value >= 1024 && unit < UNITS.length - 1) {
+            value /= 1024;
+            ++unit;
+        }
+        return unit == 0 ? String.format("%.0f %s", value, UNITS[unit]) : String.format("%.1f %s", value, UNITS[unit]);
+    }
+
+    /**
+     * Format a duration, such as 01:02:03.
+     *
+     * @param nanos the duration in nanoseconds
+     * @return the text
+     */
+    public static String formatDuration(final long nanos) {
+        final long seconds = nanos / 1000000000L;
+        if (seconds >= 3600) {
+            return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+        }
+        return String.format("%02d:%02d", seconds / 60, seconds % 60);
+    }
+
+    // -----Object Method-----
+    /**
+     * Forget all samples.
+     */
+    public void reset() {
+        started = false;
+        currentRate = 0;
+    }
+
+    /**
+     * Add a sample.
+     *
+     * @param time the time of the sample in nanoseconds, from {@link System#nanoTime()}
+     * @param bytes the number of bytes done
+     * @param total the total number of bytes
+     */
+    public void sample(final long time, final long bytes, final long total) {
+        this.total = total;
+        if (!started) {
+            started = true;
+            startTime = lastTime = time;
+            startBytes = lastBytes = this.bytes = bytes;
+            currentRate = 0;
+            return;
+        }
+        if (bytes < lastBytes) {
+            // Bytes which are no longer counted, such as the ones of a cancelled job, move the baseline instead of restarting, so the elapsed time and the average rate are kept.
+            startBytes -= lastBytes - bytes;
+            lastTime = time;
+            lastBytes = this.bytes = bytes;
+            return;
+        }
+        this.bytes = bytes;
+        final long interval = time - lastTime;
+        if (interval <= 0) {
+            return;
+        }
+        final double rate = (bytes - lastBytes) * 1e9 / interval;
+        if (currentRate == 0) {
+            currentRate = rate;
+        } else {
+            currentRate += (rate - currentRate) * (1 - Math.exp(-interval / SMOOTHING_NANOS));
+        }
+        lastTime = time;
+        lastBytes = bytes;
+    }
+
+    /**
+     * Get the elapsed time since the first sample.
+     *
+     * @return the elapsed time in nanoseconds
+     */
+    public long getElapsed() {
+        return started ? lastTime - startTime : 0;
+    }
+
+    /**
+     * Get the average throughput since the first sample.
+     *
+     * @return bytes per second
+     */
+    public double getAverageRate() {
+        final long elapsed = getElapsed();
+        return elapsed > 0 ? (bytes - startBytes) * 1e9 / elapsed : 0;
+    }
+
+    /**
+     * Get the current throughput, which is smoothed over the recent samples.
+     *
+     * @return bytes per second
+     */
+    public double getCurrentRate() {
+        return currentRate;
+    }
+
+    /**
+     * Get the estimated remaining time based on the current throughput.
+     *
+     * @return the remaining time in nanoseconds, or -1 if it is unknown
+     */
+    public long getRemaining() {
+        final double rate = currentRate > 0 ? currentRate : getAverageRate();
+        if (rate <= 0) {
+            return -1;
+        }
+        return (long) (Math.max(0, total - bytes) * 1e9 / rate);
+    }
+
+    /**
+     * Describe the throughput and the time.
+     *
+     * @return the text
+     */
+    @Override
+    public String toString() {
+        final long remaining = getRemaining();
+        return String.format("%s/s (average %s/s), %s elapsed, %s left", formatBytes(currentRate), formatBytes(getAverageRate()), formatDuration(getElapsed()), remaining < 0 ? "--:--" : formatDuration(remaining));
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Text kept as rows of limited width instead of one string, so that large text can be shown in a virtualized view and written out without building a giant string. A row ends at a line feed or when it reaches {@link #ROW_WIDTH} characters.
+ *
+ * @author Magic Len
+ */
+public class TextBuffer implements Appendable {
+
+    // -----Class Constant-----
+    /**
+     * The maximum number of characters in a row.
+     */
+    public static final int ROW_WIDTH = 1024;
+
+    // -----Object Constant-----
+    private final List<String> rows = new ArrayList<>();
+    /**
+     * The rows which are followed by a line feed.
+     */
+    private final BitSet lineFeeds = new BitSet();
+    private final StringBuilder row = new StringBuilder(ROW_WIDTH);
+
+    // -----Object Variable-----
+    private long length;
+    private boolean finished;
+
+    // -----Object Method-----
+    private void endRow(final boolean lineFeed) {
+        if (lineFeed) {
+            lineFeeds.set(rows.size());
+        }
+        rows.add(row.toString());
+        row.setLength(0);
+    }
+
+    @Override
+    public TextBuffer append(final CharSequence csq) {
+        return append(csq, 0, csq.length());
+    }
+
+    @Override
+    public TextBuffer append(final CharSequence csq, final int start, final int end) {
+        if (finished) {
+            throw new IllegalStateException("The buffer has been finished.");
+        }
+        for (int i = start; i < end; ++i) {
+            final char c = csq.charAt(i);
+            if (c == '\n') {
+                endRow(true);
+            } else {
+                row.append(c);
+                if (row.length() == ROW_WIDTH) {
+                    endRow(false);
+                }
+            }
+        }
+        length += end - start;
+        return this;
+    }
+
+    @Override
+    public TextBuffer append(final char c) {
+        return append(String.valueOf(c));
+    }
+
+    /**
+     * End the last row. No more text can be appended.
+     */
+    public void finish() {
+        if (!finished) {
+            finished = true;
+            if (row.length() > 0 || rows.isEmpty() || lineFeeds.get(rows.size() - 1)) {
+                endRow(false);
+            }
+        }
+    }
+
+    /**
+     * Get the number of characters.
+     *
+     * @return the number of characters
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Get the rows without line feeds. The buffer must have been finished.
+     *
+     * @return an unmodifiable view of the rows
+     */
+    public List<String> getRows() {
+        finish();
+        return new AbstractList<String>() {
+            @Override
+            public String get(final int index) {
+                return rows.get(index);
+            }
+
+            @Override
+            public int size() {
+                return rows.size();
+            }
+        };
+    }
+
+    /**
+     * Write all text to a writer row by row.
+     *
+     * @param writer the writer
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeTo(final Writer writer) throws IOException {
+        finish();
+        final int size = rows.size();
+        for (int i = 0; i < size; ++i) {
+            writer.write(rows.get(i));
+            if (lineFeeds.get(i)) {
+                writer.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Get all text as one string.
+     *
+     * @return the text
+     */
+    @Override
+    public String toString() {
+        finish();
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new RuntimeException("The text is too long to be a string!");
+        }
+        final StringBuilder sb = new StringBuilder((int) length);
+        final int size = rows.size();
+        for (int i = 0; i < size; ++i) {
+            sb.append(rows.get(i));
+            if (lineFeeds.get(i)) {
+                sb.append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.magiclen.magiccrypt.lib.Crypt;
+
+/**
+ * Encrypt, decrypt or verify files in the authenticated format on all cores.
+ * <p>
+ * An authenticated file is a {@link CryptHeader} followed by a random salt and chunks. Each chunk is the ciphertext of up to <i>chunkSize</i> bytes, encrypted in GCM mode, followed by its tag. The GCM key of a file is the MAC of its salt, so it is different for every file, and the nonce of a chunk is its index. The header is the additional authenticated data of every chunk, and the size of the file is checked against the header, so chunks cannot be changed, reordered, truncated or moved to another file without being detected. An empty file still has one chunk, so that its key can be verified too.
+ * </p>
+ * <p>
+ * Only AES keys are supported.
+ * </p>
+ *
+ * @author Magic Len
+ */
+public class AuthenticatedCrypt {
+
+    // -----Class Constant-----
+    /**
+     * The size of a GCM tag.
+     */
+    public static final int TAG_SIZE = 16;
+    /**
+     * The size of the random salt of a file.
+     */
+    public static final int SALT_SIZE = 16;
+    private static final int NONCE_SIZE = 12;
+    private static final String KEY_LABEL = "CryptTool authenticated file key";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // -----Object Constant-----
+    private final CryptKey key;
+    private final int chunkSize;
+    private final ForkJoinPool pool;
+
+    // -----Constructor-----
+    /**
+     * Construct with the default chunk size and the common pool.
+     *
+     * @param key the key
+     */
+    public AuthenticatedCrypt(final CryptKey key) {
+        this(key, SegmentedCrypt.DEFAULT_SEGMENT_SIZE, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Construct.
+     *
+     * @param key the key, which must not be a 64-bit key
+     * @param chunkSize the chunk size used to encrypt, which must be a multiple of 16
+     * @param pool the pool which runs chunks
+     */
+    public AuthenticatedCrypt(final CryptKey key, final int chunkSize, final ForkJoinPool pool) {
+        if (!key.getAlgorithm().equals("AES")) {
+            throw new RuntimeException("The authenticated format needs a 128-bit, 192-bit or 256-bit key!");
+        }
+        SegmentedCrypt.checkSegmentSize(chunkSize);
+        this.key = key;
+        this.chunkSize = chunkSize;
+        this.pool = pool;
+    }
+
+    // -----Class Method-----
+    private static long chunkCount(final long length, final int chunkSize) {
+        return Math.max(1, (length + chunkSize - 1) / chunkSize);
+    }
+
+    // -----Object Method-----
+    /**
+     * Create a GCM cipher for a chunk.
+     *
+     * @param opmode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     * @param fileKey the GCM key of the file
+     * @param aad the raw header
+     * @param index the chunk index
+     * @return a new cipher
+     * @throws GeneralSecurityException if the transformation is not available
+     */
+    private Cipher chunkCipher(final int opmode, final SecretKeySpec fileKey, final byte[] aad, final long index) throws GeneralSecurityException {
+        final byte[] nonce = ByteBuffer.allocate(NONCE_SIZE).putInt(0).putLong(index).array();
+        final Cipher cipher = key.getCipher("GCM", "NoPadding");
+        cipher.init(opmode, fileKey, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+        cipher.updateAAD(aad);
+        return cipher;
+    }
+
+    /**
+     * Derive the GCM key of a file from its salt.
+     *
+     * @param salt the salt
+     * @return the GCM key
+     * @throws IOException if the MAC is not available
+     */
+    private SecretKeySpec fileKey(final byte[] salt) throws IOException {
+        try {
+            final byte[] derived = key.getMac(KEY_LABEL).doFinal(salt);
+            return new SecretKeySpec(Arrays.copyOf(derived, key.getBits() / 8), "AES");
+        } catch (final GeneralSecurityException ex) {
+            throw new IOException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Get the cipher of the chunks of a file.
+     *
+     * @param aad the raw header, which is bound to every chunk
+     * @param salt the salt of the file
+     * @return the cipher
+     * @throws IOException if the MAC is not available
+     */
+    UnitCipher unitCipher(final byte[] aad, final byte[] salt) throws IOException {
+        final SecretKeySpec fileKey = fileKey(salt);
+        return new UnitCipher() {
+            @Override
+            public int getOverhead() {
+                return TAG_SIZE;
+            }
+
+            @Override
+            public int getDataOffset() {
+                return 0;
+            }
+
+            @Override
+            public void seal(final long index, final byte[] unit, final int size) throws GeneralSecurityException {
+                chunkCipher(Cipher.ENCRYPT_MODE, fileKey, aad, index).doFinal(unit, 0, size, unit, 0);
+            }
+
+            @Override
+            public void open(final long index, final byte[] unit, final int size) throws GeneralSecurityException, IOException {
+                try {
+                    chunkCipher(Cipher.DECRYPT_MODE, fileKey, aad, index).doFinal(unit, 0, size + TAG_SIZE, unit, 0);
+                } catch (final AEADBadTagException ex) {
+                    throw new IOException(String.format("The file is damaged at chunk %d.", index));
+                }
+            }
+        };
+    }
+
+    /**
+     * Create a random salt.
+     *
+     * @return the salt
+     */
+    static byte[] newSalt() {
+        final byte[] salt = new byte[SALT_SIZE];
+        RANDOM.nextBytes(salt);
+        return salt;
+    }
+
+    /**
+     * Encrypt a file.
+     *
+     * @param source the plaintext file
+     * @param destination the file to save the ciphertext
+     * @param listener the listener, or null
+     * @throws IOException if an I/O error occurs
+     */
+    public void encrypt(final File source, final File destination, final Crypt.CryptListener listener) throws IOException {
+        encrypt(source, destination, listener, null);
+    }
+
+    /**
+     * Encrypt a file, resuming from a checkpoint. Positions are numbers of chunks. When resuming, the salt is read back from the destination file.
+     *
+     * @param source the plaintext file
+     * @param destination the file to save the ciphertext
+     * @param listener the listener, or null
+     * @param checkpoint the checkpoint, or null
+     * @throws IOException if an I/O error occurs
+     */
+    public void encrypt(final File source, final File destination, final Crypt.CryptListener listener, final Checkpoint checkpoint) throws IOException {
+        encrypt(source, destination, listener, checkpoint, CryptFormat.AUTHENTICATED, new byte[0]);
+    }
+
+    /**
+     * Encrypt a file with a header of a format which is built on this format, and a preamble between the header and the salt.
+     *
+     * @param source the plaintext file
+     * @param destination the file to save the ciphertext
+     * @param listener the listener, or null
+     * @param checkpoint the checkpoint, or null
+     * @param format the format in the header
+     * @param preamble the bytes between the header and the salt
+     * @throws IOException if an I/O error occurs
+     */
+    void encrypt(final File source, final File destination, final Crypt.CryptListener listener, final Checkpoint checkpoint, final CryptFormat format, final byte[] preamble) throws IOException {
+        final long start = checkpoint == null ? 0 : checkpoint.getStart();
+        try (final FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                final FileChannel out = start > 0 ? FileChannel.open(destination.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE) : FileChannel.open(destination.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final long length = in.size();
+            final long chunks = chunkCount(length, chunkSize);
+            if (start > chunks) {
+                throw new IOException("The checkpoint does not match the files.");
+            }
+            final byte[] aad = new CryptHeader(format, key, chunkSize, length).toByteBuffer().array();
+            final long saltOffset = aad.length + preamble.length;
+            final byte[] salt;
+            if (start > 0) {
+                salt = new byte[SALT_SIZE];
+                FileChannels.readFully(out, ByteBuffer.wrap(salt), saltOffset);
+            } else {
+                salt = newSalt();
+                FileChannels.writeFully(out, ByteBuffer.wrap(aad), 0);
+                FileChannels.writeFully(out, ByteBuffer.wrap(preamble), aad.length);
+                FileChannels.writeFully(out, ByteBuffer.wrap(salt), saltOffset);
+            }
+            final UnitCipher unitCipher = unitCipher(aad, salt);
+            final long dataOffset = saltOffset + SALT_SIZE;
+
+            new ParallelJob(length, listener) {
+                @Override
+                protected long handle(final long index) throws IOException, GeneralSecurityException {
+                    final long offset = index * chunkSize;
+                    final int size = (int) Math.min(chunkSize, length - offset);
+                    final byte[] data = new byte[size + TAG_SIZE];
+                    FileChannels.readFully(in, ByteBuffer.wrap(data, 0, size), offset);
+
+                    unitCipher.seal(index, data, size);
+
+                    FileChannels.writeFully(out, ByteBuffer.wrap(data), dataOffset + index * (chunkSize + TAG_SIZE));
+                    return size;
+                }
+            }.run(pool, chunks, start, Math.min(length, start * chunkSize), checkpoint, out);
+            out.truncate(dataOffset + chunks * TAG_SIZE + length);
+        }
+    }
+
+    /**
+     * Decrypt a file in the authenticated format.
+     *
+     * @param source the ciphertext file
+     * @param destination the file to save the plaintext
+     * @param listener the listener, or null
+     * @throws IOException if an I/O error occurs, or the file is damaged or does not match the key
+     */
+    public void decrypt(final File source, final File destination, final Crypt.CryptListener listener) throws IOException {
+        decrypt(source, destination, listener, null);
+    }
+
+    /**
+     * Decrypt a file in the authenticated format, resuming from a checkpoint. Positions are numbers of chunks.
+     *
+     * @param source the ciphertext file
+     * @param destination the file to save the plaintext
+     * @param listener the listener, or null
+     * @param checkpoint the checkpoint, or null
+     * @throws IOException if an I/O error occurs, or the file is damaged or does not match the key
+     */
+    public void decrypt(final File source, final File destination, final Crypt.CryptListener listener, final Checkpoint checkpoint) throws IOException {
+        authenticate(source, destination, listener, checkpoint, CryptFormat.AUTHENTICATED, 0);
+    }
+
+    /**
+     * Verify a file in the authenticated format. Every chunk is read and authenticated, but nothing is written.
+     *
+     * @param source the ciphertext file
+     * @param listener the listener, or null
+     * @throws IOException if an I/O error occurs, or the file is damaged or does not match the key
+     */
+    public void verify(final File source, final Crypt.CryptListener listener) throws IOException {
+        authenticate(source, null, listener, null, CryptFormat.AUTHENTICATED, 0);
+    }
+
+    /**
+     * Authenticate and decrypt every chunk of a file, whose header may be of a format which is built on this format.
+     *
+     * @param source the ciphertext file
+     * @param destination the file to save the plaintext, or null to write nothing
+     * @param listener the listener, or null
+     * @param checkpoint the checkpoint, or null
+     * @param format the format in the header
+     * @param preambleSize the size of the preamble between the header and the salt
+     * @throws IOException if an I/O error occurs, or the file is damaged or does not match the key
+     */
+    void authenticate(final File source, final File destination, final Crypt.CryptListener listener, final Checkpoint checkpoint, final CryptFormat format, final int preambleSize) throws IOException {
+        final long start = checkpoint == null ? 0 : checkpoint.getStart();
+        try (final FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            final CryptHeader header = CryptHeader.read(in);
+            if (header == null || header.getFormat() != format) {
+                throw new IOException(String.format("The file is not in the %s format.", format.toString().toLowerCase()));
+            }
+            if (header.getCodec() != Codec.NONE) {
+                throw new IOException(String.format("The file is compressed with %s.", header.getCodec()));
+            }
+            if (header.getBits() != key.getBits()) {
+                throw new IOException(String.format("The file is encrypted with a %d-bit key.", header.getBits()));
+            }
+            if (!header.matches(key)) {
+                throw new IOException("The key is incorrect.");
+            }
+            final int fileChunkSize = header.getSegmentSize();
+            SegmentedCrypt.checkSegmentSize(fileChunkSize);
+            final long length = header.getLength();
+            final long chunks = chunkCount(length, fileChunkSize);
+            final byte[] aad = header.toByteBuffer().array();
+            final long dataOffset = aad.length + preambleSize + SALT_SIZE;
+            if (in.size() != dataOffset + chunks * TAG_SIZE + length) {
+                throw new IOException("The file is damaged.");
+            }
+            if (start > chunks) {
+                throw new IOException("The checkpoint does not match the files.");
+            }
+            final byte[] salt = new byte[SALT_SIZE];
+            FileChannels.readFully(in, ByteBuffer.wrap(salt), aad.length + preambleSize);
+            final UnitCipher unitCipher = unitCipher(aad, salt);
+
+            try (final FileChannel out = destination == null ? null : start > 0 ? FileChannel.open(destination.toPath(), StandardOpenOption.WRITE) : FileChannel.open(destination.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                new ParallelJob(length, listener) {
+                    @Override
+                    protected long handle(final long index) throws IOException, GeneralSecurityException {
+                        final long offset = index * fileChunkSize;
+                        final int size = (int) Math.min(fileChunkSize, length - offset);
+                        final byte[] data = new byte[size + TAG_SIZE];
+                        FileChannels.readFully(in, ByteBuffer.wrap(data), dataOffset + index * (fileChunkSize + TAG_SIZE));
+
+                        unitCipher.open(index, data, size);
+
+                        if (out != null) {
+                            FileChannels.writeFully(out, ByteBuffer.wrap(data, 0, size), offset);
+                        }
+                        return size;
+                    }
+                }.run(pool, chunks, start, Math.min(length, start * fileChunkSize), checkpoint, out);
+                if (out != null) {
+                    out.truncate(length);
+                }
+            }
+        }
+    }
+}
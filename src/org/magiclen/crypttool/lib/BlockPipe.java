@@ -0,0 +1,262 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool.lib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A bounded queue of blocks between a producer thread and the thread which consumes them, so that two stages of a pipeline, such as compression and encryption, overlap. When the queue is full, the producer waits, so the memory used is bounded.
+ *
+ * @author Magic Len
+ */
+final class BlockPipe implements AutoCloseable {
+
+    // -----Class Constant-----
+    private static final Block END = new Block(new byte[0], 0, 0);
+
+    // -----Object Constant-----
+    private final ArrayBlockingQueue<Block> queue;
+
+    // -----Object Variable-----
+    private Thread thread;
+    private volatile Exception failure;
+    private volatile boolean closed;
+
+    // -----Constructor-----
+    /**
+     * Construct a pipe.
+     *
+     * @param capacity the number of blocks which can wait in the queue
+     */
+    BlockPipe(final int capacity) {
+        queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    // -----Object Method-----
+    /**
+     * Start the producer on a new daemon thread. When it returns or fails, the consumer sees the end of the blocks.
+     *
+     * @param name the name of the thread
+     * @param producer the producer
+     */
+    void start(final String name, final Producer producer) {
+        thread = new Thread(() -> {
+            try {
+                producer.produce(this);
+            } catch (final Exception ex) {
+                failure = ex;
+            }
+            if (!closed) {
+                try {
+                    queue.put(END);
+                } catch (final InterruptedException ex) {
+                    // The consumer has closed the pipe.
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Put a block into the queue, waiting while it is full. This is called by the producer.
+     *
+     * @param data the array of the block
+     * @param offset the offset of the data of the block
+     * @param size the size of the data of the block
+     * @throws InterruptedIOException if the pipe has been closed by the consumer
+     */
+    void put(final byte[] data, final int offset, final int size) throws InterruptedIOException {
+        if (closed) {
+            throw new InterruptedIOException("The pipe has been closed.");
+        }
+        try {
+            queue.put(new Block(data, offset, size));
+        } catch (final InterruptedException ex) {
+            throw new InterruptedIOException("The pipe has been closed.");
+        }
+    }
+
+    /**
+     * Take a block from the queue, waiting while it is empty. This is called by the consumer.
+     *
+     * @return the block, or null if the producer has finished
+     * @throws IOException if the producer has failed with an I/O error, or the consumer is interrupted
+     */
+    Block take() throws IOException {
+        final Block block;
+        try {
+            block = queue.take();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("The pipe has been interrupted.");
+        }
+        if (block != END) {
+            return block;
+        }
+        queue.offer(END);
+        final Exception ex = failure;
+        if (ex != null) {
+            if (ex instanceof IOException) {
+                throw (IOException) ex;
+            } else if (ex instanceof RuntimeException) {
+                throw (RuntimeException) ex;
+            }
+            throw new RuntimeException(ex.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Get a stream which cuts the data written to it into blocks and puts them into the queue. Every block is an array with some room before and after the data, so that it can be sealed in place. All blocks have the same size except the last one, which is put when the stream is closed.
+     *
+     * @param blockSize the size of the data of a block
+     * @param head the room before the data
+     * @param tail the room after the data
+     * @return the stream
+     */
+    OutputStream outputStream(final int blockSize, final int head, final int tail) {
+        return new OutputStream() {
+            private byte[] data = new byte[head + blockSize + tail];
+            private int size;
+
+            @Override
+            public void write(final int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(final byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    final int n = Math.min(len, blockSize - size);
+                    System.arraycopy(b, off, data, head + size, n);
+                    size += n;
+                    off += n;
+                    len -= n;
+                    if (size == blockSize) {
+                        put(data, head, size);
+                        data = new byte[head + blockSize + tail];
+                        size = 0;
+                    }
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (size > 0) {
+                    put(data, head, size);
+                    size = 0;
+                }
+            }
+        };
+    }
+
+    /**
+     * Get a stream which reads the data of the blocks taken from the queue.
+     *
+     * @return the stream
+     */
+    InputStream inputStream() {
+        return new InputStream() {
+            private Block block;
+            private int position;
+
+            @Override
+            public int read() throws IOException {
+                final byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                while (block == null || position == block.size) {
+                    block = take();
+                    position = 0;
+                    if (block == null) {
+                        return -1;
+                    }
+                }
+                final int n = Math.min(len, block.size - position);
+                System.arraycopy(block.data, block.offset + position, b, off, n);
+                position += n;
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Stop the producer if it is still running, and wait for it.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            queue.clear();
+            try {
+                thread.join(10);
+            } catch (final InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // -----Inner Class-----
+    /**
+     * The producer of a pipe.
+     */
+    interface Producer {
+
+        /**
+         * Produce all blocks.
+         *
+         * @param pipe the pipe to put the blocks into
+         * @throws Exception if the blocks cannot be produced
+         */
+        void produce(BlockPipe pipe) throws Exception;
+    }
+
+    /**
+     * A block in the queue.
+     */
+    static final class Block {
+
+        final byte[] data;
+        final int offset, size;
+
+        Block(final byte[] data, final int offset, final int size) {
+            this.data = data;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+}
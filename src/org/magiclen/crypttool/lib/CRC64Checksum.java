@@ -0,0 +1,71 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool.lib;
+
+import java.util.zip.Checksum;
+
+/**
+ * The CRC-64 of MagicCrypt computed incrementally, so that large files can be fingerprinted without being held in memory. The value of a whole input is the same as the hash of {@link org.magiclen.magiccrypt.CRC64#getHash(byte[])} read as a big-endian number.
+ *
+ * @author Magic Len
+ */
+public final class CRC64Checksum implements Checksum {
+
+    // -----Class Constant-----
+    private static final long POLY64 = 0x42F0E1EBA9EA3693L;
+    private static final long[] TABLE = new long[256];
+
+    static {
+        // The table is built in the same way as MagicCrypt does, which shifts each entry 64 times rather than 8 times.
+        for (int i = 0; i < TABLE.length; ++i) {
+            long v = i;
+            for (int j = 0; j < 64; ++j) {
+                v = (v & 0x8000000000000000L) == 0 ? v << 1 : (v << 1) ^ POLY64;
+            }
+            TABLE[i] = v;
+        }
+    }
+
+    // -----Object Variable-----
+    private long crc = -1;
+
+    // -----Object Method-----
+    @Override
+    public void update(final int b) {
+        crc = (crc << 8) ^ TABLE[(int) ((crc >>> 56) ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(final byte[] b, final int off, final int len) {
+        long c = crc;
+        for (int i = off, end = off + len; i < end; ++i) {
+            c = (c << 8) ^ TABLE[(int) ((c >>> 56) ^ b[i]) & 0xFF];
+        }
+        crc = c;
+    }
+
+    @Override
+    public long getValue() {
+        return ~crc;
+    }
+
+    @Override
+    public void reset() {
+        crc = -1;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import org.magiclen.magiccrypt.lib.Crypt;
+
+/**
+ * Encrypt or decrypt files in the classic format through file channels and large direct buffers. The output is identical to the output of MagicCrypt, but far fewer system calls are made, and the sizes reported to listeners are exact even if files are larger than 2 GB.
+ *
+ * @author Magic Len
+ */
+public class ChannelCrypt {
+
+    // -----Class Constant-----
+    /**
+     * The default buffer size.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    // -----Object Constant-----
+    private final CryptKey key;
+    private final int bufferSize;
+
+    // -----Constructor-----
+    /**
+     * Construct with the default buffer size.
+     *
+     * @param key the key
+     */
+    public ChannelCrypt(final CryptKey key) {
+        this(key, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Construct.
+     *
+     * @param key the key
+     * @param bufferSize the buffer size in bytes
+     */
+    public ChannelCrypt(final CryptKey key, final int bufferSize) {
+        if (bufferSize < 16) {
+            throw new RuntimeException("The buffer size must be at least 16 bytes!");
+        }
+        this.key = key;
+        this.bufferSize = bufferSize;
+    }
+
+    // -----Object Method-----
+    /**
+     * Encrypt a file.
+     *
+     * @param source the plaintext file
+     * @param destination the file to save the ciphertext
+     * @param listener the listener, or null
+     * @throws IOException if an I/O error occurs
+     */
+    public void encrypt(final File source, final File destination, final Crypt.CryptListener listener) throws IOException {
+        crypt(Cipher.ENCRYPT_MODE, source, destination, listener, null);
+    }
+
+    /**
+     * Encrypt a file, resuming from a checkpoint. Positions are numbers of plaintext bytes, which are also numbers of ciphertext bytes because they are multiples of the block size, and the state is the last ciphertext block, which chains to the next block.
+     *
+     * @param source the plaintext file
+     * @param destination the file to save the ciphertext
+     * @param listener the listener, or null
+     * @param checkpoint the checkpoint, or null
+     * @throws IOException if an I/O error occurs
+     */
+    public void encrypt(final File source, final File destination, final Crypt.CryptListener listener, final Checkpoint checkpoint) throws IOException {
+        crypt(Cipher.ENCRYPT_MODE, source, destination, listener, checkpoint);
+    }
+
+    /**
+     * Decrypt a file in the classic format.
+     *
+     * @param source the ciphertext file
+     * @param destination the file to save the plaintext
+     * @param listener the listener, or null
+     * @throws IOException if an I/O error occurs, or the padding is incorrect
+     */
+    public void decrypt(final File source, final File destination, final Crypt.CryptListener listener) throws IOException {
+        crypt(Cipher.DECRYPT_MODE, source, destination, listener, null);
+    }
+
+    private void crypt(final int opmode, final File source, final File destination, final Crypt.CryptListener listener, final Checkpoint checkpoint) throws IOException {
+        final int blockSize = key.getBlockSize();
+        final long start = checkpoint == null ? 0 : checkpoint.getStart();
+        final byte[] chainedIV = start > 0 ? checkpoint.getState() : null;
+        final Cipher cipher;
+        try {
+            cipher = chainedIV != null ? key.getCipher(opmode, "CBC", "PKCS5Padding", chainedIV) : key.getCipher(opmode);
+        } catch (final GeneralSecurityException ex) {
+            throw new RuntimeException(ex.getMessage());
+        }
+        try (final FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                final FileChannel out = chainedIV != null ? FileChannel.open(destination.toPath(), StandardOpenOption.WRITE) : FileChannel.open(destination.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final long total = in.size();
+            long current = 0;
+            if (chainedIV != null) {
+                if (start % blockSize != 0 || start > total || start > out.size() || chainedIV.length != blockSize) {
+                    throw new IOException("The checkpoint does not match the files.");
+                }
+                current = start;
+                in.position(start);
+                out.truncate(start);
+                out.position(start);
+            }
+            if (listener != null) {
+                listener.onStarted(total);
+            }
+            final ByteBuffer input = ByteBuffer.allocateDirect(bufferSize);
+            final ByteBuffer output = ByteBuffer.allocateDirect(bufferSize + blockSize * 2);
+            final byte[] lastBlock = new byte[blockSize];
+            long written = current;
+            try {
+                int c;
+                while ((c = in.read(input)) >= 0) {
+                    input.flip();
+                    cipher.update(input, output);
+                    input.clear();
+                    output.flip();
+                    final int outputLength = output.remaining();
+                    while (output.hasRemaining()) {
+                        out.write(output);
+                    }
+                    current += c;
+                    written += outputLength;
+                    if (checkpoint != null && written == current && outputLength >= blockSize) {
+                        for (int i = 0; i < blockSize; ++i) {
+                            lastBlock[i] = output.get(outputLength - blockSize + i);
+                        }
+                        checkpoint.reached(current, lastBlock, out);
+                    }
+                    output.clear();
+                    if (listener != null && !listener.onRunning(current, total)) {
+                        break;
+                    }
+                }
+                input.limit(0);
+                cipher.doFinal(input, output);
+                output.flip();
+                while (output.hasRemaining()) {
+                    out.write(output);
+                }
+            } catch (final GeneralSecurityException ex) {
+                throw new IOException(ex.getMessage(), ex);
+            }
+            if (listener != null) {
+                listener.onFinished(current, total);
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool.lib;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Where a resumable crypt starts and where it records its progress. A position is the number of units which have been written to the output completely, such as bytes, ranges or segments, depending on the crypt.
+ *
+ * @author Magic Len
+ */
+public interface Checkpoint {
+
+    /**
+     * Get the position to resume from.
+     *
+     * @return the position, or 0 to start from the beginning
+     */
+    long getStart();
+
+    /**
+     * Get the state of the crypt at the start position, such as the chained IV.
+     *
+     * @return the state, or null if there is none
+     */
+    byte[] getState();
+
+    /**
+     * Report that the output is complete up to a position. Implementations decide how often the output is forced to the storage and the position is recorded.
+     *
+     * @param position the position
+     * @param state the state of the crypt at the position, or null
+     * @param out the output channel
+     * @throws IOException if the position cannot be recorded
+     */
+    void reached(long position, byte[] state, FileChannel out) throws IOException;
+}
@@ -0,0 +1,158 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool.lib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The codecs which compress data before it is encrypted. The ID of the codec is stored in the {@link CryptHeader}, so data is always decompressed with the codec it was compressed with.
+ *
+ * @author Magic Len
+ */
+public enum Codec {
+
+    /**
+     * No compression.
+     */
+    NONE(0, "None") {
+        @Override
+        public OutputStream compress(final OutputStream out) {
+            return out;
+        }
+
+        @Override
+        public InputStream decompress(final InputStream in) {
+            return in;
+        }
+    },
+    /**
+     * Deflate in the zlib format of {@link java.util.zip}, whose Adler-32 checksum also makes truncated data detectable.
+     */
+    DEFLATE(1, "Deflate") {
+        @Override
+        public OutputStream compress(final OutputStream out) {
+            final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+            return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public InputStream decompress(final InputStream in) {
+            final Inflater inflater = new Inflater();
+            return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+    };
+
+    // -----Class Constant-----
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // -----Object Constant-----
+    private final int id;
+    private final String text;
+
+    // -----Constructor-----
+    Codec(final int id, final String text) {
+        this.id = id;
+        this.text = text;
+    }
+
+    // -----Class Method-----
+    /**
+     * Find a codec by its ID stored in headers.
+     *
+     * @param id the ID
+     * @return the codec, or null if the ID is unknown
+     */
+    public static Codec fromId(final int id) {
+        for (final Codec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find a codec by its name.
+     *
+     * @param name the name of a codec, case-insensitive
+     * @return the codec
+     */
+    public static Codec parse(final String name) {
+        for (final Codec codec : values()) {
+            if (codec.text.equalsIgnoreCase(name)) {
+                return codec;
+            }
+        }
+        throw new RuntimeException(String.format("Unknown codec: %s", name));
+    }
+
+    // -----Object Method-----
+    /**
+     * Wrap a stream so that the data written to it is compressed. Closing the returned stream finishes the compressed data and closes the given stream.
+     *
+     * @param out the stream which receives the compressed data
+     * @return the stream to write the data to
+     */
+    public abstract OutputStream compress(OutputStream out);
+
+    /**
+     * Wrap a stream so that the data read from it is decompressed.
+     *
+     * @param in the stream of the compressed data
+     * @return the stream to read the data from
+     */
+    public abstract InputStream decompress(InputStream in);
+
+    /**
+     * Get the ID stored in headers.
+     *
+     * @return the ID
+     */
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
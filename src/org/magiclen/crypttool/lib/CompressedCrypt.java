@@ -0,0 +1,289 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool.lib;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipException;
+import org.magiclen.magiccrypt.lib.Crypt;
+
+/**
+ * Compress files before they are encrypted in the segmented or authenticated format, and reverse it when they are decrypted.
+ * <p>
+ * The compressed data is cut into blocks of <i>blockSize</i> bytes, which are sealed as the segments or chunks of the format, and the codec is recorded in the {@link CryptHeader}. Compression and encryption run on two threads which are connected by a bounded queue of blocks, so they overlap, and so do decryption and decompression. The plaintext length in the header is the length before compression, which is checked after decompression, so truncated files are rejected.
+ * </p>
+ * <p>
+ * Compressed files are written as a stream, so their jobs cannot be resumed.
+ * </p>
+ *
+ * @author Magic Len
+ */
+public class CompressedCrypt {
+
+    // -----Class Constant-----
+    /**
+     * The maximum number of bytes of the blocks waiting in the queue between two stages.
+     */
+    private static final int QUEUE_BYTES = 16 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // -----Object Constant-----
+    private final CryptKey key;
+    private final CryptFormat format;
+    private final Codec codec;
+    private final int blockSize;
+
+    // -----Constructor-----
+    /**
+     * Construct.
+     *
+     * @param key the key
+     * @param format the format used to encrypt, segmented or authenticated
+     * @param codec the codec used to compress, which must not be {@link Codec#NONE}
+     * @param blockSize the size of the blocks of compressed data used to encrypt, which must be a multiple of 16
+     */
+    public CompressedCrypt(final CryptKey key, final CryptFormat format, final Codec codec, final int blockSize) {
+        if (format != CryptFormat.SEGMENTED && format != CryptFormat.AUTHENTICATED) {
+            throw new RuntimeException("Only the segmented and authenticated formats can be compressed!");
+        }
+        if (codec == Codec.NONE) {
+            throw new RuntimeException("The codec is needed!");
+        }
+        SegmentedCrypt.checkSegmentSize(blockSize);
+        if (format == CryptFormat.AUTHENTICATED && !key.getAlgorithm().equals("AES")) {
+            throw new RuntimeException("The authenticated format needs a 128-bit, 192-bit or 256-bit key!");
+        }
+        this.key = key;
+        this.format = format;
+        this.codec = codec;
+        this.blockSize = blockSize;
+    }
+
+    // -----Class Method-----
+    private static int capacity(final int blockSize) {
+        return Math.max(1, Math.min(4, QUEUE_BYTES / blockSize));
+    }
+
+    // -----Object Method-----
+    /**
+     * Get the cipher of the units of a file.
+     *
+     * @param format the format
+     * @param size the block size
+     * @param aad the raw header
+     * @param length the plaintext length
+     * @param salt the salt of the authenticated format, or null
+     * @return the cipher
+     * @throws IOException if the MAC is not available
+     */
+    private UnitCipher unitCipher(final CryptFormat format, final int size, final byte[] aad, final long length, final byte[] salt) throws IOException {
+        if (format == CryptFormat.AUTHENTICATED) {
+            return new AuthenticatedCrypt(key, size, ForkJoinPool.commonPool()).unitCipher(aad, salt);
+        }
+        return new SegmentedCrypt(key, size, ForkJoinPool.commonPool()).unitCipher(length);
+    }
+
+    /**
+     * Compress and encrypt a file.
+     *
+     * @param source the plaintext file
+     * @param destination the file to save the ciphertext
+     * @param listener the listener, or null
+     * @throws IOException if an I/O error occurs
+     */
+    public void encrypt(final File source, final File destination, final Crypt.CryptListener listener) throws IOException {
+        final long length = source.length();
+        try (final FileChannel out = FileChannel.open(destination.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                final BlockPipe pipe = new BlockPipe(capacity(blockSize))) {
+            final byte[] aad = new CryptHeader(format, codec, key, blockSize, length).toByteBuffer().array();
+            FileChannels.writeFully(out, ByteBuffer.wrap(aad), 0);
+            long position = aad.length;
+            byte[] salt = null;
+            if (format == CryptFormat.AUTHENTICATED) {
+                salt = AuthenticatedCrypt.newSalt();
+                FileChannels.writeFully(out, ByteBuffer.wrap(salt), position);
+                position += salt.length;
+            }
+            final UnitCipher unitCipher = unitCipher(format, blockSize, aad, length, salt);
+            final int overhead = unitCipher.getOverhead();
+            final int head = unitCipher.getDataOffset();
+
+            final AtomicLong read = new AtomicLong();
+            pipe.start("CryptTool compressor", p -> {
+                try (final InputStream input = new FileInputStream(source);
+                        final OutputStream output = codec.compress(p.outputStream(blockSize, head, overhead - head))) {
+                    final byte[] buffer = new byte[BUFFER_SIZE];
+                    int c;
+                    while ((c = input.read(buffer)) >= 0) {
+                        output.write(buffer, 0, c);
+                        read.addAndGet(c);
+                    }
+                }
+                if (read.get() != length) {
+                    throw new IOException("The file has been changed while it was being read.");
+                }
+            });
+
+            if (listener != null) {
+                listener.onStarted(length);
+            }
+            long index = 0;
+            BlockPipe.Block block;
+            while ((block = pipe.take()) != null) {
+                try {
+                    unitCipher.seal(index, block.data, block.size);
+                } catch (final GeneralSecurityException ex) {
+                    throw new RuntimeException(ex.getMessage());
+                }
+                FileChannels.writeFully(out, ByteBuffer.wrap(block.data, 0, block.size + overhead), position);
+                position += block.size + overhead;
+                ++index;
+                if (listener != null && !listener.onRunning(read.get(), length)) {
+                    return;
+                }
+            }
+            out.truncate(position);
+            if (listener != null) {
+                listener.onFinished(length, length);
+            }
+        }
+    }
+
+    /**
+     * Decrypt and decompress a file.
+     *
+     * @param source the ciphertext file
+     * @param destination the file to save the plaintext
+     * @param listener the listener, or null
+     * @throws IOException if an I/O error occurs, or the file is damaged or does not match the key
+     */
+    public void decrypt(final File source, final File destination, final Crypt.CryptListener listener) throws IOException {
+        open(source, destination, listener);
+    }
+
+    /**
+     * Verify a compressed file. Every unit is read, checked and decompressed in memory, but nothing is written.
+     *
+     * @param source the ciphertext file
+     * @param listener the listener, or null
+     * @throws IOException if an I/O error occurs, or the file is damaged or does not match the key
+     */
+    public void verify(final File source, final Crypt.CryptListener listener) throws IOException {
+        open(source, null, listener);
+    }
+
+    /**
+     * Decrypt and decompress every unit of a file.
+     *
+     * @param source the ciphertext file
+     * @param destination the file to save the plaintext, or null to write nothing
+     * @param listener the listener, or null
+     * @throws IOException if an I/O error occurs, or the file is damaged or does not match the key
+     */
+    private void open(final File source, final File destination, final Crypt.CryptListener listener) throws IOException {
+        try (final FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            final CryptHeader header = CryptHeader.read(in);
+            if (header == null || header.getCodec() == Codec.NONE) {
+                throw new IOException("The file is not compressed.");
+            }
+            final CryptFormat fileFormat = header.getFormat();
+            if (fileFormat != CryptFormat.SEGMENTED && fileFormat != CryptFormat.AUTHENTICATED) {
+                throw new IOException(String.format("Unsupported format: %s", fileFormat));
+            }
+            if (header.getBits() != key.getBits()) {
+                throw new IOException(String.format("The file is encrypted with a %d-bit key.", header.getBits()));
+            }
+            if (!header.matches(key)) {
+                throw new IOException("The key is incorrect.");
+            }
+            final int fileBlockSize = header.getSegmentSize();
+            SegmentedCrypt.checkSegmentSize(fileBlockSize);
+            final long length = header.getLength();
+            final byte[] aad = header.toByteBuffer().array();
+            long dataOffset = aad.length;
+            byte[] salt = null;
+            if (fileFormat == CryptFormat.AUTHENTICATED) {
+                salt = new byte[AuthenticatedCrypt.SALT_SIZE];
+                FileChannels.readFully(in, ByteBuffer.wrap(salt), dataOffset);
+                dataOffset += salt.length;
+            }
+            final UnitCipher unitCipher = unitCipher(fileFormat, fileBlockSize, aad, length, salt);
+            final int overhead = unitCipher.getOverhead();
+            final long stride = fileBlockSize + overhead;
+            final long payload = in.size() - dataOffset;
+            final long units = (payload + stride - 1) / stride;
+            final long lastSize = payload - (units - 1) * stride - overhead;
+            if (payload <= 0 || lastSize <= 0) {
+                throw new IOException("The file is damaged.");
+            }
+            final long start = dataOffset;
+
+            try (final FileChannel out = destination == null ? null : FileChannel.open(destination.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    final BlockPipe pipe = new BlockPipe(capacity(fileBlockSize))) {
+                pipe.start("CryptTool decryptor", p -> {
+                    for (long index = 0; index < units; ++index) {
+                        final int size = index == units - 1 ? (int) lastSize : fileBlockSize;
+                        final byte[] unit = new byte[size + overhead];
+                        FileChannels.readFully(in, ByteBuffer.wrap(unit), start + index * stride);
+                        unitCipher.open(index, unit, size);
+                        p.put(unit, unitCipher.getDataOffset(), size);
+                    }
+                });
+
+                if (listener != null) {
+                    listener.onStarted(length);
+                }
+                long written = 0;
+                try (final InputStream input = header.getCodec().decompress(pipe.inputStream())) {
+                    final byte[] buffer = new byte[BUFFER_SIZE];
+                    int c;
+                    while ((c = input.read(buffer)) >= 0) {
+                        written += c;
+                        if (written > length) {
+                            throw new IOException("The file is damaged.");
+                        }
+                        if (out != null) {
+                            FileChannels.writeFully(out, ByteBuffer.wrap(buffer, 0, c), written - c);
+                        }
+                        if (listener != null && !listener.onRunning(written, length)) {
+                            return;
+                        }
+                    }
+                } catch (final EOFException | ZipException ex) {
+                    throw new IOException("The compressed data is damaged.");
+                }
+                if (written != length) {
+                    throw new IOException("The file is damaged.");
+                }
+                if (listener != null) {
+                    listener.onFinished(written, length);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,797 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool.lib;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.stream.Stream;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.magiclen.magiccrypt.lib.Crypt;
+
+/**
+ * Pack many files into one encrypted archive, and list or extract its members without decrypting the whole archive.
+ * <p>
+ * An archive is a {@link CryptHeader} followed by a random salt, the members, the index and a trailer. Every member and the index are split into chunks of up to <i>chunkSize</i> bytes, which are encrypted in GCM mode with the MAC of the salt as the key, like the authenticated format. The nonce of a chunk is the number of its member and its index, and the header is the additional authenticated data of every chunk, so chunks cannot be changed, reordered or moved between members without being detected.
+ * </p>
+ * <p>
+ * The index records the name, size, modified time and offset of every member. It is written after the members, so packing is streamed and needs only two chunks of memory however many files go in, and the trailer records the offset and the length of the index, so a reader seeks straight to the index and then to a member. The last chunk of the index has its own nonce prefix, so a truncated index is detected too.
+ * </p>
+ * <p>
+ * Only AES keys are supported.
+ * </p>
+ *
+ * @author Magic Len
+ */
+public class CryptArchive {
+
+    // -----Class Constant-----
+    /**
+     * The size of the trailer, which is the offset and the length of the index.
+     */
+    public static final int TRAILER_SIZE = 16;
+    private static final int TAG_SIZE = AuthenticatedCrypt.TAG_SIZE;
+    private static final int SALT_SIZE = AuthenticatedCrypt.SALT_SIZE;
+    private static final int NONCE_SIZE = 12;
+    private static final int INDEX_STREAM = -1, LAST_INDEX_STREAM = -2;
+    private static final String KEY_LABEL = "CryptTool archive key";
+
+    // -----Object Constant-----
+    private final CryptKey key;
+    private final int chunkSize;
+
+    // -----Constructor-----
+    /**
+     * Construct with the default chunk size.
+     *
+     * @param key the key
+     */
+    public CryptArchive(final CryptKey key) {
+        this(key, SegmentedCrypt.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Construct.
+     *
+     * @param key the key, which must not be a 64-bit key
+     * @param chunkSize the chunk size used to pack, which must be a multiple of 16
+     */
+    public CryptArchive(final CryptKey key, final int chunkSize) {
+        if (!key.getAlgorithm().equals("AES")) {
+            throw new RuntimeException("Archives need a 128-bit, 192-bit or 256-bit key!");
+        }
+        SegmentedCrypt.checkSegmentSize(chunkSize);
+        this.key = key;
+        this.chunkSize = chunkSize;
+    }
+
+    // -----Class Method-----
+    /**
+     * Normalize the name of a member. Names use / as the separator, and they must be relative paths without . or .. segments, so that they cannot escape the directory they are extracted to.
+     *
+     * @param name the name
+     * @return the normalized name
+     */
+    static String normalizeName(final String name) {
+        final String normalized = name.replace(File.separatorChar, '/');
+        if (normalized.isEmpty() || normalized.startsWith("/")) {
+            throw new RuntimeException(String.format("Invalid member name: %s", name));
+        }
+        for (final String segment : normalized.split("/", -1)) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                throw new RuntimeException(String.format("Invalid member name: %s", name));
+            }
+        }
+        return normalized;
+    }
+
+    /**
+     * Resolve the file a member is extracted to.
+     *
+     * @param directory the directory
+     * @param name the name of the member
+     * @return the file in the directory
+     * @throws IOException if the name escapes the directory
+     */
+    public static File resolve(final File directory, final String name) throws IOException {
+        final Path base = directory.getAbsoluteFile().toPath().normalize();
+        final Path target;
+        try {
+            target = base.resolve(normalizeName(name)).normalize();
+        } catch (final RuntimeException ex) {
+            throw new IOException(String.format("The member name is unsafe: %s", name));
+        }
+        if (!target.startsWith(base) || target.equals(base)) {
+            throw new IOException(String.format("The member name is unsafe: %s", name));
+        }
+        return target.toFile();
+    }
+
+    private static long chunkCount(final long length, final int chunkSize, final boolean terminated) {
+        return terminated ? length / chunkSize + 1 : (length + chunkSize - 1) / chunkSize;
+    }
+
+    // -----Object Method-----
+    /**
+     * Derive the GCM key of an archive from its salt.
+     *
+     * @param salt the salt
+     * @return the GCM key
+     * @throws IOException if the MAC is not available
+     */
+    private SecretKeySpec archiveKey(final byte[] salt) throws IOException {
+        try {
+            final byte[] derived = key.getMac(KEY_LABEL).doFinal(salt);
+            return new SecretKeySpec(Arrays.copyOf(derived, key.getBits() / 8), "AES");
+        } catch (final GeneralSecurityException ex) {
+            throw new IOException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Create an archive. The archive is written to a hidden part file next to it, and it replaces the archive only when {@link Writer#finish()} is called, so the archive is never partial.
+     *
+     * @param archive the archive file
+     * @return the writer, which must be closed
+     * @throws IOException if an I/O error occurs
+     */
+    public Writer create(final File archive) throws IOException {
+        return new Writer(archive.toPath().toAbsolutePath().normalize().toFile());
+    }
+
+    /**
+     * Open an archive.
+     *
+     * @param archive the archive file
+     * @return the reader, which must be closed
+     * @throws IOException if an I/O error occurs, or the file is not an archive, is damaged or does not match the key
+     */
+    public Reader open(final File archive) throws IOException {
+        return new Reader(archive);
+    }
+
+    /**
+     * Pack a directory tree into an archive. Members are named by their paths relative to the directory.
+     *
+     * @param directory the directory
+     * @param archive the archive file
+     * @return the number of members
+     * @throws IOException if an I/O error occurs
+     */
+    public long pack(final File directory, final File archive) throws IOException {
+        try (final Writer writer = create(archive)) {
+            writer.addTree(directory);
+            writer.finish();
+            return writer.getCount();
+        }
+    }
+
+    // -----Inner Class-----
+    /**
+     * A member of an archive.
+     */
+    public static final class Entry {
+
+        private final String name;
+        private final long size, modified, offset;
+        private final int stream;
+
+        private Entry(final String name, final long size, final long modified, final long offset, final int stream) {
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+            this.offset = offset;
+            this.stream = stream;
+        }
+
+        /**
+         * Get the name, which uses / as the separator.
+         *
+         * @return the name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Get the plaintext size.
+         *
+         * @return the size in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Get the modified time of the packed file.
+         *
+         * @return the modified time in milliseconds
+         */
+        public long getModified() {
+            return modified;
+        }
+    }
+
+    /**
+     * A visitor of the entries of an archive.
+     */
+    public interface Visitor {
+
+        /**
+         * Visit an entry.
+         *
+         * @param entry the entry
+         * @throws IOException if an I/O error occurs
+         */
+        void visit(Entry entry) throws IOException;
+    }
+
+    /**
+     * Seals chunks of a member or the index. Full chunks are sealed as soon as they are filled.
+     */
+    private final class ChunkOutput extends OutputStream {
+
+        private final FileChannel channel;
+        private final SecretKeySpec archiveKey;
+        private final byte[] aad;
+        private final byte[] chunk = new byte[chunkSize + TAG_SIZE];
+        private final int stream;
+        private final boolean terminated;
+        private final Cipher cipher;
+        private long position, length, index;
+        private int count;
+
+        private ChunkOutput(final FileChannel channel, final long position, final SecretKeySpec archiveKey, final byte[] aad, final int stream, final boolean terminated) throws IOException {
+            this.channel = channel;
+            this.position = position;
+            this.archiveKey = archiveKey;
+            this.aad = aad;
+            this.stream = stream;
+            this.terminated = terminated;
+            try {
+                cipher = key.getCipher("GCM", "NoPadding");
+            } catch (final GeneralSecurityException ex) {
+                throw new IOException(ex.getMessage());
+            }
+        }
+
+        private void seal(final int nonceStream) throws IOException {
+            try {
+                final byte[] nonce = ByteBuffer.allocate(NONCE_SIZE).putInt(nonceStream).putLong(index).array();
+                cipher.init(Cipher.ENCRYPT_MODE, archiveKey, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+                cipher.updateAAD(aad);
+                cipher.doFinal(chunk, 0, count, chunk, 0);
+            } catch (final GeneralSecurityException ex) {
+                throw new IOException(ex.getMessage());
+            }
+            FileChannels.writeFully(channel, ByteBuffer.wrap(chunk, 0, count + TAG_SIZE), position);
+            position += count + TAG_SIZE;
+            ++index;
+            count = 0;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            chunk[count++] = (byte) b;
+            ++length;
+            if (count == chunkSize) {
+                seal(stream);
+            }
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            int o = off;
+            int remaining = len;
+            while (remaining > 0) {
+                final int n = Math.min(remaining, chunkSize - count);
+                System.arraycopy(b, o, chunk, count, n);
+                count += n;
+                length += n;
+                o += n;
+                remaining -= n;
+                if (count == chunkSize) {
+                    seal(stream);
+                }
+            }
+        }
+
+        /**
+         * Read a file into chunks.
+         *
+         * @param in the file
+         * @throws IOException if an I/O error occurs
+         */
+        private void write(final FileChannel in) throws IOException {
+            final ByteBuffer buffer = ByteBuffer.wrap(chunk);
+            while (true) {
+                buffer.limit(chunkSize).position(count);
+                final int c = in.read(buffer);
+                if (c < 0) {
+                    break;
+                }
+                count += c;
+                length += c;
+                if (count == chunkSize) {
+                    seal(stream);
+                }
+            }
+        }
+
+        /**
+         * Seal the last chunk. The index always ends with a chunk of its own nonce prefix, which may be empty.
+         *
+         * @throws IOException if an I/O error occurs
+         */
+        private void finish() throws IOException {
+            if (terminated) {
+                seal(LAST_INDEX_STREAM);
+            } else if (count > 0) {
+                seal(stream);
+            }
+        }
+    }
+
+    /**
+     * Opens chunks of a member or the index in order.
+     */
+    private final class ChunkInput extends InputStream {
+
+        private final FileChannel channel;
+        private final SecretKeySpec archiveKey;
+        private final byte[] aad;
+        private final byte[] chunk;
+        private final int chunkSize;
+        private final int stream;
+        private final long length, chunks;
+        private final boolean terminated;
+        private final Cipher cipher;
+        private long position, index;
+        private int offset, size;
+
+        private ChunkInput(final FileChannel channel, final long position, final long length, final int chunkSize, final SecretKeySpec archiveKey, final byte[] aad, final int stream, final boolean terminated) throws IOException {
+            this.channel = channel;
+            this.position = position;
+            this.length = length;
+            this.chunkSize = chunkSize;
+            this.archiveKey = archiveKey;
+            this.aad = aad;
+            this.stream = stream;
+            this.terminated = terminated;
+            chunks = chunkCount(length, chunkSize, terminated);
+            chunk = new byte[chunkSize + TAG_SIZE];
+            try {
+                cipher = key.getCipher("GCM", "NoPadding");
+            } catch (final GeneralSecurityException ex) {
+                throw new IOException(ex.getMessage());
+            }
+        }
+
+        /**
+         * Open the next chunk.
+         *
+         * @return false if there are no more chunks
+         * @throws IOException if an I/O error occurs, or the chunk is damaged
+         */
+        private boolean next() throws IOException {
+            if (index == chunks) {
+                return false;
+            }
+            final int chunkLength = (int) Math.min(chunkSize, length - index * chunkSize);
+            FileChannels.readFully(channel, ByteBuffer.wrap(chunk, 0, chunkLength + TAG_SIZE), position);
+            final int nonceStream = terminated && index == chunks - 1 ? LAST_INDEX_STREAM : stream;
+            try {
+                final byte[] nonce = ByteBuffer.allocate(NONCE_SIZE).putInt(nonceStream).putLong(index).array();
+                cipher.init(Cipher.DECRYPT_MODE, archiveKey, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+                cipher.updateAAD(aad);
+                cipher.doFinal(chunk, 0, chunkLength + TAG_SIZE, chunk, 0);
+            } catch (final AEADBadTagException ex) {
+                throw new IOException(stream < 0 ? "The index of the archive is damaged." : String.format("The archive is damaged at chunk %d of member %d.", index, stream));
+            } catch (final GeneralSecurityException ex) {
+                throw new IOException(ex.getMessage());
+            }
+            position += chunkLength + TAG_SIZE;
+            ++index;
+            offset = 0;
+            size = chunkLength;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (offset == size) {
+                if (!next()) {
+                    return -1;
+                }
+            }
+            return chunk[offset++] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (offset == size) {
+                if (!next()) {
+                    return -1;
+                }
+            }
+            final int n = Math.min(len, size - offset);
+            System.arraycopy(chunk, offset, b, off, n);
+            offset += n;
+            return n;
+        }
+
+        /**
+         * Get the bytes of ciphertext consumed so far.
+         *
+         * @return the bytes
+         */
+        private long getConsumed() {
+            return index * TAG_SIZE + Math.min(length, index * chunkSize);
+        }
+    }
+
+    /**
+     * Writes an archive. Members are added one by one, and the index is sealed into a hidden file next to the archive at the same time and appended by {@link #finish()}.
+     */
+    public final class Writer implements Closeable {
+
+        private final File archive, partFile, indexFile;
+        private final FileChannel out, indexOut;
+        private final SecretKeySpec archiveKey;
+        private final byte[] aad;
+        private final ChunkOutput indexChunks;
+        private final DataOutputStream index;
+        private long position;
+        private int count;
+        private boolean finished;
+
+        private Writer(final File archive) throws IOException {
+            this.archive = archive;
+            partFile = new File(archive.getParentFile(), "." + archive.getName() + ".part");
+            indexFile = new File(archive.getParentFile(), "." + archive.getName() + ".index");
+            aad = new CryptHeader(CryptFormat.ARCHIVE, key, chunkSize, 0).toByteBuffer().array();
+            final byte[] salt = AuthenticatedCrypt.newSalt();
+            archiveKey = archiveKey(salt);
+            out = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            FileChannel io = null;
+            try {
+                FileChannels.writeFully(out, ByteBuffer.wrap(aad), 0);
+                FileChannels.writeFully(out, ByteBuffer.wrap(salt), aad.length);
+                position = aad.length + SALT_SIZE;
+                io = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                indexChunks = new ChunkOutput(io, 0, archiveKey, aad, INDEX_STREAM, true);
+            } catch (final IOException | RuntimeException ex) {
+                out.close();
+                if (io != null) {
+                    io.close();
+                }
+                partFile.delete();
+                indexFile.delete();
+                throw ex;
+            }
+            indexOut = io;
+            index = new DataOutputStream(indexChunks);
+        }
+
+        /**
+         * Add a file. The archive itself and its hidden files are skipped.
+         *
+         * @param name the name of the member, a relative path
+         * @param file the file
+         * @throws IOException if an I/O error occurs
+         */
+        public void add(final String name, final File file) throws IOException {
+            final String normalized = normalizeName(name);
+            final File absolute = file.toPath().toAbsolutePath().normalize().toFile();
+            if (absolute.equals(archive) || absolute.equals(partFile) || absolute.equals(indexFile)) {
+                return;
+            }
+            if (count == Integer.MAX_VALUE) {
+                throw new IOException("Too many members.");
+            }
+            final long modified = file.lastModified();
+            final long offset = position;
+            final ChunkOutput chunks = new ChunkOutput(out, offset, archiveKey, aad, count, false);
+            try (final FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                chunks.write(in);
+            }
+            chunks.finish();
+            position = chunks.position;
+
+            index.writeUTF(normalized);
+            index.writeLong(chunks.length);
+            index.writeLong(modified);
+            index.writeLong(offset);
+            index.writeInt(count);
+            ++count;
+        }
+
+        /**
+         * Add every file in a directory tree, named by their paths relative to the directory. The tree is walked lazily, and the archive itself is skipped if it is in the tree.
+         *
+         * @param directory the directory
+         * @throws IOException if an I/O error occurs
+         */
+        public void addTree(final File directory) throws IOException {
+            final Path base = directory.getAbsoluteFile().toPath();
+            try (final Stream<Path> stream = Files.walk(base)) {
+                final Iterator<Path> iterator = stream.iterator();
+                while (iterator.hasNext()) {
+                    final Path path = iterator.next();
+                    if (Files.isRegularFile(path)) {
+                        add(base.relativize(path).toString(), path.toFile());
+                    }
+                }
+            }
+        }
+
+        /**
+         * Get the number of members added so far.
+         *
+         * @return the number of members
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Append the index and the trailer, and replace the archive with the part file.
+         *
+         * @throws IOException if an I/O error occurs
+         */
+        public void finish() throws IOException {
+            index.flush();
+            indexChunks.finish();
+            final long indexOffset = position;
+            long transferred = 0;
+            while (transferred < indexChunks.position) {
+                transferred += indexOut.transferTo(transferred, indexChunks.position - transferred, out.position(indexOffset + transferred));
+            }
+            final ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE).putLong(indexOffset).putLong(indexChunks.length);
+            trailer.flip();
+            FileChannels.writeFully(out, trailer, indexOffset + indexChunks.position);
+            out.force(true);
+            out.close();
+            FileChannels.move(partFile, archive);
+            finished = true;
+        }
+
+        /**
+         * Close the writer. If {@link #finish()} has not been called, the part file is discarded.
+         *
+         * @throws IOException if an I/O error occurs
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                out.close();
+                indexOut.close();
+            } finally {
+                indexFile.delete();
+                if (!finished) {
+                    partFile.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads an archive. Only the trailer and the header are read when it is opened, the index is decrypted as it is visited, and a member is decrypted only when it is extracted.
+     */
+    public final class Reader implements Closeable {
+
+        private final FileChannel in;
+        private final SecretKeySpec archiveKey;
+        private final byte[] aad;
+        private final int fileChunkSize;
+        private final long dataOffset, indexOffset, indexLength;
+
+        private Reader(final File archive) throws IOException {
+            in = FileChannel.open(archive.toPath(), StandardOpenOption.READ);
+            try {
+                final CryptHeader header = CryptHeader.read(in);
+                if (header == null || header.getFormat() != CryptFormat.ARCHIVE) {
+                    throw new IOException("The file is not an archive.");
+                }
+                if (header.getBits() != key.getBits()) {
+                    throw new IOException(String.format("The archive is encrypted with a %d-bit key.", header.getBits()));
+                }
+                if (!header.matches(key)) {
+                    throw new IOException("The key is incorrect.");
+                }
+                fileChunkSize = header.getSegmentSize();
+                try {
+                    SegmentedCrypt.checkSegmentSize(fileChunkSize);
+                } catch (final RuntimeException ex) {
+                    throw new IOException("The archive is damaged.");
+                }
+                aad = header.toByteBuffer().array();
+                dataOffset = aad.length + SALT_SIZE;
+                final long size = in.size();
+                if (size < dataOffset + TRAILER_SIZE) {
+                    throw new IOException("The archive is damaged.");
+                }
+                final ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+                FileChannels.readFully(in, trailer, size - TRAILER_SIZE);
+                trailer.flip();
+                indexOffset = trailer.getLong();
+                indexLength = trailer.getLong();
+                if (indexOffset < dataOffset || indexLength < 0 || indexOffset + chunkCount(indexLength, fileChunkSize, true) * TAG_SIZE + indexLength != size - TRAILER_SIZE) {
+                    throw new IOException("The archive is damaged.");
+                }
+                final byte[] salt = new byte[SALT_SIZE];
+                FileChannels.readFully(in, ByteBuffer.wrap(salt), aad.length);
+                archiveKey = archiveKey(salt);
+            } catch (final IOException | RuntimeException ex) {
+                in.close();
+                throw ex;
+            }
+        }
+
+        /**
+         * Visit every entry in the order the members were added. The index is decrypted chunk by chunk, so memory stays flat however many members there are.
+         *
+         * @param visitor the visitor
+         * @throws IOException if an I/O error occurs, or the index is damaged
+         */
+        public void forEach(final Visitor visitor) throws IOException {
+            final DataInputStream index = new DataInputStream(new ChunkInput(in, indexOffset, indexLength, fileChunkSize, archiveKey, aad, INDEX_STREAM, true));
+            while (true) {
+                final String name;
+                try {
+                    name = index.readUTF();
+                } catch (final EOFException ex) {
+                    break;
+                }
+                final Entry entry;
+                try {
+                    entry = new Entry(name, index.readLong(), index.readLong(), index.readLong(), index.readInt());
+                } catch (final EOFException ex) {
+                    throw new IOException("The index of the archive is damaged.");
+                }
+                if (entry.size < 0 || entry.offset < dataOffset || entry.stream < 0 || entry.offset + chunkCount(entry.size, fileChunkSize, false) * TAG_SIZE + entry.size > indexOffset) {
+                    throw new IOException("The index of the archive is damaged.");
+                }
+                visitor.visit(entry);
+            }
+        }
+
+        /**
+         * Find a member. If there are several members with the same name, the last one is found.
+         *
+         * @param name the name
+         * @return the entry, or null if there is no such member
+         * @throws IOException if an I/O error occurs, or the index is damaged
+         */
+        public Entry find(final String name) throws IOException {
+            final String normalized = name.replace(File.separatorChar, '/');
+            final Entry[] found = new Entry[1];
+            forEach(entry -> {
+                if (entry.name.equals(normalized)) {
+                    found[0] = entry;
+                }
+            });
+            return found[0];
+        }
+
+        /**
+         * Open a member. Only the chunks of the member are read.
+         *
+         * @param entry the entry
+         * @return the plaintext of the member
+         * @throws IOException if an I/O error occurs
+         */
+        public InputStream open(final Entry entry) throws IOException {
+            return new ChunkInput(in, entry.offset, entry.size, fileChunkSize, archiveKey, aad, entry.stream, false);
+        }
+
+        /**
+         * Extract a member to a file. The plaintext is written to a hidden part file next to the destination file, which replaces the destination file only when the member has been authenticated completely.
+         *
+         * @param entry the entry
+         * @param destination the destination file
+         * @throws IOException if an I/O error occurs, or the member is damaged
+         */
+        public void extract(final Entry entry, final File destination) throws IOException {
+            final File parent = destination.getAbsoluteFile().getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException(String.format("Cannot create the directory: %s", parent));
+            }
+            final File part = new File(parent, "." + destination.getName() + ".part");
+            try {
+                try (final InputStream is = open(entry)) {
+                    Files.copy(is, part.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                part.setLastModified(entry.modified);
+                FileChannels.move(part, destination);
+            } finally {
+                part.delete();
+            }
+        }
+
+        /**
+         * Extract every member into a directory, by their names. Members with the same name overwrite the earlier ones.
+         *
+         * @param directory the directory
+         * @return the number of extracted members
+         * @throws IOException if an I/O error occurs, the archive is damaged, or a name is unsafe
+         */
+        public long extractAll(final File directory) throws IOException {
+            final long[] count = new long[1];
+            forEach(entry -> {
+                extract(entry, resolve(directory, entry.name));
+                ++count[0];
+            });
+            return count[0];
+        }
+
+        /**
+         * Verify the archive. The index and every member are authenticated, but nothing is written.
+         *
+         * @param listener the listener, or null
+         * @throws IOException if an I/O error occurs, or the archive is damaged or does not match the key
+         * @throws CancellationException if the job is stopped by the listener
+         */
+        public void verify(final Crypt.CryptListener listener) throws IOException {
+            final long total = indexOffset - dataOffset;
+            if (listener != null) {
+                listener.onStarted(total);
+            }
+            final byte[] buffer = new byte[fileChunkSize];
+            final long[] done = new long[1];
+            forEach(entry -> {
+                final ChunkInput chunks = (ChunkInput) open(entry);
+                while (chunks.read(buffer, 0, buffer.length) >= 0) {
+                    if (listener != null && !listener.onRunning(done[0] + chunks.getConsumed(), total)) {
+                        throw new CancellationException("The job has been stopped.");
+                    }
+                }
+                done[0] += chunks.getConsumed();
+            });
+            if (listener != null) {
+                listener.onFinished(done[0], total);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool.lib;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A bounded LRU cache of prepared text crypts keyed by the key, the key strength and the IV, so that keys are not derived and ciphers are not created again for every transform. An evicted crypt is destroyed, which zeroes its derived key.
+ * <p>
+ * An evicted crypt cannot be used any more, so a crypt got from this cache should be used before the cache is asked again, normally by a single thread.
+ * </p>
+ *
+ * @author Magic Len
+ */
+public final class CryptCache {
+
+    // -----Class Constant-----
+    /**
+     * The default number of cached crypts.
+     */
+    public static final int DEFAULT_CAPACITY = 16;
+
+    // -----Object Constant-----
+    private final int capacity;
+    private final LinkedHashMap<CacheKey, TextCrypt> crypts;
+
+    // -----Constructor-----
+    /**
+     * Construct with the default capacity.
+     */
+    public CryptCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Construct.
+     *
+     * @param capacity the maximum number of cached crypts
+     */
+    public CryptCache(final int capacity) {
+        if (capacity <= 0) {
+            throw new RuntimeException("The capacity must be positive!");
+        }
+        this.capacity = capacity;
+        this.crypts = new LinkedHashMap<CacheKey, TextCrypt>(capacity * 2, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<CacheKey, TextCrypt> eldest) {
+                if (size() > CryptCache.this.capacity) {
+                    eldest.getValue().destroy();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // -----Object Method-----
+    /**
+     * Get a crypt, preparing it if it is not cached.
+     *
+     * @param key the key
+     * @param bits the key strength
+     * @param iv the IV, or null to use the zero IV
+     * @return the crypt
+     */
+    public synchronized TextCrypt get(final String key, final int bits, final String iv) {
+        final CacheKey entry = new CacheKey(key == null ? "" : key, bits, iv);
+        TextCrypt crypt = crypts.get(entry);
+        if (crypt == null) {
+            crypt = new TextCrypt(new CryptKey(entry.key, bits, iv));
+            crypts.put(entry, crypt);
+        }
+        return crypt;
+    }
+
+    /**
+     * Get the number of cached crypts.
+     *
+     * @return the number of cached crypts
+     */
+    public synchronized int size() {
+        return crypts.size();
+    }
+
+    /**
+     * Destroy and remove all cached crypts.
+     */
+    public synchronized void clear() {
+        final Iterator<TextCrypt> iterator = crypts.values().iterator();
+        while (iterator.hasNext()) {
+            iterator.next().destroy();
+            iterator.remove();
+        }
+    }
+
+    // -----Inner Class-----
+    /**
+     * The cache key.
+     */
+    private static final class CacheKey {
+
+        private final String key, iv;
+        private final int bits;
+
+        private CacheKey(final String key, final int bits, final String iv) {
+            this.key = key;
+            this.bits = bits;
+            this.iv = iv;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof CacheKey)) {
+                return false;
+            }
+            final CacheKey other = (CacheKey) obj;
+            return bits == other.bits && key.equals(other.key) && Objects.equals(iv, other.iv);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(key, bits, iv);
+        }
+    }
+}
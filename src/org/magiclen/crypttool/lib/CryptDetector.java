@@ -0,0 +1,218 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+
+/**
+ * Tell whether data is encrypted by reading only a few bytes of it, so that the Auto method does not need a trial decryption.
+ * <p>
+ * Files with a {@link CryptHeader} are recognized by its magic number and a layout which matches the file size, so plain files which happen to begin with the magic number are still plain files, and the key check value in the header, or in the slots of an envelope file, tells whether they match the key. Classic files have no header, so they are recognized by the PKCS #5 padding of their last block, which is decrypted with the block before it as the IV. This is exactly what makes a full decryption of a classic file succeed or fail.
+ * </p>
+ *
+ * @author Magic Len
+ */
+public final class CryptDetector {
+
+    // -----Class Constant-----
+    /**
+     * The results of detection.
+     */
+    public enum Result {
+        /**
+         * The data is not encrypted.
+         */
+        PLAINTEXT,
+        /**
+         * The data is in the classic format and seems to match the key.
+         */
+        CLASSIC,
+        /**
+         * The data has a header which matches the key.
+         */
+        HEADER,
+        /**
+         * The data has a header, but it is encrypted with another key.
+         */
+        KEY_MISMATCH
+    }
+
+    // -----Constructor-----
+    private CryptDetector() {
+
+    }
+
+    // -----Class Method-----
+    /**
+     * Detect a file.
+     *
+     * @param key the key
+     * @param file the file
+     * @return the result
+     * @throws IOException if an I/O error occurs
+     */
+    public static Result detect(final CryptKey key, final File file) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final CryptHeader header = readHeader(channel);
+            if (header != null) {
+                if (header.getFormat() == CryptFormat.ENVELOPE) {
+                    return EnvelopeCrypt.hasSlot(key, channel, header) ? Result.HEADER : Result.KEY_MISMATCH;
+                }
+                return header.matches(key) ? Result.HEADER : Result.KEY_MISMATCH;
+            }
+            return paddingLength(key, channel) > 0 ? Result.CLASSIC : Result.PLAINTEXT;
+        }
+    }
+
+    /**
+     * Read the header of a file, if it really has one. Plain files may begin with the magic number by chance, so a header which cannot be parsed, or whose layout does not match the size of the file, is taken as no header.
+     *
+     * @param channel the channel of the file
+     * @return the header, or null if the file has no header
+     * @throws IOException if an I/O error occurs
+     */
+    private static CryptHeader readHeader(final FileChannel channel) throws IOException {
+        final CryptHeader header;
+        try {
+            header = CryptHeader.read(channel);
+        } catch (final IOException ex) {
+            return null;
+        }
+        if (header == null) {
+            return null;
+        }
+        try {
+            SegmentedCrypt.checkSegmentSize(header.getSegmentSize());
+        } catch (final RuntimeException ex) {
+            return null;
+        }
+        final int bits = header.getBits();
+        if (bits != 64 && bits != 128 && bits != 192 && bits != 256) {
+            return null;
+        }
+        final long size = channel.size();
+        final long length = header.getLength();
+        final long units = (length + header.getSegmentSize() - 1) / header.getSegmentSize();
+        final long expected;
+        switch (header.getFormat()) {
+            case ARCHIVE:
+                return length == 0 && size >= header.getSize() + AuthenticatedCrypt.SALT_SIZE + CryptArchive.TRAILER_SIZE ? header : null;
+            case SEGMENTED:
+                expected = header.getSize() + units * (bits == 64 ? 8 : 16) + length;
+                break;
+            case AUTHENTICATED:
+                expected = header.getSize() + AuthenticatedCrypt.SALT_SIZE + Math.max(1, units) * AuthenticatedCrypt.TAG_SIZE + length;
+                break;
+            case ENVELOPE:
+                try {
+                    expected = header.getSize() + EnvelopeCrypt.getPreambleSize(channel, header) + AuthenticatedCrypt.SALT_SIZE + Math.max(1, units) * AuthenticatedCrypt.TAG_SIZE + length;
+                } catch (final IOException ex) {
+                    return null;
+                }
+                break;
+            default:
+                return null;
+        }
+        // The length of a compressed file is the length before compression, so only an uncompressed file has a known size.
+        if (header.getCodec() != Codec.NONE) {
+            return size > header.getSize() ? header : null;
+        }
+        return size == expected ? header : null;
+    }
+
+    /**
+     * Detect data in the classic format, such as the decoded bytes of encrypted text.
+     *
+     * @param key the key
+     * @param data the data
+     * @return {@link Result#CLASSIC} or {@link Result#PLAINTEXT}
+     */
+    public static Result detect(final CryptKey key, final byte[] data) {
+        final int blockSize = key.getBlockSize();
+        if (data.length == 0 || data.length % blockSize != 0) {
+            return Result.PLAINTEXT;
+        }
+        final byte[] last = new byte[blockSize * 2];
+        System.arraycopy(data, Math.max(0, data.length - blockSize * 2), last, data.length == blockSize ? blockSize : 0, Math.min(data.length, blockSize * 2));
+        return paddingLength(key, last, data.length == blockSize) > 0 ? Result.CLASSIC : Result.PLAINTEXT;
+    }
+
+    /**
+     * Get the length of the PKCS #5 padding of a file in the classic format.
+     *
+     * @param key the key
+     * @param channel the channel of the file
+     * @return the length of the padding, or -1 if the file is not in the classic format or does not match the key
+     * @throws IOException if an I/O error occurs
+     */
+    public static int paddingLength(final CryptKey key, final FileChannel channel) throws IOException {
+        final int blockSize = key.getBlockSize();
+        final long size = channel.size();
+        if (size == 0 || size % blockSize != 0) {
+            return -1;
+        }
+        final byte[] last = new byte[blockSize * 2];
+        if (size == blockSize) {
+            FileChannels.readFully(channel, ByteBuffer.wrap(last, blockSize, blockSize), 0);
+        } else {
+            FileChannels.readFully(channel, ByteBuffer.wrap(last), size - blockSize * 2);
+        }
+        return paddingLength(key, last, size == blockSize);
+    }
+
+    /**
+     * Get the length of the PKCS #5 padding of the last block.
+     *
+     * @param key the key
+     * @param last the last two ciphertext blocks
+     * @param first whether the last block is also the first block, which is chained to the IV of the key instead of the block before it
+     * @return the length of the padding, or -1 if the padding is incorrect
+     */
+    private static int paddingLength(final CryptKey key, final byte[] last, final boolean first) {
+        final int blockSize = key.getBlockSize();
+        final byte[] iv;
+        if (first) {
+            iv = key.getIV();
+        } else {
+            iv = new byte[blockSize];
+            System.arraycopy(last, 0, iv, 0, blockSize);
+        }
+        final byte[] plain;
+        try {
+            plain = key.getCipher(Cipher.DECRYPT_MODE, "CBC", "NoPadding", iv).doFinal(last, blockSize, blockSize);
+        } catch (final GeneralSecurityException ex) {
+            throw new RuntimeException(ex.getMessage());
+        }
+        final int padding = plain[blockSize - 1] & 0xFF;
+        if (padding < 1 || padding > blockSize) {
+            return -1;
+        }
+        for (int i = blockSize - padding; i < blockSize; ++i) {
+            if (plain[i] != padding) {
+                return -1;
+            }
+        }
+        return padding;
+    }
+}
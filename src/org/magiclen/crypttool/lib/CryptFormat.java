@@ -0,0 +1,103 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool.lib;
+
+/**
+ * The formats of encrypted files.
+ *
+ * @author Magic Len
+ */
+public enum CryptFormat {
+
+    /**
+     * The format of MagicCrypt, which is CBC mode with PKCS #5 padding and has no header.
+     */
+    CLASSIC(0, "Classic"),
+    /**
+     * Fixed-size segments which are encrypted in CTR mode independently, so that they can be handled in parallel. Each segment has its own IV, which is the MAC of the segment, so the output is deterministic and every segment is verified when it is decrypted.
+     */
+    SEGMENTED(1, "Segmented"),
+    /**
+     * Fixed-size chunks which are encrypted in GCM mode with a key derived from a random salt of the file, so that every chunk carries a tag and the whole file can be verified without writing anything. It needs an AES key.
+     */
+    AUTHENTICATED(2, "Authenticated"),
+    /**
+     * Many files packed into one, with an encrypted index at the tail, so that members can be listed and extracted one by one. It is made by {@link CryptArchive} rather than by encrypting a file.
+     */
+    ARCHIVE(3, "Archive"),
+    /**
+     * The authenticated format with a random data key, which is encrypted for every recipient in a slot, so that the file is encrypted once for many keys. It is made by {@link EnvelopeCrypt}.
+     */
+    ENVELOPE(4, "Envelope");
+
+    // -----Object Constant-----
+    private final int id;
+    private final String text;
+
+    // -----Constructor-----
+    CryptFormat(final int id, final String text) {
+        this.id = id;
+        this.text = text;
+    }
+
+    // -----Class Method-----
+    /**
+     * Find a format by its ID stored in headers.
+     *
+     * @param id the ID
+     * @return the format, or null if the ID is unknown
+     */
+    public static CryptFormat fromId(final int id) {
+        for (final CryptFormat format : values()) {
+            if (format.id == id) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find a format by its name.
+     *
+     * @param name the name of a format, case-insensitive
+     * @return the format
+     */
+    public static CryptFormat parse(final String name) {
+        for (final CryptFormat format : values()) {
+            if (format.text.equalsIgnoreCase(name)) {
+                return format;
+            }
+        }
+        throw new RuntimeException(String.format("Unknown format: %s", name));
+    }
+
+    // -----Object Method-----
+    /**
+     * Get the ID stored in headers.
+     *
+     * @return the ID
+     */
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
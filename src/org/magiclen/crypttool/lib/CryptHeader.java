@@ -0,0 +1,273 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * The header of encrypted files which are not in the classic format.
+ *
+ * <pre>
+ * offset size field
+ *      0    4 magic, MGCT
+ *      4    1 version
+ *      5    1 format ID
+ *      6    2 header size
+ *      8    2 key strength in bits
+ *     10    1 codec ID, since version 3
+ *     11    1 reserved
+ *     12    4 segment size
+ *     16    8 plaintext length
+ *     24    8 key check value, since version 2
+ * </pre>
+ *
+ * All numbers are big-endian. Headers are written in the lowest version which can describe them, so files which are not compressed can still be read by older versions.
+ *
+ * @author Magic Len
+ */
+public final class CryptHeader {
+
+    // -----Class Constant-----
+    /**
+     * The magic number at the beginning of headers.
+     */
+    private static final byte[] MAGIC = {'M', 'G', 'C', 'T'};
+    /**
+     * The version of headers.
+     */
+    public static final int VERSION = 3;
+    /**
+     * The size of headers in bytes.
+     */
+    public static final int SIZE = 32;
+    /**
+     * The size of version 1 headers in bytes, which have no key check value.
+     */
+    private static final int V1_SIZE = 24;
+
+    // -----Object Constant-----
+    private final CryptFormat format;
+    private final Codec codec;
+    private final int size, bits, segmentSize;
+    private final long length;
+    private final byte[] keyCheck;
+
+    // -----Constructor-----
+    /**
+     * Construct a header of the current version.
+     *
+     * @param format the format
+     * @param key the key, whose strength and key check value are stored
+     * @param segmentSize the segment size
+     * @param length the plaintext length
+     */
+    public CryptHeader(final CryptFormat format, final CryptKey key, final int segmentSize, final long length) {
+        this(format, Codec.NONE, key, segmentSize, length);
+    }
+
+    /**
+     * Construct a header of the current version whose data is compressed.
+     *
+     * @param format the format
+     * @param codec the codec which compresses the plaintext before it is encrypted
+     * @param key the key, whose strength and key check value are stored
+     * @param segmentSize the segment size
+     * @param length the plaintext length before it is compressed
+     */
+    public CryptHeader(final CryptFormat format, final Codec codec, final CryptKey key, final int segmentSize, final long length) {
+        this(format, codec, SIZE, key.getBits(), segmentSize, length, key.getKeyCheck());
+    }
+
+    private CryptHeader(final CryptFormat format, final Codec codec, final int size, final int bits, final int segmentSize, final long length, final byte[] keyCheck) {
+        this.format = format;
+        this.codec = codec;
+        this.size = size;
+        this.bits = bits;
+        this.segmentSize = segmentSize;
+        this.length = length;
+        this.keyCheck = keyCheck;
+    }
+
+    // -----Class Method-----
+    /**
+     * Read a header from the beginning of a file.
+     *
+     * @param file the file
+     * @return the header, or null if the file does not have a header
+     * @throws IOException if an I/O error occurs, or the header is not supported
+     */
+    public static CryptHeader read(final File file) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return read(channel);
+        }
+    }
+
+    /**
+     * Read a header from the beginning of a channel.
+     *
+     * @param channel the channel
+     * @return the header, or null if the channel does not have a header
+     * @throws IOException if an I/O error occurs, or the header is not supported
+     */
+    public static CryptHeader read(final FileChannel channel) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return read(buffer);
+    }
+
+    /**
+     * Read a header from a buffer.
+     *
+     * @param buffer the buffer whose position is at the beginning of the header
+     * @return the header, or null if the buffer does not have a header
+     * @throws IOException if the header is not supported
+     */
+    public static CryptHeader read(final ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < V1_SIZE) {
+            return null;
+        }
+        final byte[] magic = new byte[MAGIC.length];
+        buffer.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            return null;
+        }
+        final int version = buffer.get() & 0xFF;
+        if (version < 1 || version > VERSION) {
+            throw new IOException(String.format("Unsupported header version: %d", version));
+        }
+        final CryptFormat format = CryptFormat.fromId(buffer.get() & 0xFF);
+        final int size = buffer.getShort() & 0xFFFF;
+        final int bits = buffer.getShort() & 0xFFFF;
+        final int codecId = buffer.get() & 0xFF;
+        buffer.get();
+        final Codec codec = Codec.fromId(version < 3 ? 0 : codecId);
+        final int segmentSize = buffer.getInt();
+        final long length = buffer.getLong();
+        if (format == null || format == CryptFormat.CLASSIC || codec == null || size != (version == 1 ? V1_SIZE : SIZE) || length < 0) {
+            throw new IOException("The header is damaged.");
+        }
+        byte[] keyCheck = null;
+        if (version > 1) {
+            if (buffer.remaining() < CryptKey.KEY_CHECK_SIZE) {
+                throw new IOException("The header is damaged.");
+            }
+            keyCheck = new byte[CryptKey.KEY_CHECK_SIZE];
+            buffer.get(keyCheck);
+        }
+        return new CryptHeader(format, codec, size, bits, segmentSize, length, keyCheck);
+    }
+
+    // -----Object Method-----
+    /**
+     * Get the format.
+     *
+     * @return the format
+     */
+    public CryptFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Get the codec which compresses the plaintext before it is encrypted.
+     *
+     * @return the codec
+     */
+    public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Get the size of this header, which is also the offset of the data after it.
+     *
+     * @return the size in bytes
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Get the key strength.
+     *
+     * @return the key strength in bits
+     */
+    public int getBits() {
+        return bits;
+    }
+
+    /**
+     * Get the segment size.
+     *
+     * @return the segment size in bytes
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Get the plaintext length, before it is compressed.
+     *
+     * @return the plaintext length in bytes
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Check whether a key matches this header without decrypting any data. Version 1 headers have no key check value, so only the key strength is checked.
+     *
+     * @param key the key
+     * @return true if the key matches
+     */
+    public boolean matches(final CryptKey key) {
+        return bits == key.getBits() && (keyCheck == null || MessageDigest.isEqual(keyCheck, key.getKeyCheck()));
+    }
+
+    /**
+     * Encode this header.
+     *
+     * @return a buffer which is ready to be written
+     */
+    public ByteBuffer toByteBuffer() {
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(MAGIC);
+        buffer.put((byte) (keyCheck == null ? 1 : codec == Codec.NONE ? 2 : VERSION));
+        buffer.put((byte) format.getId());
+        buffer.putShort((short) size);
+        buffer.putShort((short) bits);
+        buffer.put((byte) codec.getId());
+        buffer.put((byte) 0);
+        buffer.putInt(segmentSize);
+        buffer.putLong(length);
+        if (keyCheck != null) {
+            buffer.put(keyCheck);
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
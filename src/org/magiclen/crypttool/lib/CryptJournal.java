@@ -0,0 +1,157 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool.lib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A checkpoint recorded in a small properties file next to the output. The journal also records what the output is made of, such as the source size and modified time, the method and the key check value, and a recorded position is used only if all of them are the same.
+ * <p>
+ * Before a position is recorded, the output is forced to the storage, so that a recorded position never claims data which could still be lost.
+ * </p>
+ *
+ * @author Magic Len
+ */
+public final class CryptJournal implements Checkpoint {
+
+    // -----Class Constant-----
+    /**
+     * The minimum interval between two records in milliseconds.
+     */
+    public static final long SAVE_INTERVAL = 1000;
+    private static final String POSITION = "position", STATE = "state";
+
+    // -----Object Constant-----
+    private final File file;
+    private final Properties identity;
+
+    // -----Object Variable-----
+    private long start;
+    private byte[] state;
+    private long lastSave = System.nanoTime();
+
+    // -----Constructor-----
+    private CryptJournal(final File file, final Properties identity) {
+        this.file = file;
+        this.identity = identity;
+    }
+
+    // -----Class Method-----
+    /**
+     * Open a journal. The recorded position is used only if the output exists and the recorded identity is the same as the given one.
+     *
+     * @param file the journal file
+     * @param identity what the output is made of
+     * @param output the output whose progress is recorded
+     * @return the journal
+     */
+    public static CryptJournal open(final File file, final Properties identity, final File output) {
+        final CryptJournal journal = new CryptJournal(file, identity);
+        if (file.isFile() && output.isFile()) {
+            final Properties recorded = new Properties();
+            try (final InputStream is = new FileInputStream(file)) {
+                recorded.load(is);
+                final String position = (String) recorded.remove(POSITION);
+                final String state = (String) recorded.remove(STATE);
+                if (position != null && recorded.equals(identity)) {
+                    final long start = Long.parseLong(position);
+                    if (start > 0) {
+                        journal.start = start;
+                        journal.state = state == null || state.isEmpty() ? null : fromHex(state);
+                    }
+                }
+            } catch (final IOException | RuntimeException ex) {
+                // A damaged journal is ignored, so the output is made from the beginning.
+            }
+        }
+        return journal;
+    }
+
+    private static String toHex(final byte[] data) {
+        final StringBuilder sb = new StringBuilder(data.length * 2);
+        for (final byte b : data) {
+            sb.append(String.format("%02x", b & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] fromHex(final String hex) {
+        final byte[] data = new byte[hex.length() / 2];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return data;
+    }
+
+    // -----Object Method-----
+    @Override
+    public long getStart() {
+        return start;
+    }
+
+    @Override
+    public byte[] getState() {
+        return state == null ? null : state.clone();
+    }
+
+    @Override
+    public synchronized void reached(final long position, final byte[] state, final FileChannel out) throws IOException {
+        final long now = System.nanoTime();
+        if (now - lastSave < TimeUnit.MILLISECONDS.toNanos(SAVE_INTERVAL)) {
+            return;
+        }
+        out.force(false);
+        save(position, state);
+        lastSave = now;
+    }
+
+    /**
+     * Record a position right now.
+     *
+     * @param position the position
+     * @param state the state of the crypt at the position, or null
+     * @throws IOException if an I/O error occurs
+     */
+    private void save(final long position, final byte[] state) throws IOException {
+        final Properties properties = new Properties();
+        properties.putAll(identity);
+        properties.setProperty(POSITION, Long.toString(position));
+        properties.setProperty(STATE, state == null ? "" : toHex(state));
+        final File temp = new File(file.getPath() + ".tmp");
+        try (final FileOutputStream os = new FileOutputStream(temp)) {
+            properties.store(os, "CryptTool journal");
+            os.getFD().sync();
+        }
+        FileChannels.move(temp, file);
+    }
+
+    /**
+     * Delete the journal.
+     */
+    public synchronized void delete() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+}
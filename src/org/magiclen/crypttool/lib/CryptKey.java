@@ -0,0 +1,252 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool.lib;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.security.auth.Destroyable;
+import org.magiclen.magiccrypt.CRC64;
+import org.magiclen.magiccrypt.Tiger;
+
+/**
+ * A key and an IV derived from strings in the same way as MagicCrypt does, so that ciphers built here are compatible with MagicCrypt.
+ *
+ * @author Magic Len
+ */
+public final class CryptKey implements Destroyable {
+
+    // -----Class Constant-----
+    /**
+     * The algorithm of MACs.
+     */
+    public static final String MAC_ALGORITHM = "HmacSHA256";
+    /**
+     * The size of key check values in bytes.
+     */
+    public static final int KEY_CHECK_SIZE = 8;
+    private static final String KEY_CHECK_LABEL = "CryptTool key check";
+
+    // -----Object Constant-----
+    private final int bits;
+    private final String algorithm;
+    private final byte[] key, iv;
+    private final Map<String, String> providers = new ConcurrentHashMap<>();
+
+    // -----Object Variable-----
+    private volatile boolean destroyed;
+
+    // -----Constructor-----
+    /**
+     * Derive a key and an IV. The strings are used as they are.
+     *
+     * @param key the key
+     * @param bits the key strength, 64, 128, 192 or 256
+     * @param iv the IV, or null to use the zero IV
+     */
+    public CryptKey(final String key, final int bits, final String iv) {
+        final String k = key == null ? "" : key;
+        switch (bits) {
+            case 64:
+                this.algorithm = "DES";
+                this.key = CRC64.getHash(k.getBytes(StandardCharsets.UTF_8));
+                this.iv = iv != null ? CRC64.getHash(iv.getBytes(StandardCharsets.UTF_8)) : new byte[8];
+                break;
+            case 128:
+            case 192:
+            case 256:
+                this.algorithm = "AES";
+                this.key = bits == 128 ? digest("MD5", k) : bits == 192 ? Tiger.getHash(k.getBytes(StandardCharsets.UTF_8)) : digest("SHA-256", k);
+                this.iv = iv != null ? digest("MD5", iv) : new byte[16];
+                break;
+            default:
+                throw new RuntimeException("The key must be 8 bytes(64 bits), 16 bytes(128 bits), 24 bytes(192 bits) or 32 bytes(256 bits)!");
+        }
+        this.bits = bits;
+    }
+
+    // -----Class Method-----
+    private static byte[] digest(final String algorithm, final String text) {
+        try {
+            return MessageDigest.getInstance(algorithm).digest(text.getBytes(StandardCharsets.UTF_8));
+        } catch (final GeneralSecurityException ex) {
+            throw new RuntimeException(ex.getMessage());
+        }
+    }
+
+    // -----Object Method-----
+    private void checkDestroyed() {
+        if (destroyed) {
+            throw new IllegalStateException("The key has been destroyed.");
+        }
+    }
+
+    /**
+     * Get the key strength.
+     *
+     * @return 64, 128, 192 or 256
+     */
+    public int getBits() {
+        return bits;
+    }
+
+    /**
+     * Get the cipher algorithm.
+     *
+     * @return DES or AES
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Get the block size of the cipher, which is also the size of the IV.
+     *
+     * @return the block size in bytes
+     */
+    public int getBlockSize() {
+        return iv.length;
+    }
+
+    /**
+     * Get the derived key.
+     *
+     * @return the secret key
+     */
+    public SecretKeySpec getKey() {
+        checkDestroyed();
+        return new SecretKeySpec(key, algorithm);
+    }
+
+    /**
+     * Get a copy of the derived IV.
+     *
+     * @return the IV
+     */
+    public byte[] getIV() {
+        checkDestroyed();
+        return iv.clone();
+    }
+
+    /**
+     * Use a JCE provider for a transformation instead of the most preferred provider which supports it. Every provider produces the same output, so this only affects the speed.
+     *
+     * @param transformation the transformation, such as AES/CBC/PKCS5Padding
+     * @param provider the name of the provider, or null to use the most preferred provider
+     */
+    public void setProvider(final String transformation, final String provider) {
+        if (provider == null) {
+            providers.remove(transformation);
+        } else {
+            providers.put(transformation, provider);
+        }
+    }
+
+    /**
+     * Create a cipher which is not initialized.
+     *
+     * @param mode the mode, such as CBC or CTR
+     * @param padding the padding, such as PKCS5Padding or NoPadding
+     * @return a new cipher
+     * @throws GeneralSecurityException if the transformation or the provider set by {@link #setProvider(String, String)} is not available
+     */
+    public Cipher getCipher(final String mode, final String padding) throws GeneralSecurityException {
+        final String transformation = algorithm + "/" + mode + "/" + padding;
+        final String provider = providers.get(transformation);
+        return provider == null ? Cipher.getInstance(transformation) : Cipher.getInstance(transformation, provider);
+    }
+
+    /**
+     * Create a cipher which is initialized with the derived key and the given IV.
+     *
+     * @param opmode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     * @param mode the mode, such as CBC or CTR
+     * @param padding the padding, such as PKCS5Padding or NoPadding
+     * @param iv the IV
+     * @return a new cipher
+     * @throws GeneralSecurityException if the transformation is not available
+     */
+    public Cipher getCipher(final int opmode, final String mode, final String padding, final byte[] iv) throws GeneralSecurityException {
+        final Cipher cipher = getCipher(mode, padding);
+        cipher.init(opmode, getKey(), new IvParameterSpec(iv));
+        return cipher;
+    }
+
+    /**
+     * Create a cipher which is initialized in the same way as MagicCrypt does, using CBC mode, PKCS #5 padding and the derived IV.
+     *
+     * @param opmode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     * @return a new cipher
+     * @throws GeneralSecurityException if the transformation is not available
+     */
+    public Cipher getCipher(final int opmode) throws GeneralSecurityException {
+        return getCipher(opmode, "CBC", "PKCS5Padding", iv);
+    }
+
+    /**
+     * Create a MAC whose key is derived from the derived key and a label, so that different usages do not share the same MAC key.
+     *
+     * @param label the usage of the MAC
+     * @return a new MAC
+     * @throws GeneralSecurityException if the algorithm is not available
+     */
+    public Mac getMac(final String label) throws GeneralSecurityException {
+        checkDestroyed();
+        final Mac derivation = Mac.getInstance(MAC_ALGORITHM);
+        derivation.init(new SecretKeySpec(key, MAC_ALGORITHM));
+        final byte[] macKey = derivation.doFinal(label.getBytes(StandardCharsets.UTF_8));
+        final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(new SecretKeySpec(macKey, MAC_ALGORITHM));
+        return mac;
+    }
+
+    /**
+     * Get the key check value, which is stored in headers so that a key can be checked without decrypting any data. It is a MAC, so it does not reveal the key.
+     *
+     * @return the key check value
+     */
+    public byte[] getKeyCheck() {
+        try {
+            return Arrays.copyOf(getMac(KEY_CHECK_LABEL).doFinal(), KEY_CHECK_SIZE);
+        } catch (final GeneralSecurityException ex) {
+            throw new RuntimeException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Zero the derived key and IV. Ciphers which have been initialized are not affected, but this key cannot be used any more.
+     */
+    @Override
+    public void destroy() {
+        destroyed = true;
+        Arrays.fill(key, (byte) 0);
+        Arrays.fill(iv, (byte) 0);
+    }
+
+    @Override
+    public boolean isDestroyed() {
+        return destroyed;
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool.lib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Cipher;
+
+/**
+ * A {@link Flow.Processor} which encrypts or decrypts a stream of buffers in the classic format, which is the same as MagicCrypt, so that it can be embedded in non-blocking pipelines.
+ * <p>
+ * Backpressure is kept: the demand of the subscriber is passed to the publisher, and an item which gives no output, because the cipher is waiting for a whole block, is replaced by requesting one more item. The last block, which holds the padding, is emitted when the publisher completes. Items are never modified, and every output item is a new buffer. Only one subscriber is accepted.
+ * </p>
+ *
+ * @author Magic Len
+ */
+public final class CryptProcessor implements Flow.Processor<ByteBuffer, ByteBuffer> {
+
+    // -----Object Constant-----
+    private final Cipher cipher;
+    private final ConcurrentLinkedQueue<ByteBuffer> outputs = new ConcurrentLinkedQueue<>();
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final Object lock = new Object();
+
+    // -----Object Variable-----
+    private Flow.Subscription upstream;
+    private long pendingUpstream;
+    private volatile Flow.Subscriber<? super ByteBuffer> downstream;
+    private volatile boolean done, cancelled, terminated;
+    private volatile Throwable error;
+
+    // -----Constructor-----
+    private CryptProcessor(final Cipher cipher) {
+        this.cipher = cipher;
+    }
+
+    // -----Class Method-----
+    /**
+     * Create a processor which encrypts.
+     *
+     * @param key the key
+     * @return the processor
+     */
+    public static CryptProcessor encryptor(final CryptKey key) {
+        return create(key, Cipher.ENCRYPT_MODE);
+    }
+
+    /**
+     * Create a processor which decrypts. If the data does not match the key, the subscriber gets an {@link IOException} at the end.
+     *
+     * @param key the key
+     * @return the processor
+     */
+    public static CryptProcessor decryptor(final CryptKey key) {
+        return create(key, Cipher.DECRYPT_MODE);
+    }
+
+    private static CryptProcessor create(final CryptKey key, final int opmode) {
+        try {
+            return new CryptProcessor(key.getCipher(opmode));
+        } catch (final GeneralSecurityException ex) {
+            throw new RuntimeException(ex.getMessage());
+        }
+    }
+
+    private static long addCap(final long a, final long b) {
+        final long sum = a + b;
+        return sum < 0 ? Long.MAX_VALUE : sum;
+    }
+
+    // -----Object Method-----
+    @Override
+    public void subscribe(final Flow.Subscriber<? super ByteBuffer> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException();
+        }
+        final boolean accepted;
+        synchronized (lock) {
+            accepted = downstream == null;
+            if (accepted) {
+                downstream = subscriber;
+            }
+        }
+        if (accepted) {
+            subscriber.onSubscribe(new Subscription());
+            drain();
+            return;
+        }
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(final long n) {
+            }
+
+            @Override
+            public void cancel() {
+            }
+        });
+        subscriber.onError(new IllegalStateException("Only one subscriber is accepted."));
+    }
+
+    @Override
+    public void onSubscribe(final Flow.Subscription subscription) {
+        final long n;
+        synchronized (lock) {
+            if (upstream != null) {
+                subscription.cancel();
+                return;
+            }
+            upstream = subscription;
+            n = pendingUpstream;
+            pendingUpstream = 0;
+        }
+        if (cancelled) {
+            subscription.cancel();
+        } else if (n > 0) {
+            subscription.request(n);
+        }
+    }
+
+    @Override
+    public void onNext(final ByteBuffer item) {
+        if (done || cancelled) {
+            return;
+        }
+        final ByteBuffer input = item.duplicate();
+        final ByteBuffer output = ByteBuffer.allocate(cipher.getOutputSize(input.remaining()));
+        try {
+            cipher.update(input, output);
+        } catch (final GeneralSecurityException ex) {
+            fail(ex);
+            return;
+        }
+        output.flip();
+        if (output.hasRemaining()) {
+            outputs.offer(output);
+            drain();
+        } else {
+            requestUpstream(1);
+        }
+    }
+
+    @Override
+    public void onError(final Throwable throwable) {
+        if (done) {
+            return;
+        }
+        error = throwable;
+        done = true;
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        if (done) {
+            return;
+        }
+        final ByteBuffer output;
+        try {
+            output = ByteBuffer.wrap(cipher.doFinal());
+        } catch (final GeneralSecurityException ex) {
+            fail(ex);
+            return;
+        }
+        if (output.hasRemaining()) {
+            outputs.offer(output);
+        }
+        done = true;
+        drain();
+    }
+
+    /**
+     * Stop because the cipher has failed, which means the data does not match the key when decrypting.
+     *
+     * @param ex the failure of the cipher
+     */
+    private void fail(final GeneralSecurityException ex) {
+        cancelUpstream();
+        error = new IOException("The key is incorrect or the data is damaged.", ex);
+        done = true;
+        drain();
+    }
+
+    private void cancelUpstream() {
+        final Flow.Subscription subscription;
+        synchronized (lock) {
+            subscription = upstream;
+        }
+        if (subscription != null) {
+            subscription.cancel();
+        }
+    }
+
+    private void requestUpstream(final long n) {
+        final Flow.Subscription subscription;
+        synchronized (lock) {
+            subscription = upstream;
+            if (subscription == null) {
+                pendingUpstream = addCap(pendingUpstream, n);
+                return;
+            }
+        }
+        subscription.request(n);
+    }
+
+    /**
+     * Emit the outputs as far as the demand allows, and the terminal signal after all outputs. Only one thread emits at a time, and a thread which arrives while another is emitting leaves the work to it.
+     */
+    private void drain() {
+        final Flow.Subscriber<? super ByteBuffer> subscriber = downstream;
+        if (subscriber == null || wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            final long r = requested.get();
+            long e = 0;
+            while (true) {
+                if (cancelled || terminated) {
+                    outputs.clear();
+                    return;
+                }
+                if (done && outputs.isEmpty()) {
+                    terminated = true;
+                    final Throwable ex = error;
+                    if (ex != null) {
+                        subscriber.onError(ex);
+                    } else {
+                        subscriber.onComplete();
+                    }
+                    return;
+                }
+                if (e == r) {
+                    break;
+                }
+                final ByteBuffer output = outputs.poll();
+                if (output == null) {
+                    break;
+                }
+                subscriber.onNext(output);
+                ++e;
+            }
+            if (e != 0 && r != Long.MAX_VALUE) {
+                requested.addAndGet(-e);
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    // -----Inner Class-----
+    /**
+     * The subscription of the subscriber.
+     */
+    private final class Subscription implements Flow.Subscription {
+
+        @Override
+        public void request(final long n) {
+            if (n <= 0) {
+                cancelUpstream();
+                outputs.clear();
+                error = new IllegalArgumentException("The number of requested items must be positive.");
+                done = true;
+                drain();
+                return;
+            }
+            long current;
+            do {
+                current = requested.get();
+                if (current == Long.MAX_VALUE) {
+                    break;
+                }
+            } while (!requested.compareAndSet(current, addCap(current, n)));
+            requestUpstream(n);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            cancelUpstream();
+            outputs.clear();
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ForkJoinPool;
+import javax.crypto.Cipher;
+
+/**
+ * A read-only channel over the plaintext of an encrypted file, which can be read at any position without decrypting the file from the beginning.
+ * <p>
+ * In the classic format, a block is decrypted with the ciphertext block before it as its IV, so only the blocks of the requested bytes are read. In the segmented, authenticated and envelope formats, the segments or chunks which contain the requested bytes are read, decrypted and checked as a whole, and the last one is kept, so reading forward costs nothing more. Either way, a read costs time proportional to its range rather than to the size of the file. Compressed files and archives cannot be read at random positions.
+ * </p>
+ *
+ * @author Magic Len
+ */
+public final class DecryptingChannel implements SeekableByteChannel {
+
+    // -----Class Constant-----
+    /**
+     * The maximum number of bytes decrypted at once in the classic format.
+     */
+    private static final int MAX_CLASSIC_READ = 1024 * 1024;
+
+    // -----Object Constant-----
+    private final CryptKey key;
+    private final FileChannel in;
+    private final long length;
+    private final UnitCipher unitCipher;
+    private final int unitSize;
+    private final long dataOffset;
+
+    // -----Object Variable-----
+    private long position;
+    private byte[] unit;
+    private long unitIndex = -1;
+    private int unitLength;
+
+    // -----Constructor-----
+    private DecryptingChannel(final CryptKey key, final FileChannel in, final long length, final UnitCipher unitCipher, final int unitSize, final long dataOffset) {
+        this.key = key;
+        this.in = in;
+        this.length = length;
+        this.unitCipher = unitCipher;
+        this.unitSize = unitSize;
+        this.dataOffset = dataOffset;
+    }
+
+    // -----Class Method-----
+    /**
+     * Open an encrypted file. The format is read from its header, and the padding of a file in the classic format is checked, so that the plaintext size is known.
+     *
+     * @param key the key
+     * @param file the encrypted file
+     * @return the channel, which must be closed
+     * @throws IOException if an I/O error occurs, or the file cannot be read at random positions or does not match the key
+     */
+    public static DecryptingChannel open(final CryptKey key, final File file) throws IOException {
+        final FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            final CryptHeader header = CryptHeader.read(in);
+            if (header == null) {
+                final int padding = CryptDetector.paddingLength(key, in);
+                if (padding < 0) {
+                    throw new IOException("Given final block not properly padded. Such issues can arise if a bad key is used during decryption.");
+                }
+                return new DecryptingChannel(key, in, in.size() - padding, null, 0, 0);
+            }
+            if (header.getCodec() != Codec.NONE) {
+                throw new IOException(String.format("The file is compressed with %s, so it cannot be read at random positions.", header.getCodec()));
+            }
+            if (header.getFormat() != CryptFormat.SEGMENTED && header.getFormat() != CryptFormat.AUTHENTICATED && header.getFormat() != CryptFormat.ENVELOPE) {
+                throw new IOException(String.format("Files in the %s format cannot be read at random positions.", header.getFormat()));
+            }
+            final CryptKey unitKey;
+            long dataOffset = header.getSize();
+            if (header.getFormat() == CryptFormat.ENVELOPE) {
+                unitKey = EnvelopeCrypt.openSlot(key, in, header);
+                if (unitKey == null) {
+                    throw new IOException("The file is not encrypted for the key.");
+                }
+                dataOffset += EnvelopeCrypt.getPreambleSize(in, header);
+            } else {
+                if (header.getBits() != key.getBits()) {
+                    throw new IOException(String.format("The file is encrypted with a %d-bit key.", header.getBits()));
+                }
+                if (!header.matches(key)) {
+                    throw new IOException("The key is incorrect.");
+                }
+                unitKey = key;
+            }
+            final int unitSize = header.getSegmentSize();
+            try {
+                SegmentedCrypt.checkSegmentSize(unitSize);
+            } catch (final RuntimeException ex) {
+                throw new IOException("The file is damaged.");
+            }
+            final long length = header.getLength();
+            final UnitCipher unitCipher;
+            final long units;
+            if (header.getFormat() != CryptFormat.SEGMENTED) {
+                final byte[] salt = new byte[AuthenticatedCrypt.SALT_SIZE];
+                FileChannels.readFully(in, ByteBuffer.wrap(salt), dataOffset);
+                dataOffset += salt.length;
+                unitCipher = new AuthenticatedCrypt(unitKey, unitSize, ForkJoinPool.commonPool()).unitCipher(header.toByteBuffer().array(), salt);
+                units = Math.max(1, (length + unitSize - 1) / unitSize);
+            } else {
+                unitCipher = new SegmentedCrypt(key, unitSize, ForkJoinPool.commonPool()).unitCipher(length);
+                units = (length + unitSize - 1) / unitSize;
+            }
+            if (in.size() != dataOffset + units * unitCipher.getOverhead() + length) {
+                throw new IOException("The file is damaged.");
+            }
+            return new DecryptingChannel(key, in, length, unitCipher, unitSize, dataOffset);
+        } catch (final IOException | RuntimeException ex) {
+            in.close();
+            throw ex;
+        }
+    }
+
+    // -----Object Method-----
+    @Override
+    public int read(final ByteBuffer dst) throws IOException {
+        if (!in.isOpen()) {
+            throw new ClosedChannelException();
+        }
+        if (position >= length) {
+            return -1;
+        }
+        final int start = dst.position();
+        while (dst.hasRemaining() && position < length) {
+            if (unitCipher == null) {
+                readClassic(dst);
+            } else {
+                readUnit(dst);
+            }
+        }
+        return dst.position() - start;
+    }
+
+    /**
+     * Decrypt the blocks which contain the next bytes. The block before them is the IV.
+     *
+     * @param dst the buffer
+     * @throws IOException if an I/O error occurs
+     */
+    private void readClassic(final ByteBuffer dst) throws IOException {
+        final int blockSize = key.getBlockSize();
+        final long end = Math.min(length, position + Math.min(dst.remaining(), MAX_CLASSIC_READ));
+        final long first = position / blockSize * blockSize;
+        final long last = (end + blockSize - 1) / blockSize * blockSize;
+        final int size = (int) (last - first);
+        final byte[] data = new byte[blockSize + size];
+        if (first == 0) {
+            System.arraycopy(key.getIV(), 0, data, 0, blockSize);
+            FileChannels.readFully(in, ByteBuffer.wrap(data, blockSize, size), 0);
+        } else {
+            FileChannels.readFully(in, ByteBuffer.wrap(data), first - blockSize);
+        }
+        final byte[] iv = new byte[blockSize];
+        System.arraycopy(data, 0, iv, 0, blockSize);
+        try {
+            key.getCipher(Cipher.DECRYPT_MODE, "CBC", "NoPadding", iv).doFinal(data, blockSize, size, data, 0);
+        } catch (final GeneralSecurityException ex) {
+            throw new IOException(ex.getMessage());
+        }
+        final int n = (int) (end - position);
+        dst.put(data, (int) (position - first), n);
+        position += n;
+    }
+
+    /**
+     * Copy the next bytes from the segment or chunk which contains them, which is decrypted and checked first if it is not the last one used.
+     *
+     * @param dst the buffer
+     * @throws IOException if an I/O error occurs, or the segment or chunk is damaged
+     */
+    private void readUnit(final ByteBuffer dst) throws IOException {
+        final long index = position / unitSize;
+        if (index != unitIndex) {
+            final int overhead = unitCipher.getOverhead();
+            final int size = (int) Math.min(unitSize, length - index * unitSize);
+            if (unit == null) {
+                unit = new byte[unitSize + overhead];
+            }
+            FileChannels.readFully(in, ByteBuffer.wrap(unit, 0, size + overhead), dataOffset + index * (unitSize + overhead));
+            unitIndex = -1;
+            try {
+                unitCipher.open(index, unit, size);
+            } catch (final GeneralSecurityException ex) {
+                throw new IOException(ex.getMessage());
+            }
+            unitIndex = index;
+            unitLength = size;
+        }
+        final int offset = (int) (position - index * unitSize);
+        final int n = Math.min(dst.remaining(), unitLength - offset);
+        dst.put(unit, unitCipher.getDataOffset() + offset, n);
+        position += n;
+    }
+
+    /**
+     * The channel is read-only.
+     *
+     * @param src the buffer
+     * @return never
+     */
+    @Override
+    public int write(final ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        if (!in.isOpen()) {
+            throw new ClosedChannelException();
+        }
+        return position;
+    }
+
+    @Override
+    public DecryptingChannel position(final long newPosition) throws IOException {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("The position must not be negative.");
+        }
+        if (!in.isOpen()) {
+            throw new ClosedChannelException();
+        }
+        position = newPosition;
+        return this;
+    }
+
+    /**
+     * Get the plaintext size.
+     *
+     * @return the plaintext size in bytes
+     * @throws IOException if the channel is closed
+     */
+    @Override
+    public long size() throws IOException {
+        if (!in.isOpen()) {
+            throw new ClosedChannelException();
+        }
+        return length;
+    }
+
+    /**
+     * The channel is read-only.
+     *
+     * @param size the size
+     * @return never
+     */
+    @Override
+    public DecryptingChannel truncate(final long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return in.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
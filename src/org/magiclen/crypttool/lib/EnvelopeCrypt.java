@@ -0,0 +1,295 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.magiclen.magiccrypt.lib.Crypt;
+
+/**
+ * Encrypt a file once for many recipients.
+ * <p>
+ * An envelope file is an authenticated file whose chunks are encrypted with a random 256-bit data key, with a slot for every recipient between the header and the salt. A slot is the key check value of a recipient key, a random salt, and the data key encrypted in GCM mode with the MAC of the salt as the key, so any recipient key can open its slot and decrypt the file. The bulk data is encrypted only once however many recipients there are, and every recipient costs only a slot of {@value #SLOT_SIZE} bytes.
+ * </p>
+ * <p>
+ * The header holds the key check value of the data key, so a slot which is opened to a wrong data key is detected too. Recipient keys can be of any strength.
+ * </p>
+ *
+ * @author Magic Len
+ */
+public class EnvelopeCrypt {
+
+    // -----Class Constant-----
+    /**
+     * The size of a random data key.
+     */
+    public static final int DATA_KEY_SIZE = 32;
+    /**
+     * The size of a slot.
+     */
+    public static final int SLOT_SIZE = CryptKey.KEY_CHECK_SIZE + AuthenticatedCrypt.SALT_SIZE + DATA_KEY_SIZE + AuthenticatedCrypt.TAG_SIZE;
+    /**
+     * The maximum number of recipients.
+     */
+    public static final int MAX_RECIPIENTS = 65535;
+    private static final int NONCE_SIZE = 12;
+    private static final String KEY_LABEL = "CryptTool envelope key";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // -----Object Constant-----
+    private final List<CryptKey> keys;
+    private final int chunkSize;
+    private final ForkJoinPool pool;
+
+    // -----Constructor-----
+    /**
+     * Construct with the default chunk size and the common pool.
+     *
+     * @param keys the recipient keys to encrypt files for, or the keys to try when files are decrypted
+     */
+    public EnvelopeCrypt(final List<CryptKey> keys) {
+        this(keys, SegmentedCrypt.DEFAULT_SEGMENT_SIZE, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Construct.
+     *
+     * @param keys the recipient keys to encrypt files for, or the keys to try when files are decrypted
+     * @param chunkSize the chunk size used to encrypt, which must be a multiple of 16
+     * @param pool the pool which runs chunks
+     */
+    public EnvelopeCrypt(final List<CryptKey> keys, final int chunkSize, final ForkJoinPool pool) {
+        if (keys.isEmpty() || keys.size() > MAX_RECIPIENTS) {
+            throw new RuntimeException(String.format("An envelope needs 1 to %d recipients!", MAX_RECIPIENTS));
+        }
+        SegmentedCrypt.checkSegmentSize(chunkSize);
+        this.keys = keys;
+        this.chunkSize = chunkSize;
+        this.pool = pool;
+    }
+
+    // -----Class Method-----
+    /**
+     * Create the cipher of a slot.
+     *
+     * @param opmode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     * @param key the recipient key
+     * @param salt the salt of the slot
+     * @return a new cipher
+     * @throws GeneralSecurityException if the transformation is not available
+     */
+    private static Cipher slotCipher(final int opmode, final CryptKey key, final byte[] salt) throws GeneralSecurityException {
+        final SecretKeySpec slotKey = new SecretKeySpec(key.getMac(KEY_LABEL).doFinal(salt), "AES");
+        final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(opmode, slotKey, new GCMParameterSpec(AuthenticatedCrypt.TAG_SIZE * 8, new byte[NONCE_SIZE]));
+        return cipher;
+    }
+
+    /**
+     * Derive the data key from its raw bytes.
+     *
+     * @param raw the raw bytes
+     * @return the data key
+     */
+    private static CryptKey dataKey(final byte[] raw) {
+        return new CryptKey(Base64.getEncoder().encodeToString(raw), 256, null);
+    }
+
+    /**
+     * Read the number of slots of an envelope file.
+     *
+     * @param in the channel of the file
+     * @param header the header of the file
+     * @return the number of slots
+     * @throws IOException if an I/O error occurs, or the file is damaged
+     */
+    private static int readCount(final FileChannel in, final CryptHeader header) throws IOException {
+        final ByteBuffer count = ByteBuffer.allocate(Integer.BYTES);
+        FileChannels.readFully(in, count, header.getSize());
+        final int n = count.getInt(0);
+        if (n <= 0 || n > MAX_RECIPIENTS) {
+            throw new IOException("The file is damaged.");
+        }
+        return n;
+    }
+
+    /**
+     * Get the size of the slots of an envelope file, which are between the header and the salt.
+     *
+     * @param in the channel of the file
+     * @param header the header of the file
+     * @return the size in bytes
+     * @throws IOException if an I/O error occurs, or the file is damaged
+     */
+    static int getPreambleSize(final FileChannel in, final CryptHeader header) throws IOException {
+        return Integer.BYTES + readCount(in, header) * SLOT_SIZE;
+    }
+
+    /**
+     * Open the slot of a key.
+     *
+     * @param key the recipient key
+     * @param in the channel of the file
+     * @param header the header of the file
+     * @return the data key, or null if the file has no slot for the key
+     * @throws IOException if an I/O error occurs, or the file is damaged
+     */
+    static CryptKey openSlot(final CryptKey key, final FileChannel in, final CryptHeader header) throws IOException {
+        final int count = readCount(in, header);
+        final byte[] keyCheck = key.getKeyCheck();
+        final byte[] slot = new byte[SLOT_SIZE];
+        for (int i = 0; i < count; ++i) {
+            FileChannels.readFully(in, ByteBuffer.wrap(slot), header.getSize() + Integer.BYTES + (long) i * SLOT_SIZE);
+            if (!MessageDigest.isEqual(keyCheck, Arrays.copyOf(slot, CryptKey.KEY_CHECK_SIZE))) {
+                continue;
+            }
+            final byte[] salt = Arrays.copyOfRange(slot, CryptKey.KEY_CHECK_SIZE, CryptKey.KEY_CHECK_SIZE + AuthenticatedCrypt.SALT_SIZE);
+            final byte[] raw;
+            try {
+                raw = slotCipher(Cipher.DECRYPT_MODE, key, salt).doFinal(slot, CryptKey.KEY_CHECK_SIZE + AuthenticatedCrypt.SALT_SIZE, DATA_KEY_SIZE + AuthenticatedCrypt.TAG_SIZE);
+            } catch (final AEADBadTagException ex) {
+                continue;
+            } catch (final GeneralSecurityException ex) {
+                throw new IOException(ex.getMessage());
+            }
+            final CryptKey dataKey = dataKey(raw);
+            Arrays.fill(raw, (byte) 0);
+            if (!header.matches(dataKey)) {
+                throw new IOException("The file is damaged.");
+            }
+            return dataKey;
+        }
+        return null;
+    }
+
+    /**
+     * Check whether a file has a slot for a key.
+     *
+     * @param key the recipient key
+     * @param in the channel of the file
+     * @param header the header of the file
+     * @return true if the key can open a slot
+     * @throws IOException if an I/O error occurs, or the file is damaged
+     */
+    static boolean hasSlot(final CryptKey key, final FileChannel in, final CryptHeader header) throws IOException {
+        final CryptKey dataKey = openSlot(key, in, header);
+        if (dataKey == null) {
+            return false;
+        }
+        dataKey.destroy();
+        return true;
+    }
+
+    // -----Object Method-----
+    /**
+     * Encrypt a file for every recipient.
+     *
+     * @param source the plaintext file
+     * @param destination the file to save the ciphertext
+     * @param listener the listener, or null
+     * @throws IOException if an I/O error occurs
+     */
+    public void encrypt(final File source, final File destination, final Crypt.CryptListener listener) throws IOException {
+        final byte[] raw = new byte[DATA_KEY_SIZE];
+        RANDOM.nextBytes(raw);
+        final CryptKey dataKey = dataKey(raw);
+        try {
+            final ByteBuffer preamble = ByteBuffer.allocate(Integer.BYTES + keys.size() * SLOT_SIZE);
+            preamble.putInt(keys.size());
+            for (final CryptKey key : keys) {
+                final byte[] salt = AuthenticatedCrypt.newSalt();
+                preamble.put(key.getKeyCheck());
+                preamble.put(salt);
+                try {
+                    preamble.put(slotCipher(Cipher.ENCRYPT_MODE, key, salt).doFinal(raw));
+                } catch (final GeneralSecurityException ex) {
+                    throw new IOException(ex.getMessage());
+                }
+            }
+            new AuthenticatedCrypt(dataKey, chunkSize, pool).encrypt(source, destination, listener, null, CryptFormat.ENVELOPE, preamble.array());
+        } finally {
+            Arrays.fill(raw, (byte) 0);
+            dataKey.destroy();
+        }
+    }
+
+    /**
+     * Decrypt an envelope file with the first key which has a slot.
+     *
+     * @param source the ciphertext file
+     * @param destination the file to save the plaintext
+     * @param listener the listener, or null
+     * @throws IOException if an I/O error occurs, or the file is damaged or has no slot for the keys
+     */
+    public void decrypt(final File source, final File destination, final Crypt.CryptListener listener) throws IOException {
+        authenticate(source, destination, listener);
+    }
+
+    /**
+     * Verify an envelope file. Every chunk is read and authenticated, but nothing is written.
+     *
+     * @param source the ciphertext file
+     * @param listener the listener, or null
+     * @throws IOException if an I/O error occurs, or the file is damaged or has no slot for the keys
+     */
+    public void verify(final File source, final Crypt.CryptListener listener) throws IOException {
+        authenticate(source, null, listener);
+    }
+
+    private void authenticate(final File source, final File destination, final Crypt.CryptListener listener) throws IOException {
+        final CryptKey dataKey;
+        final int preambleSize;
+        try (final FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            final CryptHeader header = CryptHeader.read(in);
+            if (header == null || header.getFormat() != CryptFormat.ENVELOPE) {
+                throw new IOException("The file is not in the envelope format.");
+            }
+            preambleSize = getPreambleSize(in, header);
+            CryptKey opened = null;
+            for (final CryptKey key : keys) {
+                opened = openSlot(key, in, header);
+                if (opened != null) {
+                    break;
+                }
+            }
+            if (opened == null) {
+                throw new IOException("The file is not encrypted for the key.");
+            }
+            dataKey = opened;
+        }
+        try {
+            new AuthenticatedCrypt(dataKey, chunkSize, pool).authenticate(source, destination, listener, null, CryptFormat.ENVELOPE, preambleSize);
+        } finally {
+            dataKey.destroy();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool.lib;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Positional I/O helpers for file channels, and a helper to replace files atomically.
+ *
+ * @author Magic Len
+ */
+public final class FileChannels {
+
+    // -----Constructor-----
+    private FileChannels() {
+
+    }
+
+    // -----Class Method-----
+    /**
+     * Read bytes until the buffer is full.
+     *
+     * @param channel the channel
+     * @param buffer the buffer
+     * @param position the position in the channel
+     * @throws IOException if an I/O error occurs, or the end of the channel is reached before the buffer is full
+     */
+    public static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+        long p = position;
+        while (buffer.hasRemaining()) {
+            final int c = channel.read(buffer, p);
+            if (c < 0) {
+                throw new EOFException("The file is shorter than expected.");
+            }
+            p += c;
+        }
+    }
+
+    /**
+     * Write all remaining bytes of the buffer.
+     *
+     * @param channel the channel
+     * @param buffer the buffer
+     * @param position the position in the channel
+     * @throws IOException if an I/O error occurs
+     */
+    public static void writeFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+        long p = position;
+        while (buffer.hasRemaining()) {
+            p += channel.write(buffer, p);
+        }
+    }
+
+    /**
+     * Move a file to a target, replacing the target atomically if the file system supports it. Readers of the target see either the old file or the new file, never a partial one.
+     *
+     * @param source the file to move
+     * @param target the target
+     * @throws IOException if an I/O error occurs
+     */
+    public static void move(final File source, final File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (final AtomicMoveNotSupportedException ex) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ForkJoinPool;
+import javax.crypto.Cipher;
+import org.magiclen.magiccrypt.lib.Crypt;
+
+/**
+ * Decrypt files in the classic format on all cores. The output is identical to the output of MagicCrypt.
+ * <p>
+ * In CBC mode, a plaintext block only depends on its ciphertext block and the previous ciphertext block, so the file is split into ranges and each range is decrypted with the last ciphertext block before it as its IV.
+ * </p>
+ *
+ * @author Magic Len
+ */
+public class ParallelCBCDecryptor {
+
+    // -----Class Constant-----
+    /**
+     * The default size of ranges.
+     */
+    public static final int DEFAULT_RANGE_SIZE = 4 * 1024 * 1024;
+
+    // -----Object Constant-----
+    private final CryptKey key;
+    private final int rangeSize;
+    private final ForkJoinPool pool;
+
+    // -----Constructor-----
+    /**
+     * Construct with the default range size and the common pool.
+     *
+     * @param key the key
+     */
+    public ParallelCBCDecryptor(final CryptKey key) {
+        this(key, DEFAULT_RANGE_SIZE, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Construct.
+     *
+     * @param key the key
+     * @param rangeSize the size of ranges, which must be a multiple of 16
+     * @param pool the pool which runs ranges
+     */
+    public ParallelCBCDecryptor(final CryptKey key, final int rangeSize, final ForkJoinPool pool) {
+        if (rangeSize <= 0 || rangeSize % 16 != 0) {
+            throw new RuntimeException("The range size must be a multiple of 16 bytes!");
+        }
+        this.key = key;
+        this.rangeSize = rangeSize;
+        this.pool = pool;
+    }
+
+    // -----Object Method-----
+    /**
+     * Decrypt a file in the classic format. The padding is checked before the destination file is created.
+     *
+     * @param source the ciphertext file
+     * @param destination the file to save the plaintext
+     * @param listener the listener, or null
+     * @throws IOException if an I/O error occurs, or the padding is incorrect
+     */
+    public void decrypt(final File source, final File destination, final Crypt.CryptListener listener) throws IOException {
+        decrypt(source, destination, listener, null);
+    }
+
+    /**
+     * Decrypt a file in the classic format, resuming from a checkpoint. Positions are numbers of ranges.
+     *
+     * @param source the ciphertext file
+     * @param destination the file to save the plaintext
+     * @param listener the listener, or null
+     * @param checkpoint the checkpoint, or null
+     * @throws IOException if an I/O error occurs, or the padding is incorrect
+     */
+    public void decrypt(final File source, final File destination, final Crypt.CryptListener listener, final Checkpoint checkpoint) throws IOException {
+        final long start = checkpoint == null ? 0 : checkpoint.getStart();
+        try (final FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            final long size = in.size();
+            final int padding = CryptDetector.paddingLength(key, in);
+            if (padding < 0) {
+                throw new IOException("Given final block not properly padded. Such issues can arise if a bad key is used during decryption.");
+            }
+            final long length = size - padding;
+            final int blockSize = key.getBlockSize();
+
+            final long ranges = (size + rangeSize - 1) / rangeSize;
+            if (start > ranges) {
+                throw new IOException("The checkpoint does not match the files.");
+            }
+
+            try (final FileChannel out = start > 0 ? FileChannel.open(destination.toPath(), StandardOpenOption.WRITE) : FileChannel.open(destination.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                new ParallelJob(size, listener) {
+                    @Override
+                    protected long handle(final long index) throws IOException, GeneralSecurityException {
+                        final long offset = index * rangeSize;
+                        final int rangeLength = (int) Math.min(rangeSize, size - offset);
+                        final byte[] data = new byte[blockSize + rangeLength];
+                        if (index == 0) {
+                            System.arraycopy(key.getIV(), 0, data, 0, blockSize);
+                            FileChannels.readFully(in, ByteBuffer.wrap(data, blockSize, rangeLength), offset);
+                        } else {
+                            FileChannels.readFully(in, ByteBuffer.wrap(data), offset - blockSize);
+                        }
+
+                        final byte[] iv = new byte[blockSize];
+                        System.arraycopy(data, 0, iv, 0, blockSize);
+                        final Cipher cipher = key.getCipher(Cipher.DECRYPT_MODE, "CBC", "NoPadding", iv);
+                        final int plainLength = (int) Math.min(rangeLength, length - offset);
+                        cipher.doFinal(data, blockSize, rangeLength, data, 0);
+
+                        if (plainLength > 0) {
+                            FileChannels.writeFully(out, ByteBuffer.wrap(data, 0, plainLength), offset);
+                        }
+                        return rangeLength;
+                    }
+                }.run(pool, ranges, start, Math.min(size, start * rangeSize), checkpoint, out);
+                out.truncate(length);
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool.lib;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import org.magiclen.magiccrypt.lib.Crypt;
+
+/**
+ * A job which is split into independent units and run on a fork/join pool. Calls to the listener are serialized.
+ *
+ * @author Magic Len
+ */
+abstract class ParallelJob {
+
+    // -----Object Constant-----
+    private final long total;
+    private final Crypt.CryptListener listener;
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    /**
+     * The units after the done ones which are done out of order.
+     */
+    private final TreeSet<Long> doneAhead = new TreeSet<>();
+
+    // -----Object Variable-----
+    private long current;
+    private volatile boolean stopped;
+    /**
+     * The number of units at the beginning which are all done.
+     */
+    private long done;
+    private Checkpoint checkpoint;
+    private FileChannel out;
+
+    // -----Constructor-----
+    /**
+     * Construct a job.
+     *
+     * @param total the total bytes
+     * @param listener the listener, or null
+     */
+    ParallelJob(final long total, final Crypt.CryptListener listener) {
+        this.total = total;
+        this.listener = listener;
+    }
+
+    // -----Object Method-----
+    /**
+     * Handle a unit.
+     *
+     * @param index the index of the unit
+     * @return the number of bytes handled
+     * @throws Exception if the unit cannot be handled
+     */
+    protected abstract long handle(long index) throws Exception;
+
+    /**
+     * Run all units and wait for them.
+     *
+     * @param pool the pool
+     * @param count the number of units
+     * @throws IOException if any unit fails with an I/O error
+     */
+    final void run(final ForkJoinPool pool, final long count) throws IOException {
+        run(pool, count, 0, 0, null, null);
+    }
+
+    /**
+     * Run the units after a start unit and wait for them. Whenever the units at the beginning are all done, the checkpoint is told how many they are.
+     *
+     * @param pool the pool
+     * @param count the number of units
+     * @param start the number of units at the beginning which have been done before
+     * @param startBytes the number of bytes of the units which have been done before
+     * @param checkpoint the checkpoint, or null
+     * @param out the output channel given to the checkpoint
+     * @throws IOException if any unit fails with an I/O error, or the checkpoint fails
+     */
+    final void run(final ForkJoinPool pool, final long count, final long start, final long startBytes, final Checkpoint checkpoint, final FileChannel out) throws IOException {
+        this.current = startBytes;
+        this.done = start;
+        this.checkpoint = checkpoint;
+        this.out = out;
+        if (listener != null) {
+            listener.onStarted(total);
+        }
+        if (count > start) {
+            pool.invoke(new Task(start, count));
+        }
+        final Exception ex = failure.get();
+        if (ex != null) {
+            if (ex instanceof IOException) {
+                throw (IOException) ex;
+            } else if (ex instanceof RuntimeException) {
+                throw (RuntimeException) ex;
+            }
+            throw new RuntimeException(ex.getMessage());
+        }
+        if (listener != null) {
+            listener.onFinished(current, total);
+        }
+    }
+
+    /**
+     * Check whether the job has been stopped by the listener or a failure.
+     *
+     * @return true if the job has been stopped
+     */
+    final boolean isStopped() {
+        return stopped;
+    }
+
+    private void progress(final long index, final long bytes) throws IOException {
+        final long position;
+        synchronized (this) {
+            current += bytes;
+            if (listener != null && !listener.onRunning(current, total)) {
+                stopped = true;
+            }
+            if (index != done) {
+                doneAhead.add(index);
+                return;
+            }
+            ++done;
+            while (!doneAhead.isEmpty() && doneAhead.first() == done) {
+                doneAhead.pollFirst();
+                ++done;
+            }
+            position = done;
+        }
+        if (checkpoint != null) {
+            checkpoint.reached(position, null, out);
+        }
+    }
+
+    // -----Inner Class-----
+    /**
+     * The task which handles a range of units.
+     */
+    private final class Task extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long from, to;
+
+        Task(final long from, final long to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (stopped) {
+                return;
+            }
+            if (to - from == 1) {
+                try {
+                    progress(from, handle(from));
+                } catch (final Exception ex) {
+                    failure.compareAndSet(null, ex);
+                    stopped = true;
+                }
+            } else {
+                final long middle = (from + to) >>> 1;
+                invokeAll(new Task(from, middle), new Task(middle, to));
+            }
+        }
+    }
+}
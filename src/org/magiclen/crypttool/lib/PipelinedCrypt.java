@@ -0,0 +1,394 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import org.magiclen.magiccrypt.lib.Crypt;
+
+/**
+ * Encrypt files in the classic format with reading, encryption and writing overlapped. The output is identical to the output of MagicCrypt and {@link ChannelCrypt}, and checkpoints are recorded in the same way as {@link ChannelCrypt}, so either of them can resume a job started by the other.
+ * <p>
+ * CBC encryption is serial, but the disk does not need to wait for it. A reader thread fills the buffers of a fixed ring, the calling thread encrypts them into the buffers of another ring, and a writer thread writes those out, so while one buffer is encrypted, the next one is read and the previous one is written. No buffer is allocated after the rings.
+ * </p>
+ * <p>
+ * There is nothing to overlap in a file which fits in one buffer, so it is read, encrypted and written on the calling thread, with buffers of its own size. The buffers of the rings are no larger than the rest of the file either, so many small files do not pay for full-size buffers and threads.
+ * </p>
+ *
+ * @author Magic Len
+ */
+public class PipelinedCrypt {
+
+    // -----Class Constant-----
+    /**
+     * The number of buffers in each ring. Three buffers let a buffer be in each stage while one more waits.
+     */
+    private static final int RING_SIZE = 3;
+    /**
+     * How long a stage waits for a buffer before it checks whether the other stages have failed, in milliseconds.
+     */
+    private static final long POLL_MILLIS = 10;
+
+    // -----Object Constant-----
+    private final CryptKey key;
+    private final int bufferSize;
+
+    // -----Constructor-----
+    /**
+     * Construct with the default buffer size of {@link ChannelCrypt}.
+     *
+     * @param key the key
+     */
+    public PipelinedCrypt(final CryptKey key) {
+        this(key, ChannelCrypt.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Construct. Each ring holds three buffers of this size.
+     *
+     * @param key the key
+     * @param bufferSize the buffer size in bytes, which is rounded down to a multiple of the block size
+     */
+    public PipelinedCrypt(final CryptKey key, final int bufferSize) {
+        if (bufferSize < 16) {
+            throw new RuntimeException("The buffer size must be at least 16 bytes!");
+        }
+        this.key = key;
+        this.bufferSize = bufferSize - bufferSize % key.getBlockSize();
+    }
+
+    // -----Class Method-----
+    /**
+     * Get the memory taken by the rings of one encryption of a file larger than the buffer size.
+     *
+     * @param bufferSize the buffer size in bytes
+     * @return the number of bytes of direct memory
+     */
+    public static long getMemorySize(final int bufferSize) {
+        return RING_SIZE * (bufferSize * 2L + 32);
+    }
+
+    // -----Object Method-----
+    /**
+     * Encrypt a file.
+     *
+     * @param source the plaintext file
+     * @param destination the file to save the ciphertext
+     * @param listener the listener, or null
+     * @throws IOException if an I/O error occurs
+     */
+    public void encrypt(final File source, final File destination, final Crypt.CryptListener listener) throws IOException {
+        encrypt(source, destination, listener, null);
+    }
+
+    /**
+     * Encrypt a file, resuming from a checkpoint. Positions are numbers of plaintext bytes, and the state is the last ciphertext block, which chains to the next block. Checkpoints are reported by the writer thread after the buffer which reaches them has been written.
+     *
+     * @param source the plaintext file
+     * @param destination the file to save the ciphertext
+     * @param listener the listener, or null
+     * @param checkpoint the checkpoint, or null
+     * @throws IOException if an I/O error occurs
+     */
+    public void encrypt(final File source, final File destination, final Crypt.CryptListener listener, final Checkpoint checkpoint) throws IOException {
+        final int blockSize = key.getBlockSize();
+        final long start = checkpoint == null ? 0 : checkpoint.getStart();
+        final byte[] chainedIV = start > 0 ? checkpoint.getState() : null;
+        final Cipher cipher;
+        try {
+            cipher = chainedIV != null ? key.getCipher(Cipher.ENCRYPT_MODE, "CBC", "PKCS5Padding", chainedIV) : key.getCipher(Cipher.ENCRYPT_MODE);
+        } catch (final GeneralSecurityException ex) {
+            throw new RuntimeException(ex.getMessage());
+        }
+        try (final FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                final FileChannel out = chainedIV != null ? FileChannel.open(destination.toPath(), StandardOpenOption.WRITE) : FileChannel.open(destination.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final long total = in.size();
+            long current = 0;
+            if (chainedIV != null) {
+                if (start % blockSize != 0 || start > total || start > out.size() || chainedIV.length != blockSize) {
+                    throw new IOException("The checkpoint does not match the files.");
+                }
+                current = start;
+                in.position(start);
+                out.truncate(start);
+                out.position(start);
+            }
+            if (listener != null) {
+                listener.onStarted(total);
+            }
+
+            final long remaining = total - current;
+            if (remaining <= bufferSize) {
+                current += encryptInline(cipher, in, out, (int) remaining);
+                if (listener != null) {
+                    listener.onFinished(current, total);
+                }
+                return;
+            }
+
+            // Round up to the block size, so that every buffer except the last one is a multiple of it.
+            final int slotSize = (int) Math.min(bufferSize, (remaining + blockSize - 1) / blockSize * blockSize);
+            final Pipeline pipeline = new Pipeline();
+            for (int i = 0; i < RING_SIZE; ++i) {
+                pipeline.freeInputs.add(new Slot(ByteBuffer.allocateDirect(slotSize), blockSize));
+                pipeline.freeOutputs.add(new Slot(ByteBuffer.allocateDirect(slotSize + blockSize * 2), blockSize));
+            }
+            final Thread reader = pipeline.start("PipelinedCrypt-Reader", () -> read(pipeline, in));
+            final Thread writer = pipeline.start("PipelinedCrypt-Writer", () -> write(pipeline, out, checkpoint));
+            try {
+                long written = current;
+                while (true) {
+                    final Slot input = pipeline.take(pipeline.filledInputs);
+                    final Slot output = pipeline.take(pipeline.freeOutputs);
+                    final int c = input.buffer.remaining();
+                    final boolean last = input.last;
+                    output.buffer.clear();
+                    try {
+                        if (last) {
+                            cipher.doFinal(input.buffer, output.buffer);
+                        } else {
+                            cipher.update(input.buffer, output.buffer);
+                        }
+                    } catch (final GeneralSecurityException ex) {
+                        throw new IOException(ex.getMessage(), ex);
+                    }
+                    // The input buffer is refilled as soon as it is returned, so nothing of it is used after this.
+                    input.buffer.clear();
+                    pipeline.freeInputs.add(input);
+                    output.buffer.flip();
+                    final int outputLength = output.buffer.remaining();
+                    current += c;
+                    written += outputLength;
+                    output.last = last;
+                    output.position = current;
+                    output.chained = !last && written == current && outputLength >= blockSize;
+                    if (output.chained) {
+                        for (int i = 0; i < blockSize; ++i) {
+                            output.state[i] = output.buffer.get(outputLength - blockSize + i);
+                        }
+                    }
+                    pipeline.filledOutputs.add(output);
+                    if (output.last) {
+                        break;
+                    }
+                    if (listener != null && !listener.onRunning(current, total)) {
+                        break;
+                    }
+                }
+            } catch (final IOException | RuntimeException ex) {
+                pipeline.fail(ex);
+            } finally {
+                pipeline.stopped = true;
+                join(reader);
+                join(writer);
+            }
+            pipeline.rethrow();
+            if (listener != null) {
+                listener.onFinished(current, total);
+            }
+        }
+    }
+
+    /**
+     * Encrypt the rest of a file which fits in one buffer on the calling thread.
+     *
+     * @param cipher the cipher
+     * @param in the plaintext, at the position to start from
+     * @param out the destination, at the position to start from
+     * @param remaining the number of bytes left in the plaintext
+     * @return the number of bytes read
+     * @throws IOException if an I/O error occurs
+     */
+    private static int encryptInline(final Cipher cipher, final FileChannel in, final FileChannel out, final int remaining) throws IOException {
+        final ByteBuffer input = ByteBuffer.allocate(remaining);
+        int c;
+        do {
+            c = in.read(input);
+        } while (c >= 0 && input.hasRemaining());
+        input.flip();
+        final ByteBuffer output;
+        try {
+            output = ByteBuffer.wrap(cipher.doFinal(input.array(), 0, input.limit()));
+        } catch (final GeneralSecurityException ex) {
+            throw new IOException(ex.getMessage(), ex);
+        }
+        while (output.hasRemaining()) {
+            out.write(output);
+        }
+        return input.limit();
+    }
+
+    private static void read(final Pipeline pipeline, final FileChannel in) throws IOException {
+        while (!pipeline.stopped) {
+            final Slot slot = pipeline.take(pipeline.freeInputs);
+            if (slot == null) {
+                return;
+            }
+            final ByteBuffer buffer = slot.buffer;
+            // Fill the whole buffer, so that every buffer except the last one is a multiple of the block size.
+            int c;
+            do {
+                c = in.read(buffer);
+            } while (c >= 0 && buffer.hasRemaining());
+            buffer.flip();
+            slot.last = c < 0;
+            pipeline.filledInputs.add(slot);
+            if (slot.last) {
+                return;
+            }
+        }
+    }
+
+    private static void write(final Pipeline pipeline, final FileChannel out, final Checkpoint checkpoint) throws IOException {
+        while (true) {
+            final Slot slot = pipeline.take(pipeline.filledOutputs);
+            if (slot == null) {
+                return;
+            }
+            while (slot.buffer.hasRemaining()) {
+                out.write(slot.buffer);
+            }
+            if (checkpoint != null && slot.chained) {
+                checkpoint.reached(slot.position, slot.state, out);
+            }
+            if (slot.last) {
+                return;
+            }
+            pipeline.freeOutputs.add(slot);
+        }
+    }
+
+    private static void join(final Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (final InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // -----Inner Class-----
+    /**
+     * A buffer of a ring, and what the writer needs to know about its content.
+     */
+    private static final class Slot {
+
+        private final ByteBuffer buffer;
+        private final byte[] state;
+        private boolean last, chained;
+        private long position;
+
+        private Slot(final ByteBuffer buffer, final int blockSize) {
+            this.buffer = buffer;
+            this.state = new byte[blockSize];
+        }
+    }
+
+    /**
+     * The rings between the stages. Every queue can hold all buffers of its ring, so adding never blocks.
+     */
+    private static final class Pipeline {
+
+        private final BlockingQueue<Slot> freeInputs = new ArrayBlockingQueue<>(RING_SIZE), filledInputs = new ArrayBlockingQueue<>(RING_SIZE);
+        private final BlockingQueue<Slot> freeOutputs = new ArrayBlockingQueue<>(RING_SIZE), filledOutputs = new ArrayBlockingQueue<>(RING_SIZE);
+        private volatile Exception failure;
+        /**
+         * Whether the encryption has ended, normally or not. Then the reader stops and the writer stops after the buffers which have been encrypted.
+         */
+        private volatile boolean stopped;
+
+        private Thread start(final String name, final Stage stage) {
+            final Thread thread = new Thread(() -> {
+                try {
+                    stage.run();
+                } catch (final Exception ex) {
+                    fail(ex);
+                }
+            }, name);
+            thread.setDaemon(true);
+            thread.start();
+            return thread;
+        }
+
+        /**
+         * Take a buffer, waiting while there is none. Threads are never interrupted, because an interrupt closes the file channels, so every stage checks for failures itself.
+         *
+         * @return the buffer, or null if the pipeline has been stopped and the queue is empty
+         */
+        private Slot take(final BlockingQueue<Slot> queue) throws IOException {
+            while (true) {
+                if (failure != null) {
+                    throw new InterruptedIOException("Another stage of the pipeline has failed.");
+                }
+                if (stopped && queue.isEmpty()) {
+                    return null;
+                }
+                try {
+                    final Slot slot = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (slot != null) {
+                        return slot;
+                    }
+                } catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("The pipeline has been interrupted.");
+                }
+            }
+        }
+
+        private synchronized void fail(final Exception ex) {
+            if (failure == null) {
+                failure = ex;
+            }
+        }
+
+        private void rethrow() throws IOException {
+            final Exception ex = failure;
+            if (ex == null) {
+                return;
+            }
+            if (ex instanceof IOException) {
+                throw (IOException) ex;
+            } else if (ex instanceof RuntimeException) {
+                throw (RuntimeException) ex;
+            }
+            throw new RuntimeException(ex.getMessage());
+        }
+    }
+
+    /**
+     * A stage which runs on its own thread.
+     */
+    private interface Stage {
+
+        void run() throws Exception;
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import javax.crypto.Cipher;
+import org.magiclen.magiccrypt.lib.Crypt;
+
+/**
+ * Re-encrypt files with a new key in one pass. The plaintext is read from a {@link DecryptingChannel} with the old key and encrypted with the new key chunk by chunk in memory, so it is never written to the disk and every file is read and written only once.
+ * <p>
+ * The output is the same as encrypting the plaintext with the new key, in the format of the source file or in another format. An envelope file becomes an authenticated file of the new key. Compressed files cannot be re-keyed in one pass.
+ * </p>
+ *
+ * @author Magic Len
+ */
+public class RekeyCrypt {
+
+    // -----Class Constant-----
+    /**
+     * The size of the plaintext buffer of the classic format.
+     */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    /**
+     * The share of bytes which must look like text or zeros for a decrypted block to be taken as data rather than the random bytes of a wrong key.
+     */
+    private static final double DATA_SHARE = 0.75;
+
+    /**
+     * The keys a file is found to be encrypted with.
+     */
+    public enum KeyMatch {
+        /**
+         * The file is encrypted with the old key.
+         */
+        OLD_KEY,
+        /**
+         * The file is encrypted with the new key.
+         */
+        NEW_KEY,
+        /**
+         * The file is in the classic format, both keys give a correct padding, and nothing tells which one it is encrypted with.
+         */
+        AMBIGUOUS
+    }
+
+    // -----Object Constant-----
+    private final CryptKey oldKey, newKey;
+    private final CryptFormat format;
+    private final int segmentSize;
+
+    // -----Object Variable-----
+    private boolean assumeOld;
+
+    // -----Constructor-----
+    /**
+     * Construct.
+     *
+     * @param oldKey the key which files are encrypted with
+     * @param newKey the key to encrypt files with
+     * @param format the format of re-keyed files, or null to keep the format and the segment size of every file
+     * @param segmentSize the segment size of the segmented format and the chunk size of the authenticated format, which is used only if the format is given
+     */
+    public RekeyCrypt(final CryptKey oldKey, final CryptKey newKey, final CryptFormat format, final int segmentSize) {
+        if (format == CryptFormat.ARCHIVE || format == CryptFormat.ENVELOPE) {
+            throw new RuntimeException(String.format("Files cannot be re-keyed into the %s format.", format.toString().toLowerCase()));
+        }
+        if (format != null) {
+            SegmentedCrypt.checkSegmentSize(segmentSize);
+        }
+        this.oldKey = oldKey;
+        this.newKey = newKey;
+        this.format = format;
+        this.segmentSize = segmentSize;
+    }
+
+    // -----Class Method-----
+    /**
+     * Check whether the plaintext of a file in the classic format looks like data rather than the random bytes which a wrong key gives. The first block and the bytes of the last block before the padding are checked, and most of them must be printable ASCII, line breaks, tabs or zeros, which is true for text and for the headers of most binary files but rarely for random bytes.
+     *
+     * @param key the key
+     * @param in the file
+     * @param padding the length of the padding with the key
+     * @return true if the plaintext looks like data
+     * @throws IOException if an I/O error occurs
+     */
+    private static boolean looksLikeData(final CryptKey key, final FileChannel in, final int padding) throws IOException {
+        final int blockSize = key.getBlockSize();
+        final long size = in.size();
+        final byte[] first = new byte[blockSize];
+        FileChannels.readFully(in, ByteBuffer.wrap(first), 0);
+        final byte[] plain;
+        try {
+            if (size == blockSize) {
+                plain = Arrays.copyOf(key.getCipher(Cipher.DECRYPT_MODE, "CBC", "NoPadding", key.getIV()).doFinal(first), blockSize - padding);
+            } else {
+                final byte[] last = new byte[blockSize * 2];
+                FileChannels.readFully(in, ByteBuffer.wrap(last), size - blockSize * 2);
+                final byte[] firstPlain = key.getCipher(Cipher.DECRYPT_MODE, "CBC", "NoPadding", key.getIV()).doFinal(first);
+                final byte[] lastPlain = key.getCipher(Cipher.DECRYPT_MODE, "CBC", "NoPadding", Arrays.copyOf(last, blockSize)).doFinal(last, blockSize, blockSize);
+                plain = Arrays.copyOf(firstPlain, blockSize * 2 - padding);
+                System.arraycopy(lastPlain, 0, plain, blockSize, blockSize - padding);
+            }
+        } catch (final GeneralSecurityException ex) {
+            throw new RuntimeException(ex.getMessage());
+        }
+        if (plain.length == 0) {
+            return false;
+        }
+        int count = 0;
+        for (final byte b : plain) {
+            if (b == 0 || b == '\t' || b == '\n' || b == '\r' || b >= 0x20 && b < 0x7F) {
+                ++count;
+            }
+        }
+        return count >= plain.length * DATA_SHARE;
+    }
+
+    // -----Object Method-----
+    /**
+     * Set whether files in the classic format which match both keys are taken as encrypted with the old key. Re-keying a file which is encrypted with the new key already makes it unreadable with the new key, so this should be used only when no file can be encrypted with the new key yet.
+     *
+     * @param assumeOld true to re-key ambiguous files, or false to reject them
+     */
+    public void setAssumeOld(final boolean assumeOld) {
+        this.assumeOld = assumeOld;
+    }
+
+    /**
+     * Find which key a file is encrypted with. The header tells it at once. A file in the classic format has no header, so it is told by the padding. About one file in 256 has a correct padding with the wrong key too, which is nearly always one byte long, so a longer padding wins, and if the paddings are as long, the key whose plaintext looks like data wins.
+     *
+     * @param file the encrypted file
+     * @return the key, or {@link KeyMatch#AMBIGUOUS} if it cannot be told
+     * @throws IOException if an I/O error occurs, or the file is encrypted with neither key
+     */
+    public KeyMatch matchKey(final File file) throws IOException {
+        try (final FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final CryptHeader header = CryptHeader.read(in);
+            if (header != null && header.getFormat() == CryptFormat.ENVELOPE) {
+                if (EnvelopeCrypt.hasSlot(newKey, in, header)) {
+                    return KeyMatch.NEW_KEY;
+                }
+                if (EnvelopeCrypt.hasSlot(oldKey, in, header)) {
+                    return KeyMatch.OLD_KEY;
+                }
+                throw new IOException("The file is encrypted with neither the old key nor the new key.");
+            }
+            if (header != null) {
+                if (header.getBits() == newKey.getBits() && header.matches(newKey)) {
+                    return KeyMatch.NEW_KEY;
+                }
+                if (header.getBits() == oldKey.getBits() && header.matches(oldKey)) {
+                    return KeyMatch.OLD_KEY;
+                }
+                throw new IOException("The file is encrypted with neither the old key nor the new key.");
+            }
+            final int oldPadding = CryptDetector.paddingLength(oldKey, in);
+            final int newPadding = CryptDetector.paddingLength(newKey, in);
+            if (oldPadding < 0 && newPadding < 0) {
+                throw new IOException("The file is encrypted with neither the old key nor the new key.");
+            }
+            if (oldPadding < 0 || newPadding < 0) {
+                return newPadding > 0 ? KeyMatch.NEW_KEY : KeyMatch.OLD_KEY;
+            }
+            if (oldPadding != newPadding) {
+                return newPadding > oldPadding ? KeyMatch.NEW_KEY : KeyMatch.OLD_KEY;
+            }
+            final boolean oldData = looksLikeData(oldKey, in, oldPadding);
+            final boolean newData = looksLikeData(newKey, in, newPadding);
+            if (oldData != newData) {
+                return newData ? KeyMatch.NEW_KEY : KeyMatch.OLD_KEY;
+            }
+            return KeyMatch.AMBIGUOUS;
+        }
+    }
+
+    /**
+     * Check whether a file is encrypted with the new key already. A file whose key cannot be told is taken as encrypted with the old key if {@link #setAssumeOld(boolean)} is set.
+     *
+     * @param file the encrypted file
+     * @return true if the file is encrypted with the new key, or false if it is encrypted with the old key
+     * @throws IOException if an I/O error occurs, or the file is encrypted with neither key or the key cannot be told
+     * @see #matchKey(File)
+     */
+    public boolean isRekeyed(final File file) throws IOException {
+        switch (matchKey(file)) {
+            case NEW_KEY:
+                return true;
+            case OLD_KEY:
+                return false;
+            default:
+                if (assumeOld) {
+                    return false;
+                }
+                throw new IOException("The file can be decrypted with both keys, so it is not known which key it is encrypted with.");
+        }
+    }
+
+    /**
+     * Re-encrypt a file with the new key.
+     *
+     * @param source the file encrypted with the old key
+     * @param destination the file to save the file encrypted with the new key, which must not be the source file
+     * @param listener the listener, or null
+     * @throws IOException if an I/O error occurs, or the source file is encrypted with the new key already, does not match the old key or is compressed
+     */
+    public void rekey(final File source, final File destination, final Crypt.CryptListener listener) throws IOException {
+        if (isRekeyed(source)) {
+            throw new IOException("The file is encrypted with the new key already.");
+        }
+        final CryptHeader header = CryptHeader.read(source);
+        if (header != null && header.getCodec() != Codec.NONE) {
+            throw new IOException(String.format("The file is compressed with %s, so it cannot be re-keyed in one pass.", header.getCodec()));
+        }
+        final CryptFormat targetFormat = format != null ? format : header == null ? CryptFormat.CLASSIC : header.getFormat() == CryptFormat.ENVELOPE ? CryptFormat.AUTHENTICATED : header.getFormat();
+        final int targetSegmentSize = format != null || header == null ? segmentSize : header.getSegmentSize();
+        try (final DecryptingChannel in = DecryptingChannel.open(oldKey, source);
+                final FileChannel out = FileChannel.open(destination.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final long length = in.size();
+            if (listener != null) {
+                listener.onStarted(length);
+            }
+            final long done;
+            try {
+                if (targetFormat == CryptFormat.CLASSIC) {
+                    done = rekeyClassic(in, out, length, listener);
+                } else {
+                    done = rekeyUnits(in, out, length, targetFormat, targetSegmentSize, listener);
+                }
+            } catch (final GeneralSecurityException ex) {
+                throw new IOException(ex.getMessage());
+            }
+            if (listener != null && done == length) {
+                listener.onFinished(done, length);
+            }
+        }
+    }
+
+    /**
+     * Encrypt the plaintext in the classic format, which is the same as MagicCrypt.
+     *
+     * @param in the plaintext
+     * @param out the destination
+     * @param length the plaintext length
+     * @param listener the listener, or null
+     * @return the bytes handled, which are fewer than the length if the listener stops the job
+     * @throws IOException if an I/O error occurs
+     * @throws GeneralSecurityException if the cipher is not available
+     */
+    private long rekeyClassic(final DecryptingChannel in, final FileChannel out, final long length, final Crypt.CryptListener listener) throws IOException, GeneralSecurityException {
+        final Cipher cipher = newKey.getCipher(Cipher.ENCRYPT_MODE);
+        final ByteBuffer plain = ByteBuffer.allocate((int) Math.max(1, Math.min(BUFFER_SIZE, length)));
+        final ByteBuffer encrypted = ByteBuffer.allocate(cipher.getOutputSize(plain.capacity()));
+        long done = 0;
+        while (done < length) {
+            plain.clear();
+            in.read(plain);
+            plain.flip();
+            done += plain.remaining();
+            encrypted.clear();
+            cipher.update(plain, encrypted);
+            encrypted.flip();
+            while (encrypted.hasRemaining()) {
+                out.write(encrypted);
+            }
+            if (listener != null && !listener.onRunning(done, length)) {
+                return done;
+            }
+        }
+        encrypted.clear();
+        cipher.doFinal(ByteBuffer.allocate(0), encrypted);
+        encrypted.flip();
+        while (encrypted.hasRemaining()) {
+            out.write(encrypted);
+        }
+        return done;
+    }
+
+    /**
+     * Encrypt the plaintext in the segmented or authenticated format, segment by segment or chunk by chunk.
+     *
+     * @param in the plaintext
+     * @param out the destination
+     * @param length the plaintext length
+     * @param targetFormat the segmented or authenticated format
+     * @param unitSize the segment size or the chunk size
+     * @param listener the listener, or null
+     * @return the bytes handled, which are fewer than the length if the listener stops the job
+     * @throws IOException if an I/O error occurs
+     * @throws GeneralSecurityException if the cipher is not available
+     */
+    private long rekeyUnits(final DecryptingChannel in, final FileChannel out, final long length, final CryptFormat targetFormat, final int unitSize, final Crypt.CryptListener listener) throws IOException, GeneralSecurityException {
+        final byte[] aad = new CryptHeader(targetFormat, newKey, unitSize, length).toByteBuffer().array();
+        FileChannels.writeFully(out, ByteBuffer.wrap(aad), 0);
+        long position = aad.length;
+        final UnitCipher unitCipher;
+        final long units;
+        if (targetFormat == CryptFormat.AUTHENTICATED) {
+            final byte[] salt = AuthenticatedCrypt.newSalt();
+            FileChannels.writeFully(out, ByteBuffer.wrap(salt), position);
+            position += salt.length;
+            unitCipher = new AuthenticatedCrypt(newKey, unitSize, ForkJoinPool.commonPool()).unitCipher(aad, salt);
+            units = Math.max(1, (length + unitSize - 1) / unitSize);
+        } else {
+            unitCipher = new SegmentedCrypt(newKey, unitSize, ForkJoinPool.commonPool()).unitCipher(length);
+            units = (length + unitSize - 1) / unitSize;
+        }
+        final int overhead = unitCipher.getOverhead();
+        final byte[] unit = new byte[unitSize + overhead];
+        long done = 0;
+        for (long index = 0; index < units; ++index) {
+            final int size = (int) Math.min(unitSize, length - done);
+            final ByteBuffer plain = ByteBuffer.wrap(unit, unitCipher.getDataOffset(), size);
+            while (plain.hasRemaining()) {
+                if (in.read(plain) < 0) {
+                    throw new IOException("The file is shorter than expected.");
+                }
+            }
+            unitCipher.seal(index, unit, size);
+            FileChannels.writeFully(out, ByteBuffer.wrap(unit, 0, size + overhead), position);
+            position += size + overhead;
+            done += size;
+            if (listener != null && !listener.onRunning(done, length)) {
+                return done;
+            }
+        }
+        return done;
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import org.magiclen.magiccrypt.lib.Crypt;
+
+/**
+ * Encrypt or decrypt files in the segmented format on all cores.
+ * <p>
+ * A segmented file is a {@link CryptHeader} followed by segments. Each segment is its IV followed by the ciphertext of up to <i>segmentSize</i> bytes, encrypted in CTR mode. The IV of a segment is the truncated MAC of the plaintext length, the segment index and the segment plaintext, so the same input always gives the same output, different segments never share a key stream, and a segment whose MAC does not match is rejected when it is decrypted.
+ * </p>
+ *
+ * @author Magic Len
+ */
+public class SegmentedCrypt {
+
+    // -----Class Constant-----
+    /**
+     * The default segment size.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    /**
+     * The maximum segment size.
+     */
+    public static final int MAX_SEGMENT_SIZE = 256 * 1024 * 1024;
+    private static final String MAC_LABEL = "CryptTool segment";
+
+    // -----Object Constant-----
+    private final CryptKey key;
+    private final int segmentSize;
+    private final ForkJoinPool pool;
+
+    // -----Constructor-----
+    /**
+     * Construct with the default segment size and the common pool.
+     *
+     * @param key the key
+     */
+    public SegmentedCrypt(final CryptKey key) {
+        this(key, DEFAULT_SEGMENT_SIZE, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Construct.
+     *
+     * @param key the key
+     * @param segmentSize the segment size used to encrypt, which must be a multiple of 16
+     * @param pool the pool which runs segments
+     */
+    public SegmentedCrypt(final CryptKey key, final int segmentSize, final ForkJoinPool pool) {
+        checkSegmentSize(segmentSize);
+        this.key = key;
+        this.segmentSize = segmentSize;
+        this.pool = pool;
+    }
+
+    // -----Class Method-----
+    /**
+     * Check a segment size.
+     *
+     * @param segmentSize the segment size
+     */
+    static void checkSegmentSize(final int segmentSize) {
+        if (segmentSize <= 0 || segmentSize % 16 != 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new RuntimeException(String.format("The segment size must be a multiple of 16 bytes and at most %d bytes!", MAX_SEGMENT_SIZE));
+        }
+    }
+
+    private static byte[] longToBytes(final long value) {
+        return ByteBuffer.allocate(8).putLong(value).array();
+    }
+
+    // -----Object Method-----
+    /**
+     * Compute the IV of a segment.
+     *
+     * @param mac the MAC
+     * @param length the plaintext length of the whole file
+     * @param index the segment index
+     * @param data the array which contains the segment plaintext
+     * @param offset the offset of the segment plaintext
+     * @param size the size of the segment plaintext
+     * @return the IV
+     */
+    private byte[] segmentIV(final Mac mac, final long length, final long index, final byte[] data, final int offset, final int size) {
+        mac.update(longToBytes(length));
+        mac.update(longToBytes(index));
+        mac.update(data, offset, size);
+        return Arrays.copyOf(mac.doFinal(), key.getBlockSize());
+    }
+
+    /**
+     * Get the cipher of the segments of a file.
+     *
+     * @param length the plaintext length of the whole file, which is bound to every segment
+     * @return the cipher
+     */
+    UnitCipher unitCipher(final long length) {
+        final int ivSize = key.getBlockSize();
+        return new UnitCipher() {
+            @Override
+            public int getOverhead() {
+                return ivSize;
+            }
+
+            @Override
+            public int getDataOffset() {
+                return ivSize;
+            }
+
+            @Override
+            public void seal(final long index, final byte[] unit, final int size) throws GeneralSecurityException {
+                final byte[] iv = segmentIV(key.getMac(MAC_LABEL), length, index, unit, ivSize, size);
+                final Cipher cipher = key.getCipher(Cipher.ENCRYPT_MODE, "CTR", "NoPadding", iv);
+                cipher.doFinal(unit, ivSize, size, unit, ivSize);
+                System.arraycopy(iv, 0, unit, 0, ivSize);
+            }
+
+            @Override
+            public void open(final long index, final byte[] unit, final int size) throws GeneralSecurityException, IOException {
+                final byte[] iv = Arrays.copyOf(unit, ivSize);
+                final Cipher cipher = key.getCipher(Cipher.DECRYPT_MODE, "CTR", "NoPadding", iv);
+                cipher.doFinal(unit, ivSize, size, unit, ivSize);
+                if (!MessageDigest.isEqual(iv, segmentIV(key.getMac(MAC_LABEL), length, index, unit, ivSize, size))) {
+                    throw new IOException("The key is incorrect or the file is damaged.");
+                }
+            }
+        };
+    }
+
+    /**
+     * Encrypt a file.
+     *
+     * @param source the plaintext file
+     * @param destination the file to save the ciphertext
+     * @param listener the listener, or null
+     * @throws IOException if an I/O error occurs
+     */
+    public void encrypt(final File source, final File destination, final Crypt.CryptListener listener) throws IOException {
+        encrypt(source, destination, listener, null);
+    }
+
+    /**
+     * Encrypt a file, resuming from a checkpoint. Positions are numbers of segments.
+     *
+     * @param source the plaintext file
+     * @param destination the file to save the ciphertext
+     * @param listener the listener, or null
+     * @param checkpoint the checkpoint, or null
+     * @throws IOException if an I/O error occurs
+     */
+    public void encrypt(final File source, final File destination, final Crypt.CryptListener listener, final Checkpoint checkpoint) throws IOException {
+        final long start = checkpoint == null ? 0 : checkpoint.getStart();
+        try (final FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                final FileChannel out = start > 0 ? FileChannel.open(destination.toPath(), StandardOpenOption.WRITE) : FileChannel.open(destination.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final long length = in.size();
+            final int ivSize = key.getBlockSize();
+            final long segments = (length + segmentSize - 1) / segmentSize;
+            if (start > segments) {
+                throw new IOException("The checkpoint does not match the files.");
+            }
+            FileChannels.writeFully(out, new CryptHeader(CryptFormat.SEGMENTED, key, segmentSize, length).toByteBuffer(), 0);
+            final UnitCipher unitCipher = unitCipher(length);
+
+            new ParallelJob(length, listener) {
+                @Override
+                protected long handle(final long index) throws IOException, GeneralSecurityException {
+                    final long offset = index * segmentSize;
+                    final int size = (int) Math.min(segmentSize, length - offset);
+                    final byte[] data = new byte[ivSize + size];
+                    FileChannels.readFully(in, ByteBuffer.wrap(data, ivSize, size), offset);
+
+                    unitCipher.seal(index, data, size);
+
+                    FileChannels.writeFully(out, ByteBuffer.wrap(data), CryptHeader.SIZE + index * (ivSize + segmentSize));
+                    return size;
+                }
+            }.run(pool, segments, start, Math.min(length, start * segmentSize), checkpoint, out);
+            out.truncate(CryptHeader.SIZE + segments * ivSize + length);
+        }
+    }
+
+    /**
+     * Decrypt a file in the segmented format.
+     *
+     * @param source the ciphertext file
+     * @param destination the file to save the plaintext
+     * @param listener the listener, or null
+     * @throws IOException if an I/O error occurs, or the file is damaged or does not match the key
+     */
+    public void decrypt(final File source, final File destination, final Crypt.CryptListener listener) throws IOException {
+        decrypt(source, destination, listener, null);
+    }
+
+    /**
+     * Decrypt a file in the segmented format, resuming from a checkpoint. Positions are numbers of segments.
+     *
+     * @param source the ciphertext file
+     * @param destination the file to save the plaintext
+     * @param listener the listener, or null
+     * @param checkpoint the checkpoint, or null
+     * @throws IOException if an I/O error occurs, or the file is damaged or does not match the key
+     */
+    public void decrypt(final File source, final File destination, final Crypt.CryptListener listener, final Checkpoint checkpoint) throws IOException {
+        authenticate(source, destination, listener, checkpoint);
+    }
+
+    /**
+     * Verify a file in the segmented format. Every segment is read, decrypted and checked against its MAC in memory, but nothing is written.
+     *
+     * @param source the ciphertext file
+     * @param listener the listener, or null
+     * @throws IOException if an I/O error occurs, or the file is damaged or does not match the key
+     */
+    public void verify(final File source, final Crypt.CryptListener listener) throws IOException {
+        authenticate(source, null, listener, null);
+    }
+
+    /**
+     * Decrypt and check every segment of a file.
+     *
+     * @param source the ciphertext file
+     * @param destination the file to save the plaintext, or null to write nothing
+     * @param listener the listener, or null
+     * @param checkpoint the checkpoint, or null
+     * @throws IOException if an I/O error occurs, or the file is damaged or does not match the key
+     */
+    private void authenticate(final File source, final File destination, final Crypt.CryptListener listener, final Checkpoint checkpoint) throws IOException {
+        final long start = checkpoint == null ? 0 : checkpoint.getStart();
+        try (final FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            final CryptHeader header = CryptHeader.read(in);
+            if (header == null || header.getFormat() != CryptFormat.SEGMENTED) {
+                throw new IOException("The file is not in the segmented format.");
+            }
+            if (header.getCodec() != Codec.NONE) {
+                throw new IOException(String.format("The file is compressed with %s.", header.getCodec()));
+            }
+            if (header.getBits() != key.getBits()) {
+                throw new IOException(String.format("The file is encrypted with a %d-bit key.", header.getBits()));
+            }
+            if (!header.matches(key)) {
+                throw new IOException("The key is incorrect.");
+            }
+            final int fileSegmentSize = header.getSegmentSize();
+            checkSegmentSize(fileSegmentSize);
+            final long length = header.getLength();
+            final int ivSize = key.getBlockSize();
+            final long segments = (length + fileSegmentSize - 1) / fileSegmentSize;
+            final int headerSize = header.getSize();
+            if (in.size() != headerSize + segments * ivSize + length) {
+                throw new IOException("The file is damaged.");
+            }
+            final UnitCipher unitCipher = unitCipher(length);
+
+            if (start > segments) {
+                throw new IOException("The checkpoint does not match the files.");
+            }
+
+            try (final FileChannel out = destination == null ? null : start > 0 ? FileChannel.open(destination.toPath(), StandardOpenOption.WRITE) : FileChannel.open(destination.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                new ParallelJob(length, listener) {
+                    @Override
+                    protected long handle(final long index) throws IOException, GeneralSecurityException {
+                        final long offset = index * fileSegmentSize;
+                        final int size = (int) Math.min(fileSegmentSize, length - offset);
+                        final byte[] data = new byte[ivSize + size];
+                        FileChannels.readFully(in, ByteBuffer.wrap(data), headerSize + index * (ivSize + fileSegmentSize));
+
+                        unitCipher.open(index, data, size);
+
+                        if (out != null) {
+                            FileChannels.writeFully(out, ByteBuffer.wrap(data, ivSize, size), offset);
+                        }
+                        return size;
+                    }
+                }.run(pool, segments, start, Math.min(length, start * fileSegmentSize), checkpoint, out);
+                if (out != null) {
+                    out.truncate(length);
+                }
+            }
+        }
+    }
+}
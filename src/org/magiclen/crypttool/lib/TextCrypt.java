@@ -0,0 +1,356 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool.lib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import javax.crypto.Cipher;
+import javax.security.auth.Destroyable;
+import org.magiclen.magiccrypt.Base64;
+
+/**
+ * Encrypt or decrypt text in the same way as MagicCrypt does, that is, the UTF-8 bytes of the plaintext in the classic format encoded with Base64. Data is pushed through the cipher in chunks, large text can be streamed to an {@link Appendable}, and the work stops as soon as the current thread is interrupted, so a stale transform can be cancelled.
+ * <p>
+ * Initialized ciphers are kept in pools and reused, because a cipher returns to its initialized state after doFinal. A cipher is taken out of its pool while it is used, so it is never shared between threads.
+ * </p>
+ *
+ * @author Magic Len
+ */
+public final class TextCrypt implements Destroyable {
+
+    // -----Class Constant-----
+    /**
+     * The number of bytes handled between two checks of the interrupt status.
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
+    /**
+     * The maximum number of idle ciphers kept in each pool.
+     */
+    private static final int MAX_POOLED_CIPHERS = 4;
+
+    // -----Object Constant-----
+    private final CryptKey key;
+    private final ConcurrentLinkedDeque<Cipher> encryptCiphers = new ConcurrentLinkedDeque<>(), decryptCiphers = new ConcurrentLinkedDeque<>();
+
+    // -----Constructor-----
+    /**
+     * Construct.
+     *
+     * @param key the key
+     */
+    public TextCrypt(final CryptKey key) {
+        this.key = key;
+    }
+
+    // -----Class Method-----
+    private static boolean isBase64(final char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '+' || c == '/';
+    }
+
+    private static void checkInterrupted() {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException();
+        }
+    }
+
+    private static byte[] crypt(final Cipher cipher, final byte[] input) throws GeneralSecurityException {
+        final byte[] output = new byte[cipher.getOutputSize(input.length)];
+        int length = 0;
+        int offset = 0;
+        while (input.length - offset > CHUNK_SIZE) {
+            checkInterrupted();
+            length += cipher.update(input, offset, CHUNK_SIZE, output, length);
+            offset += CHUNK_SIZE;
+        }
+        checkInterrupted();
+        length += cipher.doFinal(input, offset, input.length - offset, output, length);
+        if (length == output.length) {
+            return output;
+        }
+        final byte[] result = new byte[length];
+        System.arraycopy(output, 0, result, 0, length);
+        return result;
+    }
+
+    // -----Object Method-----
+    private Cipher borrowCipher(final int opmode) throws GeneralSecurityException {
+        final Cipher cipher = (opmode == Cipher.ENCRYPT_MODE ? encryptCiphers : decryptCiphers).pollFirst();
+        return cipher != null ? cipher : key.getCipher(opmode);
+    }
+
+    private void returnCipher(final int opmode, final Cipher cipher) {
+        final ConcurrentLinkedDeque<Cipher> pool = opmode == Cipher.ENCRYPT_MODE ? encryptCiphers : decryptCiphers;
+        if (!key.isDestroyed() && pool.size() < MAX_POOLED_CIPHERS) {
+            pool.offerFirst(cipher);
+        }
+    }
+
+    /**
+     * Push data through a pooled cipher. A cipher which fails or is interrupted is dropped instead of being returned, because its state is unknown.
+     *
+     * @param opmode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     * @param input the input
+     * @return the output
+     * @throws GeneralSecurityException if the cipher fails
+     */
+    private byte[] crypt(final int opmode, final byte[] input) throws GeneralSecurityException {
+        final Cipher cipher = borrowCipher(opmode);
+        final byte[] output = crypt(cipher, input);
+        returnCipher(opmode, cipher);
+        return output;
+    }
+
+    /**
+     * Get the key.
+     *
+     * @return the key
+     */
+    public CryptKey getKey() {
+        return key;
+    }
+
+    /**
+     * Check whether text is encrypted with the key by decrypting its last block only. Only the Base64 characters of the last two blocks are decoded, so no copy of the whole text is made.
+     *
+     * @param text the text
+     * @return true if the text is Base64 whose decoded bytes are in the classic format and match the key
+     */
+    public boolean isEncrypted(final CharSequence text) {
+        final int length = text.length();
+        int padding = 0;
+        while (padding < 2 && padding < length && text.charAt(length - 1 - padding) == '=') {
+            ++padding;
+        }
+        for (int i = length - padding - 1; i >= 0; --i) {
+            if (!isBase64(text.charAt(i))) {
+                return false;
+            }
+        }
+        final int remainder = length % 4;
+        if (remainder == 1) {
+            return false;
+        }
+        final long decodedLength = length / 4 * 3L + (remainder == 0 ? -padding : remainder - 1);
+        final int blockSize = key.getBlockSize();
+        if (decodedLength <= 0 || decodedLength % blockSize != 0) {
+            return false;
+        }
+        final long tailLength = Math.min(blockSize * 2, decodedLength);
+        final int tailStart = (int) ((decodedLength - tailLength) / 3 * 4);
+        final byte[] tail;
+        try {
+            tail = Base64.getDecoder().decode(text.subSequence(tailStart, length).toString());
+        } catch (final IllegalArgumentException ex) {
+            return false;
+        }
+        if (tail.length < tailLength) {
+            return false;
+        }
+        final byte[] data = new byte[(int) tailLength];
+        System.arraycopy(tail, tail.length - data.length, data, 0, data.length);
+        return CryptDetector.detect(key, data) == CryptDetector.Result.CLASSIC;
+    }
+
+    /**
+     * Encrypt text.
+     *
+     * @param text the plaintext
+     * @return the ciphertext encoded with Base64
+     * @throws GeneralSecurityException if the cipher is not available
+     * @throws CancellationException if the current thread is interrupted
+     */
+    public String encrypt(final String text) throws GeneralSecurityException {
+        final byte[] data = crypt(Cipher.ENCRYPT_MODE, text.getBytes(StandardCharsets.UTF_8));
+        checkInterrupted();
+        return Base64.getEncoder().encodeToString(data);
+    }
+
+    /**
+     * Decrypt text.
+     *
+     * @param text the ciphertext encoded with Base64
+     * @return the plaintext
+     * @throws GeneralSecurityException if the key is incorrect or the text is damaged
+     * @throws IllegalArgumentException if the text is not Base64
+     * @throws CancellationException if the current thread is interrupted
+     */
+    public String decrypt(final String text) throws GeneralSecurityException {
+        final byte[] data = Base64.getDecoder().decode(text);
+        checkInterrupted();
+        return new String(crypt(Cipher.DECRYPT_MODE, data), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encrypt text, appending the Base64 of the ciphertext to an appendable chunk by chunk, so that neither the UTF-8 bytes nor the ciphertext of the whole text are held in memory.
+     *
+     * @param text the plaintext
+     * @param out the appendable which receives the ciphertext encoded with Base64
+     * @throws GeneralSecurityException if the cipher is not available
+     * @throws IOException if the appendable fails
+     * @throws CancellationException if the current thread is interrupted
+     */
+    public void encrypt(final CharSequence text, final Appendable out) throws GeneralSecurityException, IOException {
+        final Cipher cipher = borrowCipher(Cipher.ENCRYPT_MODE);
+        final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        final CharBuffer input = CharBuffer.wrap(text);
+        final ByteBuffer plain = ByteBuffer.allocate(CHUNK_SIZE);
+        final ByteBuffer encrypted = ByteBuffer.allocate(cipher.getOutputSize(CHUNK_SIZE));
+        final Base64Appender base64 = new Base64Appender(out);
+
+        while (encoder.encode(input, plain, true).isOverflow()) {
+            encryptChunk(cipher, plain, encrypted, base64);
+        }
+        while (encoder.flush(plain).isOverflow()) {
+            encryptChunk(cipher, plain, encrypted, base64);
+        }
+        encryptChunk(cipher, plain, encrypted, base64);
+        cipher.doFinal(ByteBuffer.allocate(0), encrypted);
+        encrypted.flip();
+        base64.append(encrypted);
+        base64.finish();
+        returnCipher(Cipher.ENCRYPT_MODE, cipher);
+    }
+
+    private static void encryptChunk(final Cipher cipher, final ByteBuffer plain, final ByteBuffer encrypted, final Base64Appender base64) throws GeneralSecurityException, IOException {
+        checkInterrupted();
+        plain.flip();
+        cipher.update(plain, encrypted);
+        plain.clear();
+        encrypted.flip();
+        base64.append(encrypted);
+        encrypted.clear();
+    }
+
+    /**
+     * Decrypt text, appending the plaintext to an appendable chunk by chunk, so that neither the decoded bytes nor the plaintext bytes of the whole text are held in memory.
+     *
+     * @param text the ciphertext encoded with Base64
+     * @param out the appendable which receives the plaintext
+     * @throws GeneralSecurityException if the key is incorrect or the text is damaged
+     * @throws IOException if the appendable fails
+     * @throws IllegalArgumentException if the text is not Base64
+     * @throws CancellationException if the current thread is interrupted
+     */
+    public void decrypt(final CharSequence text, final Appendable out) throws GeneralSecurityException, IOException {
+        final int length = text.length();
+        final Cipher cipher = borrowCipher(Cipher.DECRYPT_MODE);
+        final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        final byte[] encoded = new byte[CHUNK_SIZE];
+        final ByteBuffer plain = ByteBuffer.allocate(CHUNK_SIZE + key.getBlockSize() * 2);
+        final CharBuffer chars = CharBuffer.allocate(CHUNK_SIZE);
+
+        for (int offset = 0; offset < length; offset += CHUNK_SIZE) {
+            checkInterrupted();
+            final int size = Math.min(CHUNK_SIZE, length - offset);
+            final boolean last = offset + size == length;
+            for (int i = 0; i < size; ++i) {
+                final char c = text.charAt(offset + i);
+                if (c > 0x7F || (c == '=' && !last)) {
+                    throw new IllegalArgumentException(String.format("Illegal base64 character %x", (int) c));
+                }
+                encoded[i] = (byte) c;
+            }
+            final byte[] data = Base64.getDecoder().decode(size == CHUNK_SIZE ? encoded : Arrays.copyOf(encoded, size));
+            cipher.update(ByteBuffer.wrap(data), plain);
+            decodeChunk(decoder, plain, chars, false, out);
+        }
+        cipher.doFinal(ByteBuffer.allocate(0), plain);
+        decodeChunk(decoder, plain, chars, true, out);
+        while (decoder.flush(chars).isOverflow()) {
+            appendChars(chars, out);
+        }
+        appendChars(chars, out);
+        returnCipher(Cipher.DECRYPT_MODE, cipher);
+    }
+
+    private static void decodeChunk(final CharsetDecoder decoder, final ByteBuffer plain, final CharBuffer chars, final boolean end, final Appendable out) throws IOException {
+        plain.flip();
+        while (decoder.decode(plain, chars, end).isOverflow()) {
+            appendChars(chars, out);
+        }
+        appendChars(chars, out);
+        plain.compact();
+    }
+
+    private static void appendChars(final CharBuffer chars, final Appendable out) throws IOException {
+        chars.flip();
+        out.append(chars);
+        chars.clear();
+    }
+
+    /**
+     * Drop the pooled ciphers and zero the derived key.
+     */
+    @Override
+    public void destroy() {
+        key.destroy();
+        encryptCiphers.clear();
+        decryptCiphers.clear();
+    }
+
+    @Override
+    public boolean isDestroyed() {
+        return key.isDestroyed();
+    }
+
+    // -----Inner Class-----
+    /**
+     * Encode bytes with Base64 chunk by chunk. Up to 2 bytes are carried to the next chunk, so the output is the same as encoding all bytes at once.
+     */
+    private static final class Base64Appender {
+
+        private final Appendable out;
+        private final byte[] carry = new byte[2];
+        private int carried;
+
+        private Base64Appender(final Appendable out) {
+            this.out = out;
+        }
+
+        private void append(final ByteBuffer bytes) throws IOException {
+            final int total = carried + bytes.remaining();
+            final int size = total - total % 3;
+            if (size > 0) {
+                final byte[] data = new byte[size];
+                System.arraycopy(carry, 0, data, 0, carried);
+                bytes.get(data, carried, size - carried);
+                out.append(new String(Base64.getEncoder().encode(data), StandardCharsets.US_ASCII));
+                carried = 0;
+            }
+            while (bytes.hasRemaining()) {
+                carry[carried++] = bytes.get();
+            }
+        }
+
+        private void finish() throws IOException {
+            if (carried > 0) {
+                out.append(new String(Base64.getEncoder().encode(Arrays.copyOf(carry, carried)), StandardCharsets.US_ASCII));
+                carried = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.crypttool.lib;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * The cipher of the units of a format with a header, which are the segments of the segmented format or the chunks of the authenticated format. A unit is sealed and opened in place, in an array which holds its data and the overhead of the format as they are stored.
+ *
+ * @author Magic Len
+ */
+interface UnitCipher {
+
+    /**
+     * Get the number of bytes which the format adds to every unit.
+     *
+     * @return the overhead in bytes
+     */
+    int getOverhead();
+
+    /**
+     * Get the offset of the data in a unit.
+     *
+     * @return the offset in bytes
+     */
+    int getDataOffset();
+
+    /**
+     * Encrypt a unit in place.
+     *
+     * @param index the unit index
+     * @param unit the array of the unit, whose data is the plaintext
+     * @param size the size of the data
+     * @throws GeneralSecurityException if the cipher is not available
+     */
+    void seal(long index, byte[] unit, int size) throws GeneralSecurityException;
+
+    /**
+     * Decrypt and check a unit in place.
+     *
+     * @param index the unit index
+     * @param unit the array of the unit as it is stored
+     * @param size the size of the data
+     * @throws GeneralSecurityException if the cipher is not available
+     * @throws IOException if the unit is damaged or does not match the key
+     */
+    void open(long index, byte[] unit, int size) throws GeneralSecurityException, IOException;
+}